@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteStatementCache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Garbage-collects attachment blobs incrementally, so that the cost of a collection is
+ * proportional to what changed since the last one rather than to the size of the database.
+ *
+ * The 'blob_refs' table holds the number of 'attachments' rows referring to each blob, kept up
+ * to date by triggers: attachment rows are counted as they're added and removed, and the rows
+ * of a revision are removed as soon as its body is cleared (by compaction) or the revision
+ * itself is deleted (by pruning or purging, through the foreign key). A collection then only
+ * has to delete the blobs whose count has dropped to zero, a batch at a time.
+ *
+ * Blobs that no row ever referred to, e.g. ones left by a failed insertion, aren't counted, so
+ * sweep() still compares the whole blob store against the referenced keys; compact() does that.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+final class AttachmentCollector {
+
+    static final int BLOBS_PER_STEP = 100;
+
+    /**
+     * The triggers that keep 'blob_refs' up to date, installed by the schema upgrade.
+     */
+    static final String[] TRIGGERS = {
+            "CREATE TRIGGER attachments_insert_ref AFTER INSERT ON attachments "
+                    + "BEGIN "
+                    + "INSERT OR IGNORE INTO blob_refs (key, refs) VALUES (new.key, 0); "
+                    + "UPDATE blob_refs SET refs=refs+1 WHERE key=new.key; "
+                    + "END",
+            "CREATE TRIGGER attachments_delete_ref AFTER DELETE ON attachments "
+                    + "BEGIN "
+                    + "UPDATE blob_refs SET refs=refs-1 WHERE key=old.key; "
+                    + "END",
+            "CREATE TRIGGER revs_clear_attachments AFTER UPDATE OF json ON revs "
+                    + "WHEN new.json IS NULL AND old.json NOT NULL "
+                    + "BEGIN "
+                    + "DELETE FROM attachments WHERE sequence=new.sequence; "
+                    + "END"
+    };
+
+    private static final String UNREFERENCED_SQL = "SELECT key FROM blob_refs WHERE refs <= 0 LIMIT ?";
+
+    private static final String DELETE_REF_SQL = "DELETE FROM blob_refs WHERE key=? AND refs <= 0";
+
+    private static final String REFERENCED_SQL = "SELECT key FROM blob_refs WHERE refs > 0";
+
+    private final Database database;
+    private final SQLiteStatementCache statements;
+    private final BlobStore blobStore;
+
+    AttachmentCollector(Database database) {
+        this.database = database;
+        this.statements = database.getStatementCache();
+        this.blobStore = database.getAttachments();
+    }
+
+    /**
+     * Deletes the blobs no attachment refers to any more, BLOBS_PER_STEP at a time, each batch
+     * in a transaction of its own so that a blob can't be reused while it's being deleted.
+     * @return the number of blobs deleted
+     */
+    int collect() throws SQLException {
+        int numDeleted = 0;
+        while (true) {
+            int batchSize = 0;
+            boolean success = false;
+            database.beginTransaction();
+            try {
+                for (byte[] key : unreferencedKeys()) {
+                    if (blobStore.deleteBlob(new BlobKey(key))) {
+                        ++numDeleted;
+                    }
+                    // If the file couldn't be deleted, forget it anyway so it isn't retried
+                    // forever; the next sweep() will pick it up.
+                    statements.execute(DELETE_REF_SQL, key);
+                    ++batchSize;
+                }
+                success = true;
+            } finally {
+                database.endTransaction(success);
+            }
+            if (batchSize < BLOBS_PER_STEP) {
+                break;
+            }
+        }
+        return numDeleted;
+    }
+
+    /**
+     * Deletes every blob in the store that no attachment refers to, whether it was counted or not.
+     * @return the number of blobs deleted
+     */
+    int sweep() throws SQLException {
+        Set<BlobKey> keysToKeep = new HashSet<BlobKey>();
+        Cursor cursor = statements.query(REFERENCED_SQL);
+        try {
+            while (cursor.moveToNext()) {
+                keysToKeep.add(new BlobKey(cursor.getBlob(0)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return blobStore.deleteBlobsExceptWithKeys(keysToKeep);
+    }
+
+    private List<byte[]> unreferencedKeys() throws SQLException {
+        List<byte[]> keys = new ArrayList<byte[]>();
+        Cursor cursor = statements.query(UNREFERENCED_SQL, BLOBS_PER_STEP);
+        try {
+            while (cursor.moveToNext()) {
+                keys.add(cursor.getBlob(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return keys;
+    }
+}
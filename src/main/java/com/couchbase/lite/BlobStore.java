@@ -27,16 +27,24 @@ import java.io.RandomAccessFile;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
 import com.couchbase.lite.util.Log;
 
 /**
  * A persistent content-addressable store for arbitrary-size data blobs.
- * Each blob is stored as a file named by its SHA-1 digest.
+ * Each blob is stored as a file named by its SHA-1 digest, directly in the store's directory;
+ * that layout is shared with older releases and the other platforms, so it mustn't change.
+ *
+ * The keys and sizes of the blobs are kept in memory (read from disk the first time they're
+ * needed), so counting and sizing the blobs doesn't have to list the directory. Writes and
+ * deletes are serialized per group of digest prefixes, so that the index matches the files.
  * @exclude
  */
 public class BlobStore {
@@ -45,8 +53,15 @@ public class BlobStore {
     public static String TMP_FILE_EXTENSION = ".blobtmp";
     public static String TMP_FILE_PREFIX = "tmp";
 
+    private static final int LOCK_STRIPES = 16;
+
     private String path;
 
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Map<BlobKey, Long> index = new ConcurrentHashMap<BlobKey, Long>();
+    private final AtomicLong indexedSize = new AtomicLong();
+    private volatile boolean indexLoaded;
+
     public BlobStore(String path) {
         this.path = path;
         File directory = new File(path);
@@ -56,6 +71,9 @@ public class BlobStore {
             throw new IllegalStateException(String.format("Unable to create directory for: %s", directory));
         }
 
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
     }
 
     public static BlobKey keyForBlob(byte[] data) {
@@ -102,27 +120,87 @@ public class BlobStore {
     }
 
     public String pathForKey(BlobKey key) {
-        return path + File.separator + BlobKey.convertToHex(key.getBytes()) + FILE_EXTENSION;
+        return fileForKey(key).getPath();
+    }
+
+    private File fileForKey(BlobKey key) {
+        return new File(path, BlobKey.convertToHex(key.getBytes()) + FILE_EXTENSION);
+    }
+
+    private Object lockForKey(BlobKey key) {
+        byte[] bytes = key.getBytes();
+        return locks[(bytes.length > 0 ? bytes[0] & 0xff : 0) % LOCK_STRIPES];
     }
 
     public long getSizeOfBlob(BlobKey key) {
-        String path = pathForKey(key);
-        File file = new File(path);
-        return file.length();
+        Long size = index.get(key);
+        if (size != null) {
+            return size;
+        }
+        return fileForKey(key).length();
     }
 
+    /**
+     * Gets the key of a blob from the name or path of its file.
+     */
     public boolean getKeyForFilename(BlobKey outKey, String filename) {
         if(!filename.endsWith(FILE_EXTENSION)) {
             return false;
         }
-        //trim off extension
-        String rest = filename.substring(path.length() + 1, filename.length() - FILE_EXTENSION.length());
+        //trim off directory and extension
+        String name = new File(filename).getName();
+        String rest = name.substring(0, name.length() - FILE_EXTENSION.length());
 
         outKey.setBytes(BlobKey.convertFromHex(rest));
 
         return true;
     }
 
+    // Must be called with the key's lock held.
+    private void addToIndex(BlobKey key, long size) {
+        Long previous = index.put(new BlobKey(key.getBytes()), size);
+        indexedSize.addAndGet(size - (previous != null ? previous : 0));
+    }
+
+    // Must be called with the key's lock held.
+    private void removeFromIndex(BlobKey key) {
+        Long previous = index.remove(key);
+        if (previous != null) {
+            indexedSize.addAndGet(-previous);
+        }
+    }
+
+    /**
+     * Reads the keys and sizes of all the blobs from disk, the first time they're needed.
+     */
+    private void loadIndex() {
+        if (indexLoaded) {
+            return;
+        }
+        synchronized (index) {
+            if (indexLoaded) {
+                return;
+            }
+            File[] files = new File(path).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    BlobKey key = new BlobKey();
+                    if (!file.isFile() || !getKeyForFilename(key, file.getName())) {
+                        continue;
+                    }
+                    synchronized (lockForKey(key)) {
+                        // Skip blobs deleted since the directory was listed:
+                        long length = file.length();
+                        if (length > 0 || file.exists()) {
+                            addToIndex(key, length);
+                        }
+                    }
+                }
+            }
+            indexLoaded = true;
+        }
+    }
+
     public byte[] blobForKey(BlobKey key) {
         String path = pathForKey(key);
         File file = new File(path);
@@ -170,16 +248,31 @@ public class BlobStore {
 
         BlobKey newKey = keyForBlobFromFile(tmp);
         outKey.setBytes(newKey.getBytes());
-        String path = pathForKey(outKey);
-        File file = new File(path);
+        storeFile(tmp, newKey);
+        return true;
+    }
 
-        if(file.canRead()) {
-            // object with this hash already exists, we should delete tmp file and return true
-            tmp.delete();
-            return true;
-        } else {
+    /**
+     * Moves a file whose contents have the given key into the store. If the store already has a
+     * blob with that key, the file is deleted instead.
+     */
+    public boolean storeFile(File tmp, BlobKey key) {
+        synchronized (lockForKey(key)) {
+            File file = fileForKey(key);
+            if(file.canRead()) {
+                // object with this hash already exists, we should delete tmp file and return true
+                tmp.delete();
+                addToIndex(key, file.length());
+                return true;
+            }
             // does not exist, we should rename tmp file to this name
-            tmp.renameTo(file);
+            long length = tmp.length();
+            if (!tmp.renameTo(file)) {
+                Log.e(Log.TAG_BLOB_STORE, "Unable to move %s to %s", tmp, file);
+                tmp.delete();
+                return false;
+            }
+            addToIndex(key, length);
         }
         return true;
     }
@@ -187,30 +280,35 @@ public class BlobStore {
     public boolean storeBlob(byte[] data, BlobKey outKey) {
         BlobKey newKey = keyForBlob(data);
         outKey.setBytes(newKey.getBytes());
-        String path = pathForKey(outKey);
-        File file = new File(path);
-        if(file.canRead()) {
-            return true;
-        }
 
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(file);
-            fos.write(data);
-        } catch (FileNotFoundException e) {
-            Log.e(Log.TAG_BLOB_STORE, "Error opening file for output", e);
-            return false;
-        } catch(IOException ioe) {
-            Log.e(Log.TAG_BLOB_STORE, "Error writing to file", ioe);
-            return false;
-        } finally {
-            if(fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    // ignore
+        synchronized (lockForKey(newKey)) {
+            File file = fileForKey(newKey);
+            if(file.canRead()) {
+                return true;
+            }
+
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(file);
+                fos.write(data);
+            } catch (FileNotFoundException e) {
+                Log.e(Log.TAG_BLOB_STORE, "Error opening file for output", e);
+                return false;
+            } catch(IOException ioe) {
+                Log.e(Log.TAG_BLOB_STORE, "Error writing to file", ioe);
+                file.delete();
+                return false;
+            } finally {
+                if(fos != null) {
+                    try {
+                        fos.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
                 }
             }
+
+            addToIndex(newKey, data.length);
         }
 
         return true;
@@ -244,51 +342,44 @@ public class BlobStore {
     }
 
     public Set<BlobKey> allKeys() {
-        Set<BlobKey> result = new HashSet<BlobKey>();
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        for (File attachment : contents) {
-            if (attachment.isDirectory()) {
-                continue;
-            }
-            BlobKey attachmentKey = new BlobKey();
-            getKeyForFilename(attachmentKey, attachment.getPath());
-            result.add(attachmentKey);
-        }
-        return result;
+        loadIndex();
+        return new HashSet<BlobKey>(index.keySet());
     }
 
     public int count() {
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        return contents.length;
+        loadIndex();
+        return index.size();
     }
 
     public long totalDataSize() {
-        long total = 0;
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        for (File attachment : contents) {
-            total += attachment.length();
+        loadIndex();
+        return indexedSize.get();
+    }
+
+    /**
+     * Deletes the blob with the given key, if it's in the store.
+     */
+    public boolean deleteBlob(BlobKey key) {
+        synchronized (lockForKey(key)) {
+            File file = fileForKey(key);
+            if (!file.delete() && file.exists()) {
+                Log.e(Log.TAG_BLOB_STORE, "Error deleting attachment: %s", file);
+                return false;
+            }
+            removeFromIndex(key);
         }
-        return total;
+        return true;
     }
 
-    public int deleteBlobsExceptWithKeys(List<BlobKey> keysToKeep) {
+    public int deleteBlobsExceptWithKeys(Collection<BlobKey> keysToKeep) {
         int numDeleted = 0;
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        for (File attachment : contents) {
-            BlobKey attachmentKey = new BlobKey();
-            getKeyForFilename(attachmentKey, attachment.getPath());
-            if(!keysToKeep.contains(attachmentKey)) {
-                boolean result = attachment.delete();
-                if(result) {
+        Set<BlobKey> keep = (keysToKeep instanceof Set) ? (Set<BlobKey>) keysToKeep
+                                                        : new HashSet<BlobKey>(keysToKeep);
+        for (BlobKey key : allKeys()) {
+            if (!keep.contains(key)) {
+                if (deleteBlob(key)) {
                     ++numDeleted;
                 }
-                else {
-                    Log.e(Log.TAG_BLOB_STORE, "Error deleting attachment: %s", attachment);
-                }
             }
         }
         return numDeleted;
@@ -3,7 +3,6 @@ package com.couchbase.lite;
 import com.couchbase.lite.support.Base64;
 import com.couchbase.lite.util.Log;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -18,6 +17,12 @@ import java.security.NoSuchAlgorithmException;
  */
 public class BlobStoreWriter {
 
+    /**
+     * Size of the blocks written to the temp file. Each block is digested right after it's
+     * written, while it's still in the CPU cache.
+     */
+    public static final int BLOCK_SIZE = 65536;
+
     /** The underlying blob store where it should be stored. */
     private BlobStore store;
 
@@ -34,9 +39,13 @@ public class BlobStoreWriter {
     private MessageDigest sha1Digest;
     private MessageDigest md5Digest;
 
-    private BufferedOutputStream outStream;
+    private FileOutputStream outStream;
     private File tempFile;
 
+    /** Collects small appends into blocks; allocated on the first one. */
+    private byte[] block;
+    private int blockLength;
+
     public BlobStoreWriter(BlobStore store) {
         this.store = store;
 
@@ -63,33 +72,72 @@ public class BlobStoreWriter {
         String filename = String.format("%s.blobtmp", uuid);
         File tempDir = store.tempDir();
         tempFile = new File(tempDir, filename);
-        outStream = new BufferedOutputStream(new FileOutputStream(tempFile));
+        outStream = new FileOutputStream(tempFile);
 
     }
 
     /** Appends data to the blob. Call this when new data is available. */
     public void appendData(byte[] data)  {
+        appendData(data, 0, data.length);
+    }
+
+    /** Appends data[offset..offset+len) to the blob. */
+    public void appendData(byte[] data, int offset, int len)  {
         try {
-            outStream.write(data);
+            if (len >= BLOCK_SIZE) {
+                // Big enough to write straight from the caller's array:
+                flushBlock();
+                writeBlock(data, offset, len);
+            } else {
+                if (block == null) {
+                    block = new byte[BLOCK_SIZE];
+                }
+                if (blockLength + len > BLOCK_SIZE) {
+                    flushBlock();
+                }
+                System.arraycopy(data, offset, block, blockLength, len);
+                blockLength += len;
+            }
         } catch (IOException e) {
             throw new RuntimeException("Unable to write to stream.", e);
         }
-        length += data.length;
-        sha1Digest.update(data);
-        md5Digest.update(data);
+        length += len;
     }
 
-    void read(InputStream inputStream) {
-        byte[] buffer = new byte[1024];
+    /**
+     * Copies the rest of the stream into the blob, reading straight into the block buffer.
+     */
+    public void appendStream(InputStream inputStream) throws IOException {
+        if (block == null) {
+            block = new byte[BLOCK_SIZE];
+        }
         int len;
+        while ((len = inputStream.read(block, blockLength, BLOCK_SIZE - blockLength)) != -1) {
+            blockLength += len;
+            length += len;
+            if (blockLength == BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockLength > 0) {
+            writeBlock(block, 0, blockLength);
+            blockLength = 0;
+        }
+    }
+
+    private void writeBlock(byte[] data, int offset, int len) throws IOException {
+        outStream.write(data, offset, len);
+        sha1Digest.update(data, offset, len);
+        md5Digest.update(data, offset, len);
+    }
+
+    void read(InputStream inputStream) {
         length = 0;
         try {
-            while ((len = inputStream.read(buffer)) != -1) {
-                outStream.write(buffer, 0, len);
-                sha1Digest.update(buffer, 0, len);
-                md5Digest.update(buffer, 0, len);
-                length += len;
-            }
+            appendStream(inputStream);
         } catch (IOException e) {
             throw new RuntimeException("Unable to read from stream.", e);
         } finally {
@@ -103,6 +151,12 @@ public class BlobStoreWriter {
 
     /** Call this after all the data has been added. */
     public void finish() {
+        try {
+            flushBlock();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write to stream.", e);
+        }
+        block = null;
         try {
             outStream.close();
         } catch (IOException e) {
@@ -114,6 +168,7 @@ public class BlobStoreWriter {
 
     /** Call this to cancel before finishing the data. */
     public void cancel() {
+        block = null;
         try {
             outStream.close();
         } catch (IOException e) {
@@ -129,16 +184,9 @@ public class BlobStoreWriter {
             return;  // already installed
         }
 
-        // Move temp file to correct location in blob store:
-        String destPath = store.pathForKey(blobKey);
-        File destPathFile = new File(destPath);
-        boolean result = tempFile.renameTo(destPathFile);
-
-        // If the move fails, assume it means a file with the same name already exists; in that
-        // case it must have the identical contents, so we're still OK.
-        if (result == false) {
-            cancel();
-        }
+        // Move temp file to correct location in blob store. If a file with the same name already
+        // exists, it must have the identical contents, so the store just deletes the temp file.
+        store.storeFile(tempFile, blobKey);
 
         tempFile = null;
 
@@ -0,0 +1,165 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.util.Log;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the changes made to a database since a given sequence, in sequence order.
+ *
+ * Unlike Database.changesSince(), which loads every change into memory before sorting and
+ * limiting it, this reads the changes a page at a time with keyset queries on the sequence, with
+ * the limit pushed into the SQL. Bodies are only read if the options ask for them or there is a
+ * filter to run, and then only for the current page. No cursor is held open between pages, so
+ * the database can be written to while the changes are being enumerated.
+ *
+ * The options' sortBySequence flag is ignored: the changes always come in sequence order.
+ * @exclude
+ */
+@InterfaceAudience.Private
+public class ChangesEnumerator implements Iterator<RevisionInternal> {
+
+    /**
+     * Default number of rows read per query.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    private final Database database;
+    private final long since;
+    private final ChangesOptions options;
+    private final ReplicationFilter filter;
+    private final Map<String, Object> filterParams;
+    private final int pageSize;
+
+    private long lastSequenceRead;
+    private int remaining;
+    private boolean exhausted;
+    private RevisionList page = new RevisionList();
+    private int pageIndex;
+
+    /* package */ ChangesEnumerator(Database database, long since, ChangesOptions options, ReplicationFilter filter,
+                                    Map<String, Object> filterParams, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize <= 0");
+        }
+        this.database = database;
+        this.since = since;
+        this.options = (options != null) ? options : new ChangesOptions();
+        this.filter = filter;
+        this.filterParams = filterParams;
+        this.pageSize = pageSize;
+        this.lastSequenceRead = since;
+        this.remaining = this.options.getLimit();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (pageIndex >= page.size()) {
+            if (exhausted || remaining <= 0) {
+                return false;
+            }
+            readPage();
+        }
+        return true;
+    }
+
+    @Override
+    public RevisionInternal next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(pageIndex++);
+    }
+
+    /**
+     * Returns all the changes that would be returned by the following calls to next(), up to the
+     * end of the current page, or an empty list if there are no more changes.
+     */
+    public RevisionList nextPage() {
+        RevisionList result = new RevisionList();
+        if (hasNext()) {
+            result.addAll(page.subList(pageIndex, page.size()));
+            pageIndex = page.size();
+        }
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The highest sequence read from the database so far, including changes rejected by the
+     * filter. Enumerating again from here continues where this enumerator stopped.
+     */
+    public long getLastSequenceRead() {
+        return lastSequenceRead;
+    }
+
+    private void readPage() {
+        page = new RevisionList();
+        pageIndex = 0;
+
+        boolean includeDocs = options.isIncludeDocs() || (filter != null);
+        // Without a filter every row read is returned, so there's no point reading past the limit:
+        int sqlLimit = (filter == null) ? Math.min(pageSize, remaining) : pageSize;
+
+        StringBuilder sql = new StringBuilder("SELECT sequence, docid, revid, deleted");
+        if (includeDocs) {
+            sql.append(", json");
+        }
+        sql.append(" FROM revs, docs WHERE sequence > ? AND current=1 AND revs.doc_id = docs.doc_id");
+        if (!options.isIncludeConflicts()) {
+            // Only the current rev with the highest rev ID counts (the rest are losing conflicts),
+            // chosen among the revs changed since the start of the feed, as changesSince() does:
+            sql.append(" AND NOT EXISTS (SELECT 1 FROM revs AS other"
+                    + " WHERE other.doc_id = revs.doc_id AND other.current=1"
+                    + " AND other.sequence > ? AND other.revid > revs.revid)");
+        }
+        sql.append(" ORDER BY sequence LIMIT ?");
+
+        String[] args;
+        if (options.isIncludeConflicts()) {
+            args = new String[] { Long.toString(lastSequenceRead), Integer.toString(sqlLimit) };
+        } else {
+            args = new String[] { Long.toString(lastSequenceRead), Long.toString(since), Integer.toString(sqlLimit) };
+        }
+
+        Cursor cursor = null;
+        int rowsRead = 0;
+        try {
+            cursor = database.getDatabase().rawQuery(sql.toString(), args);
+            while (remaining > 0 && cursor.moveToNext()) {
+                ++rowsRead;
+                lastSequenceRead = cursor.getLong(0);
+                RevisionInternal rev = new RevisionInternal(cursor.getString(1), cursor.getString(2), (cursor.getInt(3) > 0), database);
+                rev.setSequence(lastSequenceRead);
+                if (includeDocs) {
+                    database.expandStoredJSONIntoRevisionWithAttachments(cursor.getBlob(4), rev, options.getContentOptions());
+                }
+                if (database.runFilter(filter, filterParams, rev)) {
+                    page.add(rev);
+                    --remaining;
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error looking for changes", e);
+            exhausted = true;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        if (rowsRead < sqlLimit) {
+            exhausted = true;
+        }
+    }
+}
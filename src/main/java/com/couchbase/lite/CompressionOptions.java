@@ -0,0 +1,77 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compression of the request bodies replications send.
+ *
+ * Responses are always accepted compressed. Request bodies are only gzipped once the server has
+ * shown it speaks gzip, by sending a compressed response, and only if they're at least
+ * minCompressedLength bytes, below which the gzip header and the work aren't worth it. A server
+ * that rejects a compressed body with any 4xx status is never sent one again, and the request is
+ * retried uncompressed.
+ *
+ * What's been learned about each server is kept here too, so it's shared by all the
+ * replications of the Managers using these options.
+ */
+@InterfaceAudience.Public
+public class CompressionOptions {
+
+    private volatile int minCompressedLength = 1024;
+
+    // Whether each server (scheme://host:port) accepts gzipped request bodies; absent if unknown:
+    private final ConcurrentMap<String, Boolean> acceptsGzip = new ConcurrentHashMap<String, Boolean>();
+
+    public int getMinCompressedLength() {
+        return minCompressedLength;
+    }
+
+    /**
+     * Sets the smallest request body that will be compressed, in bytes.
+     */
+    public void setMinCompressedLength(int minCompressedLength) {
+        if (minCompressedLength < 0) {
+            throw new IllegalArgumentException("minCompressedLength < 0");
+        }
+        this.minCompressedLength = minCompressedLength;
+    }
+
+    /**
+     * Forgets which servers accept compressed request bodies, e.g. after a server's been upgraded.
+     */
+    public void forgetServers() {
+        acceptsGzip.clear();
+    }
+
+    /**
+     * Whether a server is known to accept gzipped request bodies: TRUE or FALSE, or null if it
+     * isn't known yet.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public Boolean acceptsGzip(String server) {
+        return acceptsGzip.get(server);
+    }
+
+    /**
+     * Records that a server sent a gzipped response, unless it's already known to reject
+     * gzipped requests.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public void serverSentGzip(String server) {
+        acceptsGzip.putIfAbsent(server, Boolean.TRUE);
+    }
+
+    /**
+     * Records that a server rejected a gzipped request body.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public void serverRejectedGzip(String server) {
+        acceptsGzip.put(server, Boolean.FALSE);
+    }
+}
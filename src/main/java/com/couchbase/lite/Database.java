@@ -19,6 +19,7 @@ package com.couchbase.lite;
 
 import com.couchbase.lite.internal.AttachmentInternal;
 import com.couchbase.lite.internal.Body;
+import com.couchbase.lite.internal.InlineAttachmentData;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.replicator.Replication;
@@ -26,6 +27,7 @@ import com.couchbase.lite.replicator.ReplicationState;
 import com.couchbase.lite.storage.ContentValues;
 import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteStatementCache;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
 import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
 import com.couchbase.lite.support.Base64;
@@ -34,6 +36,7 @@ import com.couchbase.lite.support.HttpClientFactory;
 import com.couchbase.lite.support.PersistentCookieStore;
 import com.couchbase.lite.util.CollectionUtils;
 import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.LruCache;
 import com.couchbase.lite.util.StreamUtils;
 import com.couchbase.lite.util.TextUtils;
 import com.couchbase.lite.util.Utils;
@@ -49,6 +52,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -70,6 +74,20 @@ public final class Database {
     // Default value for maxRevTreeDepth, the max rev depth to preserve in a prune operation
     private static final int DEFAULT_MAX_REVS = Integer.MAX_VALUE;
 
+    // Memory budget of the docid -> doc_id cache, and the estimated cost of an entry on top of
+    // the characters of its docid (the cache entry, the String and the Long).
+    private static final int DOC_NUMERIC_ID_CACHE_MAX_BYTES = 512 * 1024;
+    private static final int DOC_NUMERIC_ID_CACHE_ENTRY_OVERHEAD = 96;
+
+    // Attachments up to this size are inlined as base64 strings, which are cached (within the
+    // given budget) since blobs never change; bigger ones are streamed by InlineAttachmentData.
+    private static final int INLINE_ATTACHMENT_CACHE_MAX_LENGTH = 32 * 1024;
+    private static final int INLINE_ATTACHMENT_CACHE_MAX_BYTES = 1024 * 1024;
+    private static final int INLINE_ATTACHMENT_CACHE_ENTRY_OVERHEAD = 96;
+
+    // Max number of values bound in one "IN (...)" clause, safely below SQLite's limit of 999.
+    private static final int SQL_IN_CHUNK_SIZE = 500;
+
     private static ReplicationFilterCompiler filterCompiler;
 
     private String path;
@@ -93,9 +111,20 @@ public final class Database {
     private Set<Replication> allReplicators;
 
     private BlobStore attachments;
+    private SQLiteStatementCache statementCache;
     private Manager manager;
     final private CopyOnWriteArrayList<ChangeListener> changeListeners;
     private Cache<String, Document> docCache;
+    private LruCache<String, Long> docNumericIDs;
+    private LruCache<BlobKey, String> inlineAttachmentCache;
+    private LruCache<Long, RevisionTree> revisionTrees;
+    private long revisionTreesChangeCount;  // guarded by revisionTrees
+    // The thread in the outermost transaction, if any, and whether that transaction has added or
+    // removed revisions that other threads' connections can't see yet; both guarded by revisionTrees:
+    private Thread transactionThread;
+    private boolean revisionTreesUncommitted;
+    private StorageProfile storageProfile;
+    private int bulkLoadLevel;
     private List<DocumentChange> changesToNotify;
     private boolean postingChangeNotifications;
 
@@ -233,6 +262,27 @@ public final class Database {
         this.manager = manager;
         this.changeListeners = new CopyOnWriteArrayList<ChangeListener>();
         this.docCache = new Cache<String, Document>();
+        this.docNumericIDs = new LruCache<String, Long>(DOC_NUMERIC_ID_CACHE_MAX_BYTES) {
+            @Override
+            protected int sizeOf(String docId, Long docNumericID) {
+                return DOC_NUMERIC_ID_CACHE_ENTRY_OVERHEAD + 2 * docId.length();
+            }
+        };
+        this.inlineAttachmentCache = new LruCache<BlobKey, String>(INLINE_ATTACHMENT_CACHE_MAX_BYTES) {
+            @Override
+            protected int sizeOf(BlobKey key, String base64) {
+                return INLINE_ATTACHMENT_CACHE_ENTRY_OVERHEAD + 2 * base64.length();
+            }
+        };
+        int revisionTreeCacheSize = (manager != null)
+                ? manager.getOptions().getRevisionTreeCacheSize()
+                : ManagerOptions.DEFAULT_REVISION_TREE_CACHE_SIZE;
+        this.revisionTrees = new LruCache<Long, RevisionTree>(revisionTreeCacheSize) {
+            @Override
+            protected int sizeOf(Long docNumericID, RevisionTree tree) {
+                return tree.size();
+            }
+        };
         this.startTime = System.currentTimeMillis();
         this.changesToNotify = new ArrayList<DocumentChange>();
         this.activeReplicators =  Collections.newSetFromMap(new ConcurrentHashMap());
@@ -331,6 +381,7 @@ public final class Database {
             ContentValues args = new ContentValues();
             args.put("json", (String)null);
             database.update("revs", args, "current=0", null);
+            forgetRevisionTrees();
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error compacting", e);
             throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
@@ -338,12 +389,18 @@ public final class Database {
 
         Log.v(Database.TAG, "Deleting old attachments...");
         Status result = garbageCollectAttachments();
+        if (result.isSuccessful()) {
+            result = sweepAttachments();
+        }
         if (!result.isSuccessful()) {
             throw new CouchbaseLiteException(result);
         }
 
         Log.v(Database.TAG, "Vacuuming SQLite sqliteDb...");
         try {
+            // Switches a database created without it to incremental auto-vacuum, which only
+            // takes effect through a VACUUM, so that compactIncrementally() can free space:
+            execPragma("PRAGMA auto_vacuum = INCREMENTAL");
             database.execSQL("VACUUM");
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error vacuuming sqliteDb", e);
@@ -354,6 +411,44 @@ public final class Database {
     }
 
 
+    /**
+     * Compacts the database like compact(), but in many short transactions, so that it can run
+     * under live traffic instead of locking the database for the whole time. Free space is
+     * returned with incremental vacuuming rather than a full VACUUM; a database created before
+     * that was supported must be compacted with compact() once first. Blocks until done, so
+     * call it on a background thread, or use compactIncrementallyAsync(). Interrupting the
+     * thread stops the compaction after its current step.
+     *
+     * @param listener notified of the progress, or null
+     */
+    @InterfaceAudience.Public
+    public void compactIncrementally(CompactionListener listener) throws CouchbaseLiteException {
+        try {
+            new IncrementalCompactor(this, listener).run();
+        } catch (InterruptedException e) {
+            Log.i(Database.TAG, "Incremental compaction of %s stopped", getName());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs compactIncrementally() on a background thread. Cancelling the returned future with
+     * mayInterruptIfRunning stops it after its current step.
+     */
+    @InterfaceAudience.Public
+    public Future compactIncrementallyAsync(final CompactionListener listener) {
+        return manager.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compactIncrementally(listener);
+                } catch (CouchbaseLiteException e) {
+                    Log.e(Database.TAG, "Error compacting incrementally", e);
+                }
+            }
+        });
+    }
+
     /**
      * Deletes the database.
      *
@@ -677,7 +772,7 @@ public final class Database {
      */
     @InterfaceAudience.Public
     public Future runAsync(final AsyncTask asyncTask) {
-        return getManager().runAsync(new Runnable() {
+        return getManager().runAsync(this, new Runnable() {
             @Override
             public void run() {
                 asyncTask.run(Database.this);
@@ -693,7 +788,7 @@ public final class Database {
      */
     @InterfaceAudience.Public
     public Replication createPushReplication(URL remote) {
-        return new Replication(this, remote, Replication.Direction.PUSH, null, manager.getWorkExecutor());
+        return new Replication(this, remote, Replication.Direction.PUSH, null, manager.getDatabaseExecutor(this));
     }
 
     /**
@@ -704,7 +799,7 @@ public final class Database {
      */
     @InterfaceAudience.Public
     public Replication createPullReplication(URL remote) {
-        return new Replication(this, remote, Replication.Direction.PULL, null, manager.getWorkExecutor());
+        return new Replication(this, remote, Replication.Direction.PULL, null, manager.getDatabaseExecutor(this));
 
     }
 
@@ -772,6 +867,27 @@ public final class Database {
         public void changed(ChangeEvent event);
     }
 
+    /**
+     * The steps of an incremental compaction, in order.
+     */
+    @InterfaceAudience.Public
+    public enum CompactionPhase {
+        PRUNING, CLEARING_BODIES, COLLECTING_ATTACHMENTS, VACUUMING, DONE
+    }
+
+    /**
+     * Reports the progress of compactIncrementally(), after each of its steps. Called on the
+     * thread running the compaction.
+     */
+    @InterfaceAudience.Public
+    public static interface CompactionListener {
+        /**
+         * @param completed how many documents, revisions or pages the phase has processed
+         * @param total how many it has to process in all
+         */
+        public void compactionProgress(CompactionPhase phase, long completed, long total);
+    }
+
     /**
      * Get the maximum depth of a document's revision tree (or, max length of its revision history.)
      * Revisions older than this limit will be deleted during a -compact: operation.
@@ -892,6 +1008,134 @@ public final class Database {
         return true;
     }
 
+    private boolean applyStorageProfile(StorageProfile profile, boolean isNewDatabase) {
+        try {
+            if (isNewDatabase && profile.getPageSize() != null) {
+                execPragma("PRAGMA page_size = " + profile.getPageSize());
+            }
+            if (isNewDatabase) {
+                // Must be set before any table is created; lets compactIncrementally() return
+                // free pages to the file system without a full VACUUM.
+                execPragma("PRAGMA auto_vacuum = INCREMENTAL");
+            }
+            if (profile.getJournalMode() != null) {
+                execPragma("PRAGMA journal_mode = " + profile.getJournalMode());
+            }
+            if (profile.getSynchronous() != null) {
+                execPragma("PRAGMA synchronous = " + profile.getSynchronous());
+            }
+            if (profile.getCacheSize() != null) {
+                execPragma("PRAGMA cache_size = " + profile.getCacheSize());
+            }
+            if (profile.getMmapSize() != null) {
+                execPragma("PRAGMA mmap_size = " + profile.getMmapSize());
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error applying storage profile", e);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean hasTable(String table) throws SQLException {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name=?",
+                    new String[] { table });
+            return cursor.moveToNext();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private boolean hasColumn(String table, String column) throws SQLException {
+        Cursor cursor = null;
+        try {
+            // Each row of table_info describes a column, whose name is the second field:
+            cursor = database.rawQuery("PRAGMA table_info(" + table + ")", null);
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(1))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    // Some pragmas (journal_mode, mmap_size) return a row, which Android's execSQL() refuses to
+    // run, so fall back to running those as a query.
+    private void execPragma(String pragma) {
+        try {
+            database.execSQL(pragma);
+        } catch (SQLException e) {
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(pragma, null);
+                cursor.moveToNext();
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Relaxes the synchronous setting to the storage profile's bulk-load setting, so that a large
+     * number of revisions can be written without waiting for the disk on every commit. Calls nest,
+     * and must be balanced by calls to endBulkLoad(). Has no effect if the profile doesn't allow
+     * bulk loading.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized void beginBulkLoad() {
+        if (!isOpen() || storageProfile.getBulkLoadSynchronous() == null) {
+            return;
+        }
+        if (bulkLoadLevel++ == 0) {
+            try {
+                execPragma("PRAGMA synchronous = " + storageProfile.getBulkLoadSynchronous());
+            } catch (SQLException e) {
+                Log.w(Database.TAG, "Unable to enter bulk-load mode", e);
+            }
+        }
+    }
+
+    /**
+     * Restores the storage profile's synchronous setting after beginBulkLoad().
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized void endBulkLoad() {
+        if (!isOpen() || bulkLoadLevel == 0) {
+            return;
+        }
+        if (--bulkLoadLevel == 0) {
+            try {
+                // With no explicit setting, SQLite's default is FULL:
+                String synchronous = storageProfile.getSynchronous();
+                execPragma("PRAGMA synchronous = " + (synchronous != null ? synchronous : "FULL"));
+            } catch (SQLException e) {
+                Log.w(Database.TAG, "Unable to leave bulk-load mode", e);
+            }
+        }
+    }
+
+    /**
+     * The storage profile applied when the database was opened.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public StorageProfile getStorageProfile() {
+        return storageProfile;
+    }
+
     /**
      * @exclude
      */
@@ -920,6 +1164,14 @@ public final class Database {
         // Check the user_version number we last stored in the sqliteDb:
         int dbVersion = database.getVersion();
 
+        // Apply the manager's storage profile. The page size can only be changed before the first
+        // table is created, and has to be set before switching to WAL mode:
+        storageProfile = (manager != null) ? manager.getOptions().getStorageProfile() : StorageProfile.durable();
+        if (!applyStorageProfile(storageProfile, dbVersion < 1)) {
+            database.close();
+            return false;
+        }
+
         // Incompatible version changes increment the hundreds' place:
         if(dbVersion >= 100) {
             Log.e(Database.TAG, "Database: Database version (%d) is newer than I know how to work with", dbVersion);
@@ -992,8 +1244,7 @@ public final class Database {
 
         if (dbVersion < 6) {
             // Version 6: enable Write-Ahead Log (WAL) <http://sqlite.org/wal.html>
-            // Not supported on Android, require SQLite 3.7.0
-            //String upgradeSql  = "PRAGMA journal_mode=WAL; " +
+            // (The journal mode now comes from the storage profile, applied above.)
             String upgradeSql  = "PRAGMA user_version = 6";
             if (!initialize(upgradeSql)) {
                 database.close();
@@ -1058,6 +1309,82 @@ public final class Database {
             }
         }
 
+        // Versions 12 and 13 may also be used by other releases' schemas, so their changes are
+        // applied whenever they're missing rather than only by version number, and user_version
+        // is never lowered:
+        boolean hasReduceCacheColumns;
+        boolean hasReducesTable;
+        boolean hasBlobRefsTable;
+        try {
+            hasReduceCacheColumns = hasColumn("views", "reduce_cache");
+            hasReducesTable = hasTable("reduces");
+            hasBlobRefsTable = hasTable("blob_refs");
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error reading the database schema", e);
+            database.close();
+            return false;
+        }
+
+        if (!hasReduceCacheColumns || !hasReducesTable) {
+            // Version 12: Add the persisted reduce cache (see ReduceCache)
+            String upgradeSql = "";
+            if (!hasReduceCacheColumns) {
+                upgradeSql += "ALTER TABLE views ADD COLUMN reduce_cache BOOLEAN DEFAULT 0; " +
+                        "ALTER TABLE views ADD COLUMN total_reduce TEXT; ";
+            }
+            if (!hasReducesTable) {
+                upgradeSql += "CREATE TABLE reduces ( " +
+                        "    view_id INTEGER NOT NULL REFERENCES views(view_id) ON DELETE CASCADE, " +
+                        "    key TEXT NOT NULL COLLATE JSON, " +
+                        "    value TEXT, " +
+                        "    dirty BOOLEAN DEFAULT 0); " +
+                        "CREATE UNIQUE INDEX reduces_keys ON reduces(view_id, key COLLATE JSON); " +
+                        "CREATE INDEX reduces_dirty ON reduces(view_id, dirty); ";
+            }
+            // The triggers that maintain it are created per view (see ReduceCache):
+            if (dbVersion < 12) {
+                upgradeSql += "PRAGMA user_version = 12";
+                dbVersion = 12;
+            }
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+        }
+
+        if (!hasBlobRefsTable) {
+            // Version 13: Count the references to each attachment blob (see AttachmentCollector).
+            // Rows of already-cleared revisions are dropped first, as the triggers would have.
+            String upgradeSql = "CREATE TABLE blob_refs ( " +
+                    "    key BLOB PRIMARY KEY, " +
+                    "    refs INTEGER NOT NULL DEFAULT 0); " +
+                    "CREATE INDEX blob_refs_by_refs ON blob_refs(refs); " +
+                    "DELETE FROM attachments WHERE sequence IN " +
+                    "    (SELECT sequence FROM revs WHERE json IS null); " +
+                    "INSERT INTO blob_refs (key, refs) " +
+                    "    SELECT key, COUNT(*) FROM attachments GROUP BY key";
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            try {
+                for (String trigger : AttachmentCollector.TRIGGERS) {
+                    database.execSQL(trigger);
+                }
+            } catch (SQLException e) {
+                Log.e(Database.TAG, "Error creating attachment reference triggers", e);
+                database.close();
+                return false;
+            }
+            if (dbVersion < 13) {
+                if (!initialize("PRAGMA user_version = 13")) {
+                    database.close();
+                    return false;
+                }
+                dbVersion = 13;
+            }
+        }
+
 
         try {
             attachments = new BlobStore(getAttachmentStorePath());
@@ -1067,6 +1394,8 @@ public final class Database {
             return false;
         }
 
+        statementCache = new SQLiteStatementCache(database, SQLiteStatementCache.DEFAULT_MAX_SIZE);
+
         open = true;
         return true;
     }
@@ -1096,10 +1425,18 @@ public final class Database {
 
         allReplicators = null;
 
+        if(statementCache != null) {
+            statementCache.close();
+            statementCache = null;
+        }
+        docNumericIDs.evictAll();
+        forgetRevisionTrees();
+
         if(database != null && database.isOpen()) {
             database.close();
         }
         open = false;
+        bulkLoadLevel = 0;
         transactionLevel = 0;
         return true;
     }
@@ -1124,6 +1461,15 @@ public final class Database {
         return database;
     }
 
+    /**
+     * Returns the cache of compiled statements used on the hot paths.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    SQLiteStatementCache getStatementCache() {
+        return statementCache;
+    }
+
     /**
      * @exclude
      */
@@ -1159,7 +1505,11 @@ public final class Database {
     public boolean beginTransaction() {
         try {
             database.beginTransaction();
-            ++transactionLevel;
+            if (++transactionLevel == 1) {
+                synchronized (revisionTrees) {
+                    transactionThread = Thread.currentThread();
+                }
+            }
             Log.i(Log.TAG, "%s Begin transaction (level %d)", Thread.currentThread().getName(), transactionLevel);
         } catch (SQLException e) {
             Log.e(Database.TAG, Thread.currentThread().getName() + " Error calling beginTransaction()", e);
@@ -1186,6 +1536,10 @@ public final class Database {
         }
         else {
             Log.i(Log.TAG, "%s CANCEL transaction (level %d)", Thread.currentThread().getName(), transactionLevel);
+            // Doc IDs and revisions inserted in this transaction are being rolled back, so
+            // forget them:
+            docNumericIDs.evictAll();
+            forgetRevisionTrees();
             try {
                 database.endTransaction();
             } catch (SQLException e) {
@@ -1194,7 +1548,16 @@ public final class Database {
             }
         }
 
-        --transactionLevel;
+        if (--transactionLevel == 0) {
+            synchronized (revisionTrees) {
+                transactionThread = null;
+                if (revisionTreesUncommitted) {
+                    // Trees being loaded by other threads may predate the commit:
+                    revisionTreesUncommitted = false;
+                    ++revisionTreesChangeCount;
+                }
+            }
+        }
         postChangeNotifications();
 
 
@@ -1524,30 +1887,42 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public long getDocNumericID(String docId) {
-        Cursor cursor = null;
-        String[] args = { docId };
+        Long cached = docNumericIDs.get(docId);
+        if (cached != null) {
+            return cached;
+        }
 
         long result = -1;
         try {
-            cursor = database.rawQuery("SELECT doc_id FROM docs WHERE docid=?", args);
-
-            if(cursor.moveToNext()) {
-                result = cursor.getLong(0);
-            }
-            else {
-                result = 0;
+            result = statementCache.queryForLong(0, "SELECT doc_id FROM docs WHERE docid=?", docId);
+            if (result > 0) {
+                docNumericIDs.put(docId, result);
             }
         } catch (Exception e) {
             Log.e(Database.TAG, "Error getting doc numeric id", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
 
         return result;
     }
 
+    /**
+     * Number of getDocNumericID() calls answered from the in-memory cache.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getDocNumericIDCacheHitCount() {
+        return docNumericIDs.hitCount();
+    }
+
+    /**
+     * Number of getDocNumericID() calls that had to query the docs table.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getDocNumericIDCacheMissCount() {
+        return docNumericIDs.missCount();
+    }
+
     /** HISTORY: **/
 
     /**
@@ -1655,7 +2030,6 @@ public final class Database {
             AtomicBoolean hasAttachment
             ) {
 
-        List<String> matchingRevs = new ArrayList<String>();
         int generation = rev.getGeneration();
 
         if (generation <= 1)
@@ -1665,29 +2039,14 @@ public final class Database {
         if (docNumericID <= 0)
             return null;
 
-        int sqlLimit = limit > 0 ? (int)limit : -1;     // SQL uses -1, not 0, to denote 'no limit'
-        String sql = "SELECT revid, sequence FROM revs WHERE doc_id=? and revid < ?" +
-        " and deleted=0 and json not null" +
-        " ORDER BY sequence DESC LIMIT ?";
-        String[] args = {Long.toString(docNumericID),generation+"-",Integer.toString(sqlLimit)};
-
-            Cursor cursor = null;
-            try {
-                cursor = database.rawQuery(sql, args);
-                cursor.moveToNext();
-                if (!cursor.isAfterLast()) {
-                    if (matchingRevs.size() == 0)
-                        hasAttachment.set(sequenceHasAttachments(cursor.getLong(1)));
-                    matchingRevs.add(cursor.getString(0));
-                }
+        RevisionTree tree = getRevisionTree(docNumericID);
+        if (tree == null)
+            return new ArrayList<String>();
 
-            } catch (SQLException e) {
-                Log.e(Database.TAG, "Error getting all revisions of document", e);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
+        List<String> matchingRevs = tree.getPossibleAncestors(generation, limit);
+        if (matchingRevs.size() > 0) {
+            hasAttachment.set(sequenceHasAttachments(tree.getSequence(matchingRevs.get(0))));
+        }
         return matchingRevs;
     }
 
@@ -1697,37 +2056,14 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public String findCommonAncestorOf(RevisionInternal rev, List<String> revIDs) {
-        String result = null;
-
         if (revIDs.size() == 0)
             return null;
         String docId = rev.getDocId();
         long docNumericID = getDocNumericID(docId);
         if (docNumericID <= 0)
             return null;
-        String quotedRevIds = joinQuoted(revIDs);
-        String sql = "SELECT revid FROM revs " +
-                "WHERE doc_id=? and revid in (" + quotedRevIds + ") and revid <= ? " +
-                "ORDER BY revid DESC LIMIT 1";
-        String[] args = {Long.toString(docNumericID)};
-
-        Cursor cursor = null;
-        try {
-            cursor = database.rawQuery(sql, args);
-            cursor.moveToNext();
-            if (!cursor.isAfterLast()) {
-                result = cursor.getString(0);
-            }
-
-        } catch (SQLException e) {
-            Log.e(Database.TAG, "Error getting all revisions of document", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-
-        return result;
+        RevisionTree tree = getRevisionTree(docNumericID);
+        return (tree != null) ? tree.findCommonAncestor(revIDs, rev.getRevId()) : null;
     }
 
     /**
@@ -1748,44 +2084,38 @@ public final class Database {
             return new ArrayList<RevisionInternal>();
         }
 
-        String sql = "SELECT sequence, parent, revid, deleted, json isnull FROM revs " +
-                    "WHERE doc_id=? ORDER BY sequence DESC";
-        String[] args = { Long.toString(docNumericId) };
-        Cursor cursor = null;
+        RevisionTree tree = getRevisionTree(docNumericId);
+        if(tree == null) {
+            return null;
+        }
+        return tree.getHistory(docId, revId, this);
+    }
 
-        List<RevisionInternal> result;
-        try {
-            cursor = database.rawQuery(sql, args);
+    /**
+     * The revision tree of a document, from the cache or else loaded from the 'revs' table.
+     * Returns null on a database error.
+     */
+    private RevisionTree getRevisionTree(long docNumericID) {
+        RevisionTree tree = revisionTrees.get(docNumericID);
+        if (tree != null) {
+            return tree;
+        }
 
-            cursor.moveToNext();
-            long lastSequence = 0;
-            result = new ArrayList<RevisionInternal>();
-            while(!cursor.isAfterLast()) {
-                long sequence = cursor.getLong(0);
-                boolean matches = false;
-                if(lastSequence == 0) {
-                    matches = revId.equals(cursor.getString(2));
-                }
-                else {
-                    matches = (sequence == lastSequence);
-                }
-                if(matches) {
-                    revId = cursor.getString(2);
-                    boolean deleted = (cursor.getInt(3) > 0);
-                    boolean missing = (cursor.getInt(4) > 0);
-                    RevisionInternal aRev = new RevisionInternal(docId, revId, deleted, this);
-                    aRev.setMissing(missing);
-                    aRev.setSequence(cursor.getLong(0));
-                    result.add(aRev);
-                    lastSequence = cursor.getLong(1);
-                    if(lastSequence == 0) {
-                        break;
-                    }
-                }
-                cursor.moveToNext();
+        long changeCount;
+        synchronized (revisionTrees) {
+            changeCount = revisionTreesChangeCount;
+        }
+        tree = new RevisionTree();
+        Cursor cursor = null;
+        try {
+            cursor = statementCache.query("SELECT sequence, parent, revid, deleted, json isnull FROM revs " +
+                    "WHERE doc_id=? ORDER BY sequence", docNumericID);
+            while(cursor.moveToNext()) {
+                tree.add(cursor.getLong(0), cursor.getLong(1), cursor.getString(2),
+                        cursor.getInt(3) > 0, cursor.getInt(4) > 0);
             }
         } catch (SQLException e) {
-            Log.e(Database.TAG, "Error getting revision history", e);
+            Log.e(Database.TAG, "Error getting revision tree", e);
             return null;
         } finally {
             if(cursor != null) {
@@ -1793,22 +2123,90 @@ public final class Database {
             }
         }
 
-        return result;
+        synchronized (revisionTrees) {
+            cacheRevisionTree(docNumericID, tree, changeCount);
+        }
+        return tree;
     }
 
     /**
-     * Splits a revision ID into its generation number and opaque suffix string
-     * @exclude
+     * Caches a tree that was loaded after reading changeCount, unless it may be missing a change:
+     * because a revision was added or removed while it was being read, or because it was read on
+     * another thread than the one whose transaction has uncommitted changes, i.e. on a connection
+     * that can't see them. A tree too big for the cache isn't cached at all, rather than evicting
+     * everything else. Must be called with revisionTrees locked.
      */
-    @InterfaceAudience.Private
-    public static int parseRevIDNumber(String rev) {
-        int result = -1;
-        int dashPos = rev.indexOf("-");
-        if(dashPos >= 0) {
-            try {
-                result = Integer.parseInt(rev.substring(0, dashPos));
-            } catch (NumberFormatException e) {
-                // ignore, let it return -1
+    private void cacheRevisionTree(long docNumericID, RevisionTree tree, long changeCount) {
+        if (changeCount != revisionTreesChangeCount) {
+            return;
+        }
+        if (revisionTreesUncommitted && transactionThread != Thread.currentThread()) {
+            return;
+        }
+        if (tree.size() > revisionTrees.maxSize()) {
+            return;
+        }
+        revisionTrees.put(docNumericID, tree);
+    }
+
+    /**
+     * Notes a change to the revs table, which, inside a transaction, other connections won't see
+     * until it's committed. Must be called with revisionTrees locked.
+     */
+    private void revisionTreesChanged() {
+        ++revisionTreesChangeCount;
+        if (transactionThread != null) {
+            revisionTreesUncommitted = true;
+        }
+    }
+
+    /**
+     * Adds a newly inserted revision to its document's cached tree, if there is one.
+     */
+    private void revisionInserted(long docNumericID, long sequence, long parentSequence, String revID,
+                                  boolean deleted, boolean missing) {
+        synchronized (revisionTrees) {
+            revisionTreesChanged();
+            RevisionTree tree = revisionTrees.get(docNumericID);
+            if (tree != null) {
+                tree.add(sequence, parentSequence, revID, deleted, missing);
+                if (tree.size() > revisionTrees.maxSize()) {
+                    revisionTrees.remove(docNumericID);
+                } else {
+                    // Put it again so the cache accounts for its new size:
+                    revisionTrees.put(docNumericID, tree);
+                }
+            }
+        }
+    }
+
+    private void forgetRevisionTree(long docNumericID) {
+        synchronized (revisionTrees) {
+            revisionTreesChanged();
+            revisionTrees.remove(docNumericID);
+        }
+    }
+
+    /* package */ void forgetRevisionTrees() {
+        synchronized (revisionTrees) {
+            revisionTreesChanged();
+            revisionTrees.evictAll();
+        }
+    }
+
+    /**
+     * Splits a revision ID into its generation number and opaque suffix string
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public static int parseRevIDNumber(String rev) {
+        int result = -1;
+        int dashPos = rev.indexOf("-");
+        if(dashPos >= 0) {
+            try {
+                result = Integer.parseInt(rev.substring(0, dashPos));
+            } catch (NumberFormatException e) {
+                // ignore, let it return -1
             }
         }
         return result;
@@ -1972,15 +2370,37 @@ public final class Database {
     }
 
     /**
+     * Returns an enumerator that streams the changes since lastSeq in sequence order, a page at
+     * a time, instead of loading them all into memory like changesSince() does.
      * @exclude
      */
     @InterfaceAudience.Private
-    public boolean runFilter(ReplicationFilter filter, Map<String, Object> paramsIgnored, RevisionInternal rev) {
+    public ChangesEnumerator enumerateChangesSince(long lastSeq, ChangesOptions options, ReplicationFilter filter) {
+        return enumerateChangesSince(lastSeq, options, filter, null);
+    }
+
+    /**
+     * Like enumerateChangesSince(lastSeq, options, filter), passing the given parameters to the
+     * filter.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public ChangesEnumerator enumerateChangesSince(long lastSeq, ChangesOptions options, ReplicationFilter filter,
+                                                   Map<String, Object> filterParams) {
+        return new ChangesEnumerator(this, lastSeq, options, filter, filterParams,
+                ChangesEnumerator.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public boolean runFilter(ReplicationFilter filter, Map<String, Object> filterParams, RevisionInternal rev) {
         if (filter == null) {
             return true;
         }
         SavedRevision publicRev = new SavedRevision(this, rev);
-        return filter.filter(publicRev, null);
+        return filter.filter(publicRev, filterParams);
     }
 
     /**
@@ -2026,6 +2446,34 @@ public final class Database {
         return view;
     }
 
+    /**
+     * Updates a view's index before querying it, as the options' stale setting says.
+     * @return the last sequence indexed
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    /* package */ long updateIndexForQuery(final View view, QueryOptions options) throws CouchbaseLiteException {
+        long lastSequence = view.getLastSequenceIndexed();
+        if (options.getStale() == Query.IndexUpdateMode.BEFORE || lastSequence <= 0) {
+            view.updateIndex();
+            lastSequence = view.getLastSequenceIndexed();
+        } else if (options.getStale() == Query.IndexUpdateMode.AFTER && lastSequence < getLastSequenceNumber()) {
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        view.updateIndex();
+                    } catch (CouchbaseLiteException e) {
+                        Log.e(Database.TAG, "Error updating view index on background thread", e);
+                    }
+                }
+            }).start();
+
+        }
+        return lastSequence;
+    }
+
     /**
      * @exclude
      */
@@ -2041,24 +2489,7 @@ public final class Database {
             if (view == null) {
                 throw new CouchbaseLiteException(new Status(Status.NOT_FOUND));
             }
-            lastSequence = view.getLastSequenceIndexed();
-            if (options.getStale() == Query.IndexUpdateMode.BEFORE || lastSequence <= 0) {
-                view.updateIndex();
-                lastSequence = view.getLastSequenceIndexed();
-            } else if (options.getStale() == Query.IndexUpdateMode.AFTER && lastSequence < getLastSequenceNumber()) {
-
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            view.updateIndex();
-                        } catch (CouchbaseLiteException e) {
-                            Log.e(Database.TAG, "Error updating view index on background thread", e);
-                        }
-                    }
-                }).start();
-
-            }
+            lastSequence = updateIndexForQuery(view, options);
             rows = view.queryWithOptions(options);
 
 
@@ -2122,6 +2553,34 @@ public final class Database {
         return result;
     }
 
+    /**
+     * Brings the indexes of all stale views up to date, in a single pass over the revisions
+     * added since the stalest of them was last indexed. Each changed document is read and
+     * parsed once and fed to every view that is behind, which is much cheaper than updating
+     * the views one at a time. Views whose map function hasn't been defined yet are skipped.
+     */
+    @InterfaceAudience.Public
+    public void updateAllViewIndexes() throws CouchbaseLiteException {
+        List<View> allViews = getAllViews();
+        if (allViews == null) {
+            throw new CouchbaseLiteException(new Status(Status.DB_ERROR));
+        }
+        long lastSequence = getLastSequenceNumber();
+        List<View> staleViews = new ArrayList<View>();
+        for (View view : allViews) {
+            if (view.getMap() == null || view.getViewId() <= 0) {
+                continue;
+            }
+            if (view.getLastSequenceIndexed() < lastSequence) {
+                staleViews.add(view);
+            }
+        }
+        if (staleViews.isEmpty()) {
+            return;
+        }
+        View.updateIndexes(this, staleViews);
+    }
+
     /**
      * @exclude
      */
@@ -2135,6 +2594,10 @@ public final class Database {
                 }
             }
             String[] whereArgs = { name };
+            long viewId = statementCache.queryForLong(0, "SELECT view_id FROM views WHERE name=?", name);
+            if (viewId > 0) {
+                ReduceCache.dropTriggers(this, (int) viewId);
+            }
             int rowsAffected = database.delete("views", "name=?", whereArgs);
             if(rowsAffected > 0) {
                 result.setCode(Status.OK);
@@ -2204,13 +2667,13 @@ public final class Database {
         List<String> args = new ArrayList<String>();
         Object minKey = options.getStartKey();
         Object maxKey = options.getEndKey();
-        boolean inclusiveMin = true;
+        boolean inclusiveMin = options.isInclusiveStart();
         boolean inclusiveMax = options.isInclusiveEnd();
         if (options.isDescending()) {
             minKey = maxKey;
             maxKey = options.getStartKey();
             inclusiveMin = inclusiveMax;
-            inclusiveMax = true;
+            inclusiveMax = options.isInclusiveStart();
         }
         if (minKey != null) {
             assert(minKey instanceof String);
@@ -2623,6 +3086,28 @@ public final class Database {
     }
 
 
+    /**
+     * The "data" of an inline attachment: the base64 string of a small blob, from the cache if
+     * possible, or an InlineAttachmentData that streams a larger one when serialized.
+     * Returns null if the blob is missing.
+     */
+    private Object inlineAttachmentData(BlobKey key) {
+        long blobLength = attachments.getSizeOfBlob(key);
+        if (blobLength > INLINE_ATTACHMENT_CACHE_MAX_LENGTH) {
+            return new InlineAttachmentData(attachments, key, blobLength);
+        }
+        String base64 = inlineAttachmentCache.get(key);
+        if (base64 == null) {
+            byte[] data = attachments.blobForKey(key);
+            if (data == null) {
+                return null;
+            }
+            base64 = Base64.encodeBytes(data);
+            inlineAttachmentCache.put(key, base64);
+        }
+        return base64;
+    }
+
     /**
      * Constructs an "_attachments" dictionary for a revision, to be inserted in its JSON body.
      * @exclude
@@ -2651,19 +3136,15 @@ public final class Database {
                 byte[] keyData = cursor.getBlob(1);
                 BlobKey key = new BlobKey(keyData);
                 String digestString = "sha1-" + Base64.encodeBytes(keyData);
-                String dataBase64 = null;
+                Object dataBase64 = null;
                 if(contentOptions.contains(TDContentOptions.TDIncludeAttachments)) {
                     if (contentOptions.contains(TDContentOptions.TDBigAttachmentsFollow) &&
                             length >= Database.kBigAttachmentLength) {
                         dataSuppressed = true;
                     }
                     else {
-                        byte[] data = attachments.blobForKey(key);
-
-                        if(data != null) {
-                            dataBase64 = Base64.encodeBytes(data);  // <-- very expensive
-                        }
-                        else {
+                        dataBase64 = inlineAttachmentData(key);
+                        if(dataBase64 == null) {
                             Log.w(Database.TAG, "Error loading attachment.  Sequence: %s", sequence);
                         }
 
@@ -3045,49 +3526,38 @@ public final class Database {
 
      /**
       * Deletes obsolete attachments from the sqliteDb and blob store.
+      *
+      * Only the blobs whose last reference went away since the previous collection are looked
+      * at (see AttachmentCollector), so this is cheap enough to run often.
       * @exclude
       */
      @InterfaceAudience.Private
     public Status garbageCollectAttachments() {
-        // First delete attachment rows for already-cleared revisions:
-        // OPT: Could start after last sequence# we GC'd up to
-
         try {
-            database.execSQL("DELETE FROM attachments WHERE sequence IN " +
-                    "(SELECT sequence from revs WHERE json IS null)");
-        }
-        catch(SQLException e) {
-            Log.e(Database.TAG, "Error deleting attachments", e);
+            int numDeleted = new AttachmentCollector(this).collect();
+            Log.v(Database.TAG, "Deleted %d attachments", numDeleted);
+            return new Status(Status.OK);
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error deleting unreferenced attachments", e);
+            return new Status(Status.INTERNAL_SERVER_ERROR);
         }
+    }
 
-        // Now collect all remaining attachment IDs and tell the store to delete all but these:
-        Cursor cursor = null;
+    /**
+     * Deletes every blob in the store that no attachment refers to, including ones that were
+     * never referenced at all, e.g. left over from a failed insertion. This reads every blob
+     * key, so only compact() does it.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Status sweepAttachments() {
         try {
-            cursor = database.rawQuery("SELECT DISTINCT key FROM attachments", null);
-
-            cursor.moveToNext();
-            List<BlobKey> allKeys = new ArrayList<BlobKey>();
-            while(!cursor.isAfterLast()) {
-                BlobKey key = new BlobKey(cursor.getBlob(0));
-                allKeys.add(key);
-                cursor.moveToNext();
-            }
-
-            int numDeleted = attachments.deleteBlobsExceptWithKeys(allKeys);
-            if(numDeleted < 0) {
-                return new Status(Status.INTERNAL_SERVER_ERROR);
-            }
-
-            Log.v(Database.TAG, "Deleted %d attachments", numDeleted);
-
+            int numDeleted = new AttachmentCollector(this).sweep();
+            Log.v(Database.TAG, "Swept %d unreferenced attachments", numDeleted);
             return new Status(Status.OK);
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error finding attachment keys in use", e);
             return new Status(Status.INTERNAL_SERVER_ERROR);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
     }
 
@@ -3192,9 +3662,10 @@ public final class Database {
     public long insertDocumentID(String docId) {
         long rowId = -1;
         try {
-            ContentValues args = new ContentValues();
-            args.put("docid", docId);
-            rowId = database.insert("docs", null, args);
+            rowId = statementCache.executeInsert("INSERT INTO docs (docid) VALUES (?)", docId);
+            if (rowId > 0) {
+                docNumericIDs.put(docId, rowId);
+            }
         } catch (Exception e) {
             Log.e(Database.TAG, "Error inserting document id", e);
         }
@@ -3380,18 +3851,13 @@ public final class Database {
     public long insertRevision(RevisionInternal rev, long docNumericID, long parentSequence, boolean current, boolean hasAttachments, byte[] data) {
         long rowId = 0;
         try {
-            ContentValues args = new ContentValues();
-            args.put("doc_id", docNumericID);
-            args.put("revid", rev.getRevId());
-            if(parentSequence != 0) {
-                args.put("parent", parentSequence);
-            }
-            args.put("current", current);
-            args.put("deleted", rev.isDeleted());
-            args.put("no_attachments",!hasAttachments);
-            args.put("json", data);
-            rowId = database.insert("revs", null, args);
+            rowId = statementCache.executeInsert(
+                    "INSERT INTO revs (doc_id, revid, parent, current, deleted, no_attachments, json) "
+                            + "VALUES (?, ?, ?, ?, ?, ?, ?)",
+                    docNumericID, rev.getRevId(), (parentSequence != 0) ? parentSequence : null,
+                    current, rev.isDeleted(), !hasAttachments, data);
             rev.setSequence(rowId);
+            revisionInserted(docNumericID, rowId, parentSequence, rev.getRevId(), rev.isDeleted(), data == null);
         } catch (Exception e) {
             Log.e(Database.TAG, "Error inserting revision", e);
         }
@@ -3677,25 +4143,14 @@ public final class Database {
     private long getSequenceOfDocument(long docNumericId, String revId, boolean onlyCurrent) {
 
         long result = -1;
-        Cursor cursor = null;
         try {
-            String extraSql = (onlyCurrent ? "AND current=1" : "");
-            String sql = String.format("SELECT sequence FROM revs WHERE doc_id=? AND revid=? %s LIMIT 1", extraSql);
-            String[] args = { ""+docNumericId, revId };
-            cursor = database.rawQuery(sql, args);
-
-            if(cursor.moveToNext()) {
-                result = cursor.getLong(0);
-            }
-            else {
-                result = 0;
-            }
+            // Two constant SQL strings, so that both variants stay in the statement cache.
+            String sql = onlyCurrent
+                    ? "SELECT sequence FROM revs WHERE doc_id=? AND revid=? AND current=1 LIMIT 1"
+                    : "SELECT sequence FROM revs WHERE doc_id=? AND revid=? LIMIT 1";
+            result = statementCache.queryForLong(0, sql, docNumericId, revId);
         } catch (Exception e) {
             Log.e(Database.TAG, "Error getting getSequenceOfDocument", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
         return result;
     }
@@ -3718,12 +4173,16 @@ public final class Database {
             Map<String, Object> attachInfo = (Map<String, Object>) revAttachments.get(name);
             String contentType = (String) attachInfo.get("content_type");
             AttachmentInternal attachment = new AttachmentInternal(name, contentType);
-            String newContentBase64 = (String) attachInfo.get("data");
+            Object newContentBase64 = attachInfo.get("data");
             if (newContentBase64 != null) {
                 // If there's inline attachment data, decode and store it:
                 byte[] newContents;
                 try {
-                    newContents = Base64.decode(newContentBase64);
+                    if (newContentBase64 instanceof InlineAttachmentData) {
+                        newContents = ((InlineAttachmentData) newContentBase64).getBytes();
+                    } else {
+                        newContents = Base64.decode((String) newContentBase64);
+                    }
                 } catch (IOException e) {
                     throw new CouchbaseLiteException(e, Status.BAD_ENCODING);
                 }
@@ -3940,6 +4399,292 @@ public final class Database {
 
     }
 
+    /**
+     * Inserts a batch of already-existing revisions replicated from a remote database, with the
+     * same semantics as calling forceInsert() on each of them in order.
+     *
+     * Instead of querying the docs and revs tables once per revision, all the document IDs are
+     * resolved, and all their revision trees loaded into the cache, with a few set-based queries
+     * up front. The cached trees are then kept up to date as the batch is inserted. All of the
+     * resulting changes are posted as a single ChangeEvent once the outermost transaction ends.
+     *
+     * @param revHistories the history of each revision, in the same order as revs
+     * @return the status of each insertion, in the same order as revs: CREATED on success,
+     *         otherwise the status forceInsert() would have thrown for that revision
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<Status> forceInsertBatch(List<RevisionInternal> revs, List<List<String>> revHistories, URL source) throws CouchbaseLiteException {
+
+        if (revs.size() != revHistories.size()) {
+            throw new CouchbaseLiteException(Status.BAD_REQUEST);
+        }
+
+        List<Status> results = new ArrayList<Status>(revs.size());
+        boolean success = false;
+        beginTransaction();
+        try {
+            // Resolve all the doc IDs and load their local revisions up front:
+            Set<String> docIds = new HashSet<String>();
+            for (RevisionInternal rev : revs) {
+                if (isValidDocumentId(rev.getDocId())) {
+                    docIds.add(rev.getDocId());
+                }
+            }
+            Map<String, Long> numericIDs = getOrInsertDocNumericIDs(docIds);
+            loadRevisionTrees(numericIDs.values());
+
+            for (int i = 0; i < revs.size(); i++) {
+                RevisionInternal rev = revs.get(i);
+                Long docNumericID = numericIDs.get(rev.getDocId());
+                try {
+                    if (docNumericID == null) {
+                        throw new CouchbaseLiteException(Status.BAD_REQUEST);
+                    }
+                    forceInsertIntoTree(rev, revHistories.get(i), source, docNumericID);
+                    results.add(new Status(Status.CREATED));
+                } catch (CouchbaseLiteException e) {
+                    // Rolling back the insertion's transaction has evicted the cached trees, so
+                    // the next revision's is reloaded from the database.
+                    results.add(e.getCBLStatus());
+                }
+            }
+            success = true;
+
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        } finally {
+            endTransaction(success);
+        }
+        return results;
+    }
+
+    /**
+     * Inserts one revision of a batch, matching its history against the document's cached
+     * revision tree, which insertRevision() keeps up to date.
+     */
+    private void forceInsertIntoTree(RevisionInternal rev, List<String> revHistory, URL source, long docNumericID) throws CouchbaseLiteException {
+
+        String docId = rev.getDocId();
+        String revId = rev.getRevId();
+        if(revId == null) {
+            throw new CouchbaseLiteException(Status.BAD_REQUEST);
+        }
+
+        int historyCount = 0;
+        if (revHistory != null) {
+            historyCount = revHistory.size();
+        }
+        if(historyCount == 0) {
+            revHistory = new ArrayList<String>();
+            revHistory.add(revId);
+            historyCount = 1;
+        } else if(!revHistory.get(0).equals(rev.getRevId())) {
+            throw new CouchbaseLiteException(Status.BAD_REQUEST);
+        }
+
+        RevisionTree tree = getRevisionTree(docNumericID);
+        if (tree == null) {
+            throw new CouchbaseLiteException(Status.DB_ERROR);
+        }
+
+        boolean success = false;
+        beginTransaction();
+        try {
+            // Validate against the latest common ancestor:
+            if(validations != null && validations.size() > 0) {
+                RevisionInternal oldRev = null;
+                for (int i = 1; i < historyCount; i++) {
+                    oldRev = tree.getRevision(docId, revHistory.get(i), this);
+                    if (oldRev != null) {
+                        break;
+                    }
+                }
+                String parentRevId = (historyCount > 1) ? revHistory.get(1) : null;
+                validateRevision(rev, oldRev, parentRevId);
+            }
+
+            RevisionInternal oldWinner = tree.getWinningRevision(docId, this);
+            String oldWinningRevID = (oldWinner != null) ? oldWinner.getRevId() : null;
+            boolean oldWinnerWasDeletion = (oldWinner != null) && oldWinner.isDeleted();
+            boolean inConflict = tree.isInConflict();
+
+            // Walk through the remote history in chronological order, matching each revision ID to
+            // a local revision. When the list diverges, start creating blank local revisions to fill
+            // in the local history:
+            long sequence = 0;
+            long localParentSequence = 0;
+            for(int i = revHistory.size() - 1; i >= 0; --i) {
+                revId = revHistory.get(i);
+                long localSequence = tree.getSequence(revId);
+                if(localSequence > 0) {
+                    // This revision is known locally. Remember its sequence as the parent of the next one:
+                    sequence = localSequence;
+                    localParentSequence = sequence;
+                }
+                else {
+                    // This revision isn't known, so add it:
+                    RevisionInternal newRev;
+                    byte[] data = null;
+                    boolean current = false;
+                    if(i == 0) {
+                        // Hey, this is the leaf revision we're inserting:
+                        newRev = rev;
+                        if(!rev.isDeleted()) {
+                            data = encodeDocumentJSON(rev);
+                            if(data == null) {
+                                throw new CouchbaseLiteException(Status.BAD_REQUEST);
+                            }
+                        }
+                        current = true;
+                    }
+                    else {
+                        // It's an intermediate parent, so insert a stub:
+                        newRev = new RevisionInternal(docId, revId, false, this);
+                    }
+
+                    // Insert it:
+                    sequence = insertRevision(newRev, docNumericID, sequence, current, (newRev.getAttachments().size() > 0), data);
+
+                    if(sequence <= 0) {
+                        throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+                    }
+
+                    if(i == 0) {
+                        // Write any changed attachments for the new revision. As the parent sequence use
+                        // the latest local revision (this is to copy attachments from):
+                        Map<String, AttachmentInternal> attachments = getAttachmentsFromRevision(rev);
+                        if (attachments != null) {
+                            processAttachmentsForRevision(attachments, rev, localParentSequence);
+                            stubOutAttachmentsInRevision(attachments, rev);
+                        }
+                    }
+                }
+            }
+
+            // Mark the latest local rev as no longer current:
+            if(localParentSequence > 0 && localParentSequence != sequence) {
+                int numRowsChanged = statementCache.executeUpdateDelete(
+                        "UPDATE revs SET current=0 WHERE sequence=? AND current!=0", localParentSequence);
+                if (numRowsChanged == 0) {
+                    inConflict = true;  // local parent wasn't a leaf, ergo we just created a branch
+                }
+            }
+
+            RevisionInternal winningRev = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion, rev);
+
+            success = true;
+
+            // Notify and return:
+            notifyChange(rev, winningRev, source, inConflict);
+
+        } catch(SQLException e) {
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            endTransaction(success);
+        }
+    }
+
+    /**
+     * Looks up the numeric IDs of a set of documents, inserting the ones that don't exist yet.
+     */
+    private Map<String, Long> getOrInsertDocNumericIDs(Set<String> docIds) throws CouchbaseLiteException {
+        Map<String, Long> result = new HashMap<String, Long>();
+        List<String> uncached = new ArrayList<String>();
+        for (String docId : docIds) {
+            Long cached = docNumericIDs.get(docId);
+            if (cached != null) {
+                result.put(docId, cached);
+            } else {
+                uncached.add(docId);
+            }
+        }
+
+        for (int start = 0; start < uncached.size(); start += SQL_IN_CHUNK_SIZE) {
+            List<String> chunk = uncached.subList(start, Math.min(start + SQL_IN_CHUNK_SIZE, uncached.size()));
+            String sql = "SELECT docid, doc_id FROM docs WHERE docid IN (" + placeholders(chunk.size()) + ")";
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql, chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    long docNumericID = cursor.getLong(1);
+                    result.put(cursor.getString(0), docNumericID);
+                    docNumericIDs.put(cursor.getString(0), docNumericID);
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        for (String docId : uncached) {
+            if (!result.containsKey(docId)) {
+                long docNumericID = insertDocumentID(docId);
+                if (docNumericID <= 0) {
+                    throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+                }
+                result.put(docId, docNumericID);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Puts the revision trees of a set of documents into the cache, reading all the ones that
+     * aren't there already with a few queries rather than one per document. On a database error
+     * the trees are left to be loaded one at a time by getRevisionTree().
+     */
+    private void loadRevisionTrees(Collection<Long> docNumericIDs) {
+        Map<Long, RevisionTree> trees = new HashMap<Long, RevisionTree>();
+        List<String> args = new ArrayList<String>(docNumericIDs.size());
+        for (Long docNumericID : docNumericIDs) {
+            if (revisionTrees.get(docNumericID) == null) {
+                trees.put(docNumericID, new RevisionTree());
+                args.add(Long.toString(docNumericID));
+            }
+        }
+
+        long changeCount;
+        synchronized (revisionTrees) {
+            changeCount = revisionTreesChangeCount;
+        }
+        for (int start = 0; start < args.size(); start += SQL_IN_CHUNK_SIZE) {
+            List<String> chunk = args.subList(start, Math.min(start + SQL_IN_CHUNK_SIZE, args.size()));
+            String sql = "SELECT doc_id, sequence, parent, revid, deleted, json isnull FROM revs " +
+                    "WHERE doc_id IN (" + placeholders(chunk.size()) + ") ORDER BY sequence";
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql, chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    trees.get(cursor.getLong(0)).add(cursor.getLong(1), cursor.getLong(2),
+                            cursor.getString(3), cursor.getInt(4) > 0, cursor.getInt(5) > 0);
+                }
+            } catch (SQLException e) {
+                Log.e(Database.TAG, "Error getting revision trees", e);
+                return;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        synchronized (revisionTrees) {
+            for (Map.Entry<Long, RevisionTree> entry : trees.entrySet()) {
+                cacheRevisionTree(entry.getKey(), entry.getValue(), changeCount);
+            }
+        }
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.toString();
+    }
+
     /** VALIDATION **/
 
     /**
@@ -4159,35 +4904,96 @@ public final class Database {
             return numRevisionsRemoved;
         }
 
-        String quotedDocIds = joinQuoted(touchRevs.getAllDocIds());
-        String quotedRevIds = joinQuoted(touchRevs.getAllRevIds());
-
-        String sql = "SELECT docid, revid FROM revs, docs " +
-                      "WHERE docid IN (" +
-                      quotedDocIds +
-                      ") AND revid in (" +
-                      quotedRevIds + ")" +
-                      " AND revs.doc_id == docs.doc_id";
+        // Index the revisions by doc ID and rev ID, so each result row is matched in constant time
+        // and only exact (docid, revid) pairs are removed:
+        Map<String, Set<String>> revIdsByDocId = new HashMap<String, Set<String>>();
+        for (RevisionInternal rev : touchRevs) {
+            Set<String> revIds = revIdsByDocId.get(rev.getDocId());
+            if (revIds == null) {
+                revIds = new HashSet<String>();
+                revIdsByDocId.put(rev.getDocId(), revIds);
+            }
+            revIds.add(rev.getRevId());
+        }
+
+        // Split the rev IDs of a document that has too many to fit in one query along with its
+        // doc ID:
+        List<String> pieceDocIds = new ArrayList<String>();
+        List<List<String>> pieceRevIds = new ArrayList<List<String>>();
+        for (Map.Entry<String, Set<String>> entry : revIdsByDocId.entrySet()) {
+            List<String> revIds = new ArrayList<String>(entry.getValue());
+            for (int i = 0; i < revIds.size(); i += SQL_IN_CHUNK_SIZE - 1) {
+                pieceDocIds.add(entry.getKey());
+                pieceRevIds.add(revIds.subList(i, Math.min(i + SQL_IN_CHUNK_SIZE - 1, revIds.size())));
+            }
+        }
+
+        // Query in chunks of bound parameters, each with its own doc IDs and the rev IDs wanted
+        // for them:
+        Map<String, Set<String>> found = new HashMap<String, Set<String>>();
+        int start = 0;
+        while (start < pieceDocIds.size()) {
+            List<String> chunkDocIds = new ArrayList<String>();
+            Set<String> chunkRevIds = new HashSet<String>();
+            while (start < pieceDocIds.size()) {
+                List<String> revIds = pieceRevIds.get(start);
+                if (!chunkDocIds.isEmpty()
+                        && chunkDocIds.size() + chunkRevIds.size() + 1 + revIds.size() > SQL_IN_CHUNK_SIZE) {
+                    break;
+                }
+                chunkDocIds.add(pieceDocIds.get(start));
+                chunkRevIds.addAll(revIds);
+                ++start;
+            }
 
-        Cursor cursor = null;
-        try {
-            cursor = database.rawQuery(sql, null);
-            cursor.moveToNext();
-            while(!cursor.isAfterLast()) {
-                RevisionInternal rev = touchRevs.revWithDocIdAndRevId(cursor.getString(0), cursor.getString(1));
+            String sql = "SELECT docid, revid FROM revs, docs " +
+                          "WHERE docid IN (" + placeholders(chunkDocIds.size()) + ")" +
+                          " AND revid IN (" + placeholders(chunkRevIds.size()) + ")" +
+                          " AND revs.doc_id == docs.doc_id";
+            List<String> args = new ArrayList<String>(chunkDocIds.size() + chunkRevIds.size());
+            args.addAll(chunkDocIds);
+            args.addAll(chunkRevIds);
 
-                if(rev != null) {
-                    touchRevs.remove(rev);
-                    numRevisionsRemoved += 1;
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql, args.toArray(new String[args.size()]));
+                while(cursor.moveToNext()) {
+                    String docId = cursor.getString(0);
+                    String revId = cursor.getString(1);
+                    // The IN clauses match a cross product, so check the pair was actually asked for:
+                    if (revIdsByDocId.get(docId).contains(revId)) {
+                        Set<String> foundRevIds = found.get(docId);
+                        if (foundRevIds == null) {
+                            foundRevIds = new HashSet<String>();
+                            found.put(docId, foundRevIds);
+                        }
+                        foundRevIds.add(revId);
+                    }
+                }
+            } finally {
+                if(cursor != null) {
+                    cursor.close();
                 }
-
-                cursor.moveToNext();
             }
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+        }
+
+        if (found.isEmpty()) {
+            return numRevisionsRemoved;
+        }
+
+        // Remove the existing revisions in a single pass, rather than shifting the list once per
+        // removal:
+        List<RevisionInternal> missing = new ArrayList<RevisionInternal>(touchRevs.size());
+        for (RevisionInternal rev : touchRevs) {
+            Set<String> foundRevIds = found.get(rev.getDocId());
+            if (foundRevIds != null && foundRevIds.contains(rev.getRevId())) {
+                numRevisionsRemoved += 1;
+            } else {
+                missing.add(rev);
             }
         }
+        touchRevs.clear();
+        touchRevs.addAll(missing);
         return numRevisionsRemoved;
     }
 
@@ -4435,6 +5241,8 @@ public final class Database {
 
                     }
 
+                    docNumericIDs.remove(docID);
+                    forgetRevisionTree(docNumericID);
                     result.put(docID, revsPurged);
 
                 }
@@ -4620,6 +5428,7 @@ public final class Database {
                 int rowsDeleted = database.delete("revs", "doc_id=? AND revid < ? AND current=0", deleteArgs);
                 outPruned += rowsDeleted;
             }
+            forgetRevisionTrees();
 
             shouldCommit = true;
 
@@ -0,0 +1,63 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+/**
+ * Sizes of the Manager's thread pools:
+ *
+ * - replication: single-threaded executors that run replications' work and
+ *   Database.runAsync() tasks. Each database is assigned one of them, so the replications and
+ *   async tasks of a database never run concurrently with each other, while different databases
+ *   can make progress in parallel.
+ * - query: runs Query.runAsync() and LiveQuery updates, so a slow query doesn't hold up
+ *   replication.
+ * - index: runs map functions while view indexes are updated in parallel (see
+ *   ManagerOptions.setIndexParallelism()).
+ */
+@InterfaceAudience.Public
+public class ExecutorOptions {
+
+    private int replicationThreads = 2;
+    private int queryThreads = 2;
+    private int indexThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    public int getReplicationThreads() {
+        return replicationThreads;
+    }
+
+    /**
+     * Sets the number of single-threaded replication executors databases are spread over.
+     */
+    public void setReplicationThreads(int replicationThreads) {
+        this.replicationThreads = checkPositive(replicationThreads, "replicationThreads");
+    }
+
+    public int getQueryThreads() {
+        return queryThreads;
+    }
+
+    /**
+     * Sets the number of threads that run asynchronous and live queries.
+     */
+    public void setQueryThreads(int queryThreads) {
+        this.queryThreads = checkPositive(queryThreads, "queryThreads");
+    }
+
+    public int getIndexThreads() {
+        return indexThreads;
+    }
+
+    /**
+     * Sets the number of threads that run map functions, shared by all views.
+     */
+    public void setIndexThreads(int indexThreads) {
+        this.indexThreads = checkPositive(indexThreads, "indexThreads");
+    }
+
+    private static int checkPositive(int value, String name) {
+        if (value < 1) {
+            throw new IllegalArgumentException(name + " < 1");
+        }
+        return value;
+    }
+}
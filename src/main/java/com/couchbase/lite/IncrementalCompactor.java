@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.Database.CompactionListener;
+import com.couchbase.lite.Database.CompactionPhase;
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteStatementCache;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compacts a database in many small steps, each in a transaction of its own, so that other
+ * threads can read and write the database in between and compaction can run under live
+ * traffic. It does what Database.compact() does, but:
+ *
+ * - revision trees are pruned a few documents at a time,
+ * - the bodies of non-current revisions are cleared a bounded number of rows at a time,
+ * - instead of a full VACUUM, which rewrites the whole file while holding the database, free
+ *   pages are returned to the file system with incremental_vacuum, a bounded number at a time.
+ *   That needs auto_vacuum=INCREMENTAL, which new databases get; an older database is switched
+ *   over by its next full compact().
+ *
+ * The thread running it may be interrupted to stop it between steps.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+final class IncrementalCompactor {
+
+    static final int DOCS_PER_STEP = 100;
+    static final int REVS_PER_STEP = 500;
+    static final int PAGES_PER_STEP = 256;
+
+    private static final String COUNT_BODIES_SQL =
+            "SELECT COUNT(*) FROM revs WHERE current=0 AND json NOT NULL";
+
+    private static final String CLEAR_BODIES_SQL =
+            "UPDATE revs SET json=null WHERE sequence IN "
+                    + "(SELECT sequence FROM revs WHERE current=0 AND json NOT NULL LIMIT ?)";
+
+    private static final String PRUNE_DOC_SQL =
+            "DELETE FROM revs WHERE doc_id=? AND revid < ? AND current=0";
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final Database database;
+    private final SQLiteStatementCache statements;
+    private final CompactionListener listener;
+
+    IncrementalCompactor(Database database, CompactionListener listener) {
+        this.database = database;
+        this.statements = database.getStatementCache();
+        this.listener = listener;
+    }
+
+    /**
+     * Runs the whole compaction.
+     * @throws InterruptedException if the thread was interrupted, between two steps
+     */
+    void run() throws CouchbaseLiteException, InterruptedException {
+        long start = System.currentTimeMillis();
+        try {
+            prune();
+            clearBodies();
+            collectAttachments();
+            vacuum();
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        }
+        progress(CompactionPhase.DONE, 1, 1);
+        Log.v(Database.TAG, "Incremental compaction of %s took %d ms", database.getName(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Deletes the non-current revisions deeper than the max rev tree depth.
+     */
+    private void prune() throws SQLException, CouchbaseLiteException, InterruptedException {
+        int maxDepth = database.getMaxRevTreeDepth();
+        List<long[]> toPrune = new ArrayList<long[]>();
+        Cursor cursor = database.getDatabase().rawQuery(
+                "SELECT doc_id, MIN(revid), MAX(revid) FROM revs GROUP BY doc_id", null);
+        try {
+            while (cursor.moveToNext()) {
+                int minGen = Revision.generationFromRevID(cursor.getString(1));
+                int maxGen = Revision.generationFromRevID(cursor.getString(2));
+                if ((maxGen - minGen + 1) > maxDepth) {
+                    // Keep the generations above maxGen - maxDepth:
+                    toPrune.add(new long[]{cursor.getLong(0), maxGen - maxDepth + 1});
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int done = 0;
+        progress(CompactionPhase.PRUNING, 0, toPrune.size());
+        while (done < toPrune.size()) {
+            checkInterrupted();
+            int end = Math.min(done + DOCS_PER_STEP, toPrune.size());
+            boolean success = false;
+            database.beginTransaction();
+            try {
+                for (long[] doc : toPrune.subList(done, end)) {
+                    statements.execute(PRUNE_DOC_SQL, doc[0], String.format("%d-", doc[1]));
+                }
+                success = true;
+            } finally {
+                database.endTransaction(success);
+            }
+            database.forgetRevisionTrees();
+            done = end;
+            progress(CompactionPhase.PRUNING, done, toPrune.size());
+        }
+    }
+
+    /**
+     * Removes the JSON of non-current revisions, which is most of the space.
+     */
+    private void clearBodies() throws SQLException, InterruptedException {
+        long total = statements.queryForLong(0, COUNT_BODIES_SQL);
+        long done = 0;
+        progress(CompactionPhase.CLEARING_BODIES, 0, total);
+        while (true) {
+            checkInterrupted();
+            int cleared;
+            boolean success = false;
+            database.beginTransaction();
+            try {
+                cleared = statements.executeUpdateDelete(CLEAR_BODIES_SQL, REVS_PER_STEP);
+                success = true;
+            } finally {
+                database.endTransaction(success);
+            }
+            database.forgetRevisionTrees();
+            if (cleared == 0) {
+                break;
+            }
+            done += cleared;
+            progress(CompactionPhase.CLEARING_BODIES, done, Math.max(done, total));
+        }
+    }
+
+    private void collectAttachments() throws CouchbaseLiteException, InterruptedException {
+        checkInterrupted();
+        progress(CompactionPhase.COLLECTING_ATTACHMENTS, 0, 1);
+        Status status = database.garbageCollectAttachments();
+        if (!status.isSuccessful()) {
+            throw new CouchbaseLiteException(status);
+        }
+        progress(CompactionPhase.COLLECTING_ATTACHMENTS, 1, 1);
+    }
+
+    /**
+     * Gives the free pages back to the file system, PAGES_PER_STEP at a time.
+     */
+    private void vacuum() throws SQLException, InterruptedException {
+        if (queryPragma("PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            Log.i(Database.TAG, "%s doesn't use incremental auto_vacuum; run compact() once to convert it",
+                    database.getName());
+            return;
+        }
+        long total = queryPragma("PRAGMA freelist_count");
+        long remaining = total;
+        progress(CompactionPhase.VACUUMING, 0, total);
+        while (remaining > 0) {
+            checkInterrupted();
+            boolean success = false;
+            database.beginTransaction();
+            try {
+                // incremental_vacuum returns no rows, but has to be stepped through as a query:
+                Cursor cursor = database.getDatabase().rawQuery(
+                        "PRAGMA incremental_vacuum(" + PAGES_PER_STEP + ")", null);
+                try {
+                    while (cursor.moveToNext()) {
+                    }
+                } finally {
+                    cursor.close();
+                }
+                success = true;
+            } finally {
+                database.endTransaction(success);
+            }
+            long left = queryPragma("PRAGMA freelist_count");
+            if (left >= remaining) {
+                break;  // no progress; don't spin
+            }
+            remaining = left;
+            progress(CompactionPhase.VACUUMING, total - remaining, total);
+        }
+    }
+
+    private long queryPragma(String pragma) throws SQLException {
+        Cursor cursor = database.getDatabase().rawQuery(pragma, null);
+        try {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void progress(CompactionPhase phase, long completed, long total) {
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.compactionProgress(phase, completed, total);
+        } catch (Exception e) {
+            Log.e(Database.TAG, "Exception in compaction listener", e);
+        }
+    }
+
+    /**
+     * Lets other threads at the database between steps, and stops if interrupted.
+     */
+    private static void checkInterrupted() throws InterruptedException {
+        Thread.yield();
+        if (Thread.interrupted()) {
+            throw new InterruptedException("Compaction interrupted");
+        }
+    }
+}
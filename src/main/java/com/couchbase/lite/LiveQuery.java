@@ -4,18 +4,38 @@ import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A Query subclass that automatically refreshes the result rows every time the database changes.
  * All you need to do is use add a listener to observe changes.
+ *
+ * Changes are coalesced: the rows are updated at most once per update interval. When possible,
+ * the changed documents are first checked against the query (their rows in the current result,
+ * and the rows they now emit within the query's key range or keys), and the query is only re-run
+ * if they can affect it. Listeners are told which rows were added and removed.
  */
 public final class LiveQuery extends Query implements Database.ChangeListener {
 
+    /**
+     * Default time in milliseconds to wait after a database change before updating the rows.
+     */
+    public static final long DEFAULT_UPDATE_INTERVAL = 200;
+
+    // Above this many changed documents, checking whether they affect the rows isn't worth it:
+    private static final int MAX_DOCS_TO_CHECK = 100;
+
     private boolean observing;
     private QueryEnumerator rows;
     private List<ChangeListener> observers = new ArrayList<ChangeListener>();
@@ -35,6 +55,13 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
      */
     protected Future rerunUpdateFuture;
 
+    private long updateInterval = DEFAULT_UPDATE_INTERVAL;
+
+    // Changes not yet taken into account by an update, guarded by this:
+    private Set<String> changedDocIDs = new HashSet<String>();
+    private boolean fullUpdateNeeded;
+    private ScheduledFuture<?> updateTimer;
+
     /**
      * Constructor
      */
@@ -95,6 +122,27 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         return lastError;
     }
 
+    /**
+     * The time in milliseconds to wait after a database change before updating the rows, so that
+     * a burst of changes causes a single update.
+     */
+    @InterfaceAudience.Public
+    public long getUpdateInterval() {
+        return updateInterval;
+    }
+
+    /**
+     * Sets the time in milliseconds to wait after a database change before updating the rows,
+     * or 0 to update right away.
+     */
+    @InterfaceAudience.Public
+    public void setUpdateInterval(long updateInterval) {
+        if (updateInterval < 0) {
+            throw new IllegalArgumentException("updateInterval < 0");
+        }
+        this.updateInterval = updateInterval;
+    }
+
     /**
      * Starts observing database changes. The .rows property will now update automatically. (You
      * usually don't need to call this yourself, since calling getRows() will start it for you
@@ -113,6 +161,9 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         if (!observing) {
             observing = true;
             getDatabase().addChangeListener(this);
+            synchronized (this) {
+                fullUpdateNeeded = true;
+            }
             Log.v(Log.TAG_QUERY, "%s: start() is calling update()", this);
             update();
         }
@@ -137,6 +188,14 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             getDatabase().removeChangeListener(this);
         }
 
+        synchronized (this) {
+            if (updateTimer != null) {
+                updateTimer.cancel(false);
+                updateTimer = null;
+            }
+            changedDocIDs.clear();
+        }
+
         // slight diversion from iOS version -- cancel the queryFuture
         // regardless of the willUpdate value, since there can be an update in flight
         // with willUpdate set to false.  was needed to make testLiveQueryStop() unit test pass.
@@ -216,6 +275,8 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         private LiveQuery source;
         private Throwable error;
         private QueryEnumerator queryEnumerator;
+        private List<QueryRow> addedRows = Collections.emptyList();
+        private List<QueryRow> removedRows = Collections.emptyList();
 
         ChangeEvent() {
         }
@@ -225,6 +286,12 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             this.queryEnumerator = queryEnumerator;
         }
 
+        ChangeEvent(LiveQuery source, QueryEnumerator queryEnumerator, List<QueryRow> addedRows, List<QueryRow> removedRows) {
+            this(source, queryEnumerator);
+            this.addedRows = addedRows;
+            this.removedRows = removedRows;
+        }
+
         ChangeEvent(Throwable error) {
             this.error = error;
         }
@@ -241,6 +308,21 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             return queryEnumerator;
         }
 
+        /**
+         * The rows that weren't in the previous result (all of them, the first time). A row
+         * whose value or document changed is both removed and added.
+         */
+        public List<QueryRow> getAddedRows() {
+            return addedRows;
+        }
+
+        /**
+         * The rows of the previous result that aren't in this one.
+         */
+        public List<QueryRow> getRemovedRows() {
+            return removedRows;
+        }
+
     }
 
     /**
@@ -278,30 +360,41 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         }
 
         // No query in flight, so kick one off
-        queryFuture = runAsyncInternal(new QueryCompleteListener() {
+        queryFuture = getDatabase().getManager().runAsync(new Runnable() {
             @Override
-            public void completed(QueryEnumerator rowsParam, Throwable error) {
-                if (error != null) {
+            public void run() {
+                QueryEnumerator rowsParam;
+                try {
+                    if (!isUpdateNeeded()) {
+                        Log.v(Log.TAG_QUERY, "%s: update() skipped, the changes don't affect the rows", LiveQuery.this);
+                        return;
+                    }
+                    rowsParam = runInternal();
+                } catch (Throwable error) {
+                    Log.e(Log.TAG_QUERY, "Exception caught in update()", error);
                     for (ChangeListener observer : observers) {
                         observer.changed(new ChangeEvent(error));
                     }
                     lastError = error;
-                } else {
+                    return;
+                }
 
-                    if (runningState.get() == false) {
-                        Log.d(Log.TAG_QUERY, "%s: update() finished query, but running state == false.", this);
-                        return;
-                    }
+                if (runningState.get() == false) {
+                    Log.d(Log.TAG_QUERY, "%s: update() finished query, but running state == false.", this);
+                    return;
+                }
 
-                    if (rowsParam != null && !rowsParam.equals(rows)) {
-                        setRows(rowsParam);
-                        for (ChangeListener observer : observers) {
-                            Log.d(Log.TAG_QUERY, "%s: update() calling back observer with rows", LiveQuery.this);
-                            observer.changed(new ChangeEvent(LiveQuery.this, rows));
-                        }
+                List<QueryRow> addedRows = new ArrayList<QueryRow>();
+                List<QueryRow> removedRows = new ArrayList<QueryRow>();
+                diffRows(rows, rowsParam, addedRows, removedRows);
+                if (rows == null || !addedRows.isEmpty() || !removedRows.isEmpty()) {
+                    setRows(rowsParam);
+                    for (ChangeListener observer : observers) {
+                        Log.d(Log.TAG_QUERY, "%s: update() calling back observer with rows", LiveQuery.this);
+                        observer.changed(new ChangeEvent(LiveQuery.this, rows, addedRows, removedRows));
                     }
-                    lastError = null;
                 }
+                lastError = null;
             }
         });
         Log.d(Log.TAG_QUERY, "%s: update() created queryFuture: %s", this, queryFuture);
@@ -352,9 +445,104 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
     @Override
     @InterfaceAudience.Private
     public void changed(Database.ChangeEvent event) {
+        synchronized (this) {
+            for (DocumentChange change : event.getChanges()) {
+                changedDocIDs.add(change.getDocumentId());
+            }
+            if (updateTimer != null) {
+                // The pending update will pick these changes up too
+                return;
+            }
+            if (updateInterval > 0) {
+                updateTimer = getDatabase().getManager().getQueryTimer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (LiveQuery.this) {
+                            updateTimer = null;
+                        }
+                        update();
+                    }
+                }, updateInterval, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
         update();
     }
 
+    /**
+     * Takes the changes not yet accounted for, and decides whether the query has to be re-run
+     * for them: not if none of the changed documents is in the current rows, or emits a row the
+     * query selects now.
+     */
+    private boolean isUpdateNeeded() throws CouchbaseLiteException {
+        Set<String> docIDs;
+        boolean full;
+        synchronized (this) {
+            docIDs = changedDocIDs;
+            changedDocIDs = new HashSet<String>();
+            full = fullUpdateNeeded || rows == null;
+            fullUpdateNeeded = false;
+        }
+        if (full || !canCheckChanges() || docIDs.size() > MAX_DOCS_TO_CHECK) {
+            return true;
+        }
+        QueryEnumerator currentRows = rows;
+        for (int i = 0; i < currentRows.getCount(); i++) {
+            if (docIDs.contains(currentRows.getRow(i).getSourceDocumentId())) {
+                return true;
+            }
+        }
+        getView().updateIndex();
+        return getView().hasRowsForDocuments(getQueryOptions(), docIDs);
+    }
+
+    /**
+     * Whether the rows the query returns depend only on the rows emitted by each document, so
+     * that the changes can be checked one document at a time. Not when the rows are reduced
+     * (they don't say which documents they came from), when skipping (removing a row before the
+     * skipped ones shifts the rest), when the index isn't updated first, or when prefetching
+     * (a row can include a linked document).
+     */
+    private boolean canCheckChanges() {
+        boolean reduced = getGroupLevel() > 0 || (!isMapOnly() && getView().getReduce() != null);
+        return !reduced && getSkip() == 0 && !shouldPrefetch()
+                && getIndexUpdateMode() == IndexUpdateMode.BEFORE;
+    }
+
+    /**
+     * Finds the rows added to and removed from a result.
+     */
+    private static void diffRows(QueryEnumerator oldRows, QueryEnumerator newRows, List<QueryRow> addedRows, List<QueryRow> removedRows) {
+        // Rows are matched up among those with the same document ID, or key for reduced rows:
+        Map<Object, List<QueryRow>> unmatched = new LinkedHashMap<Object, List<QueryRow>>();
+        if (oldRows != null) {
+            for (int i = 0; i < oldRows.getCount(); i++) {
+                QueryRow row = oldRows.getRow(i);
+                Object identity = rowIdentity(row);
+                List<QueryRow> sameIdentity = unmatched.get(identity);
+                if (sameIdentity == null) {
+                    sameIdentity = new ArrayList<QueryRow>(1);
+                    unmatched.put(identity, sameIdentity);
+                }
+                sameIdentity.add(row);
+            }
+        }
+        for (int i = 0; i < newRows.getCount(); i++) {
+            QueryRow row = newRows.getRow(i);
+            List<QueryRow> sameIdentity = unmatched.get(rowIdentity(row));
+            if (sameIdentity == null || !sameIdentity.remove(row)) {
+                addedRows.add(row);
+            }
+        }
+        for (List<QueryRow> sameIdentity : unmatched.values()) {
+            removedRows.addAll(sameIdentity);
+        }
+    }
+
+    private static Object rowIdentity(QueryRow row) {
+        return (row.getSourceDocumentId() != null) ? row.getSourceDocumentId() : String.valueOf(row.getKey());
+    }
+
     @InterfaceAudience.Private
     private synchronized void setRows(QueryEnumerator queryEnumerator) {
         rows = queryEnumerator;
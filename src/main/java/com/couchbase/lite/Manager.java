@@ -6,8 +6,11 @@ import com.couchbase.lite.auth.FacebookAuthorizer;
 import com.couchbase.lite.auth.PersonaAuthorizer;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.replicator.Replication;
+import com.couchbase.lite.support.ExecutorStats;
 import com.couchbase.lite.support.FileDirUtils;
 import com.couchbase.lite.support.HttpClientFactory;
+import com.couchbase.lite.support.InstrumentedScheduledExecutor;
+import com.couchbase.lite.support.InstrumentedThreadPoolExecutor;
 import com.couchbase.lite.support.Version;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.StreamUtils;
@@ -31,7 +34,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
@@ -76,6 +79,12 @@ public final class Manager {
     private Map<String, Database> databases;
     private List<Replication> replications;
     private ScheduledExecutorService workExecutor;
+    private List<InstrumentedScheduledExecutor> replicationExecutors;
+    private Map<String, InstrumentedScheduledExecutor> databaseExecutors;
+    private int nextReplicationExecutor;
+    private InstrumentedThreadPoolExecutor queryExecutor;
+    private InstrumentedThreadPoolExecutor indexExecutor;
+    private InstrumentedScheduledExecutor queryTimer;
     private HttpClientFactory defaultHttpClientFactory;
     private Context context;
 
@@ -133,16 +142,24 @@ public final class Manager {
 
         upgradeOldDatabaseFiles(directoryFile);
 
-        // this must be a single threaded executor due to contract w/ Replication object
+        // these must be single threaded executors due to contract w/ Replication object
         // which must run on either:
         // - a shared single threaded executor
         // - its own single threaded executor
-        workExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                return new Thread(r, "CBLManagerWorkExecutor");
-            }
-        });
+        ExecutorOptions executorOptions = this.options.getExecutorOptions();
+        replicationExecutors = new ArrayList<InstrumentedScheduledExecutor>();
+        for (int i = 0; i < executorOptions.getReplicationThreads(); i++) {
+            final String threadName = (i == 0) ? "CBLManagerWorkExecutor" : "CBLManagerWorkExecutor-" + i;
+            replicationExecutors.add(new InstrumentedScheduledExecutor(threadName, 1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, threadName);
+                }
+            }));
+        }
+        databaseExecutors = new HashMap<String, InstrumentedScheduledExecutor>();
+        workExecutor = replicationExecutors.get(0);
+        queryExecutor = new InstrumentedThreadPoolExecutor("CBLQueryWorker", executorOptions.getQueryThreads());
 
     }
 
@@ -221,6 +238,26 @@ public final class Manager {
             database.close();
         }
         databases.clear();
+        synchronized (this) {
+            if (indexExecutor != null) {
+                indexExecutor.shutdownNow();
+                indexExecutor = null;
+            }
+            if (queryTimer != null) {
+                queryTimer.shutdownNow();
+                queryTimer = null;
+            }
+        }
+        queryExecutor.shutdownNow();
+        Log.i(Database.TAG, "Executor stats at close: %s", getExecutorStats());
+        synchronized (this) {
+            // Not shutdownNow(): the replications just told to stop still have work queued
+            // there to finish stopping.
+            for (InstrumentedScheduledExecutor executor : replicationExecutors) {
+                executor.shutdown();
+            }
+            databaseExecutors.clear();
+        }
         context.getNetworkReachabilityManager().stopListening();
         Log.i(Database.TAG, "Closed " + this);
     }
@@ -282,8 +319,20 @@ public final class Manager {
         try {
             Database database = getDatabase(databaseName);
             String dstAttachmentsPath = database.getAttachmentStorePath();
+
+            // Close the database while its files are replaced, so that reopening it builds a
+            // new BlobStore, whose index then includes the canned attachments. The old WAL must
+            // not be replayed over the new file either.
+            database.close();
+            new File(database.getPath() + "-wal").delete();
+            new File(database.getPath() + "-shm").delete();
+
             OutputStream destStream = new FileOutputStream(new File(database.getPath()));
-            StreamUtils.copyStream(databaseStream, destStream);
+            try {
+                StreamUtils.copyStream(databaseStream, destStream);
+            } finally {
+                destStream.close();
+            }
             File attachmentsFile = new File(dstAttachmentsPath);
             FileDirUtils.deleteRecursive(attachmentsFile);
             attachmentsFile.mkdirs();
@@ -291,7 +340,9 @@ public final class Manager {
                 StreamUtils.copyStreamsToFolder(attachmentStreams,attachmentsFile);
             }
 
-            database.open();
+            if (!database.open()) {
+                throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+            }
             database.replaceUUIDs();
         }
         catch (FileNotFoundException e) {
@@ -388,7 +439,7 @@ public final class Manager {
     public Future runAsync(String databaseName, final AsyncTask function) throws CouchbaseLiteException {
 
         final Database database = getDatabase(databaseName);
-        return runAsync(new Runnable() {
+        return runAsync(database, new Runnable() {
             @Override
             public void run() {
                 function.run(database);
@@ -402,7 +453,17 @@ public final class Manager {
      */
     @InterfaceAudience.Private
     Future runAsync(Runnable runnable) {
-        return workExecutor.submit(runnable);
+        return queryExecutor.submit(runnable);
+    }
+
+    /**
+     * Runs a task on the executor of the given database, after the tasks already queued there
+     * and never concurrently with the database's replications.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Future runAsync(Database database, Runnable runnable) {
+        return getDatabaseExecutor(database).submit(runnable);
     }
 
     /**
@@ -437,10 +498,10 @@ public final class Manager {
         final boolean continuous = false;
 
         if (push) {
-            replicator = new Replication(db, remote, Replication.Direction.PUSH, null, getWorkExecutor());
+            replicator = new Replication(db, remote, Replication.Direction.PUSH, null, getDatabaseExecutor(db));
         }
         else {
-            replicator = new Replication(db, remote, Replication.Direction.PULL, null, getWorkExecutor());
+            replicator = new Replication(db, remote, Replication.Direction.PULL, null, getDatabaseExecutor(db));
         }
 
         replications.add(replicator);
@@ -490,13 +551,18 @@ public final class Manager {
 
         // remove from list of replications
         // TODO: should there be something that actually stops the replication(s) first?
+        boolean replicating = false;
         Iterator<Replication> replicationIterator = this.replications.iterator();
         while (replicationIterator.hasNext()) {
             Replication replication = replicationIterator.next();
             if (replication.getLocalDatabase().getName().equals(db.getName())) {
+                replicating |= replication.isRunning();
                 replicationIterator.remove();
             }
         }
+        if (!replicating) {
+            forgetDatabaseExecutor(db);
+        }
     }
 
     /**
@@ -593,7 +659,7 @@ public final class Manager {
             HttpClientFactory httpClientFactory = authorizer != null && authorizer.getHttpClientFactory() != null ?
                     authorizer.getHttpClientFactory() : getDefaultHttpClientFactory();
             // https://github.com/couchbase/couchbase-lite-java-core/issues/43
-            repl = db.getReplicator(remote, httpClientFactory, replicatorArguments.getPush(), replicatorArguments.getContinuous(), getWorkExecutor());
+            repl = db.getReplicator(remote, httpClientFactory, replicatorArguments.getPush(), replicatorArguments.getContinuous(), getDatabaseExecutor(db));
             if(repl == null) {
                 throw new CouchbaseLiteException("unable to create replicator with remote: " + remote, new Status(Status.INTERNAL_SERVER_ERROR));
             }
@@ -650,6 +716,91 @@ public final class Manager {
         return workExecutor;
     }
 
+    /**
+     * The pool of threads that run map functions while view indexes are updated.
+     * Created on first use.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized ExecutorService getIndexExecutor() {
+        if (indexExecutor == null) {
+            indexExecutor = new InstrumentedThreadPoolExecutor("CBLIndexWorker", options.getExecutorOptions().getIndexThreads());
+        }
+        return indexExecutor;
+    }
+
+    /**
+     * The single thread that fires the delayed updates of live queries. The tasks it runs must
+     * be quick, e.g. hand the query off to runAsync(), so that a timer is never held up by
+     * another, nor by a replication or a query. Created on first use.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized ScheduledExecutorService getQueryTimer() {
+        if (queryTimer == null) {
+            queryTimer = new InstrumentedScheduledExecutor("CBLQueryTimer", 1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "CBLQueryTimer");
+                }
+            });
+        }
+        return queryTimer;
+    }
+
+    /**
+     * The single-threaded executor that runs the replications and async tasks of a database.
+     * Databases are assigned one of the replication executors in turn the first time they ask.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized ScheduledExecutorService getDatabaseExecutor(Database database) {
+        InstrumentedScheduledExecutor executor = databaseExecutors.get(database.getName());
+        if (executor == null) {
+            executor = replicationExecutors.get(nextReplicationExecutor);
+            nextReplicationExecutor = (nextReplicationExecutor + 1) % replicationExecutors.size();
+            databaseExecutors.put(database.getName(), executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Drops a deleted database's assignment to a replication executor. The assignment is keyed
+     * by name and kept while the database is merely closed, so that if it's reopened while its
+     * replications are still stopping, it gets the same executor they run on.
+     */
+    private synchronized void forgetDatabaseExecutor(Database database) {
+        databaseExecutors.remove(database.getName());
+    }
+
+    /**
+     * Queue lengths and task latencies of the Manager's executors.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized List<ExecutorStats> getExecutorStats() {
+        List<ExecutorStats> stats = new ArrayList<ExecutorStats>();
+        for (InstrumentedScheduledExecutor executor : replicationExecutors) {
+            stats.add(executor.getStats());
+        }
+        stats.add(queryExecutor.getStats());
+        if (indexExecutor != null) {
+            stats.add(indexExecutor.getStats());
+        }
+        if (queryTimer != null) {
+            stats.add(queryTimer.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public ManagerOptions getOptions() {
+        return options;
+    }
+
     @InterfaceAudience.Private
     public Context getContext() {
         return context;
@@ -11,11 +11,52 @@ import java.util.ArrayList;
  */
 public class ManagerOptions {
 
+    /**
+     * Default memory budget of each database's cache of revision trees, in bytes: enough for a
+     * few documents with histories of tens of thousands of revisions.
+     */
+    public static final int DEFAULT_REVISION_TREE_CACHE_SIZE = 8 * 1024 * 1024;
+
     /**
      *  No modifications to databases are allowed.
      */
     private boolean readOnly;
 
+    /**
+     * Number of threads that run map functions while a view index is updated.
+     */
+    private int indexParallelism = 1;
+
+    /**
+     * SQLite settings applied to each database when it's opened.
+     */
+    private StorageProfile storageProfile = StorageProfile.durable();
+
+    /**
+     * Concurrency and queue sizes of the stages of pull replications.
+     */
+    private PullPipelineOptions pullPipelineOptions = new PullPipelineOptions();
+
+    /**
+     * Limits on the _bulk_docs requests of push replications.
+     */
+    private PushBatchOptions pushBatchOptions = new PushBatchOptions();
+
+    /**
+     * Sizes of the Manager's thread pools.
+     */
+    private ExecutorOptions executorOptions = new ExecutorOptions();
+
+    /**
+     * Compression of replication request bodies, and which servers accept it.
+     */
+    private CompressionOptions compressionOptions = new CompressionOptions();
+
+    /**
+     * Memory budget of each database's cache of revision trees, in bytes.
+     */
+    private int revisionTreeCacheSize = DEFAULT_REVISION_TREE_CACHE_SIZE;
+
     private AuthorizerFactoryManager authorizerFactoryManager; // https://github.com/couchbase/couchbase-lite-java-core/issues/41
 
     // https://github.com/couchbase/couchbase-lite-java-core/issues/41
@@ -36,6 +77,110 @@ public class ManagerOptions {
         this.readOnly = readOnly;
     }
 
+    public int getIndexParallelism() {
+        return indexParallelism;
+    }
+
+    /**
+     * Sets the default number of threads that run map functions while a view index is updated.
+     * Can be overridden per view with View.setIndexParallelism().
+     */
+    public void setIndexParallelism(int indexParallelism) {
+        if (indexParallelism < 1) {
+            throw new IllegalArgumentException("indexParallelism < 1");
+        }
+        this.indexParallelism = indexParallelism;
+    }
+
+    public StorageProfile getStorageProfile() {
+        return storageProfile;
+    }
+
+    /**
+     * Sets the SQLite settings applied to each database when it's opened, e.g.
+     * StorageProfile.balanced(). Databases that are already open aren't affected.
+     */
+    public void setStorageProfile(StorageProfile storageProfile) {
+        if (storageProfile == null) {
+            throw new IllegalArgumentException("storageProfile is null");
+        }
+        this.storageProfile = storageProfile;
+    }
+
+    public PullPipelineOptions getPullPipelineOptions() {
+        return pullPipelineOptions;
+    }
+
+    /**
+     * Sets the concurrency and queue sizes of the stages of pull replications started after
+     * this call.
+     */
+    public void setPullPipelineOptions(PullPipelineOptions pullPipelineOptions) {
+        if (pullPipelineOptions == null) {
+            throw new IllegalArgumentException("pullPipelineOptions is null");
+        }
+        this.pullPipelineOptions = pullPipelineOptions;
+    }
+
+    public PushBatchOptions getPushBatchOptions() {
+        return pushBatchOptions;
+    }
+
+    /**
+     * Sets the limits on the _bulk_docs requests of push replications started after this call.
+     */
+    public void setPushBatchOptions(PushBatchOptions pushBatchOptions) {
+        if (pushBatchOptions == null) {
+            throw new IllegalArgumentException("pushBatchOptions is null");
+        }
+        this.pushBatchOptions = pushBatchOptions;
+    }
+
+    public ExecutorOptions getExecutorOptions() {
+        return executorOptions;
+    }
+
+    /**
+     * Sets the sizes of the Manager's thread pools. Only takes effect for Managers created after
+     * this call.
+     */
+    public void setExecutorOptions(ExecutorOptions executorOptions) {
+        if (executorOptions == null) {
+            throw new IllegalArgumentException("executorOptions is null");
+        }
+        this.executorOptions = executorOptions;
+    }
+
+    public CompressionOptions getCompressionOptions() {
+        return compressionOptions;
+    }
+
+    /**
+     * Sets how replications started after this call compress their request bodies.
+     */
+    public void setCompressionOptions(CompressionOptions compressionOptions) {
+        if (compressionOptions == null) {
+            throw new IllegalArgumentException("compressionOptions is null");
+        }
+        this.compressionOptions = compressionOptions;
+    }
+
+    public int getRevisionTreeCacheSize() {
+        return revisionTreeCacheSize;
+    }
+
+    /**
+     * Sets the memory budget of each database's cache of documents' revision trees, in bytes,
+     * for databases opened after this call. A document whose tree alone is bigger isn't cached,
+     * so its tree is read from the database each time it's needed.
+     */
+    public void setRevisionTreeCacheSize(int revisionTreeCacheSize) {
+        if (revisionTreeCacheSize < 1) {
+            throw new IllegalArgumentException("revisionTreeCacheSize < 1");
+        }
+        this.revisionTreeCacheSize = revisionTreeCacheSize;
+    }
+
     // https://github.com/couchbase/couchbase-lite-java-core/issues/41
     public AuthorizerFactoryManager getAuthorizerFactoryManager() { return authorizerFactoryManager; }
 
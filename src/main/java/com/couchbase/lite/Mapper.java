@@ -26,7 +26,12 @@ public interface Mapper {
 
     /**
      * A "map" function called when a document is to be added to a view.
-     * @param document The contents of the document being analyzed.
+     *
+     * The views of a database are indexed together, and all of them are passed the same
+     * document map, so a map function must not modify it. If the view's index parallelism is
+     * greater than one, the function is also called from several threads at once.
+     *
+     * @param document The contents of the document being analyzed. Must not be modified.
      * @param emitter A block to be called to add a key/value pair to the view. Your block can call it zero, one or multiple times.
      */
     void map(Map<String,Object> document, Emitter emitter);
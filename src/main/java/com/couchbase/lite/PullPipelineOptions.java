@@ -0,0 +1,117 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+/**
+ * Concurrency and queue sizes of the stages a pull replication runs through:
+ *
+ * - changes: reading the remote _changes feed (one thread per replication)
+ * - revs-diff: looking up which of the changed revisions are missing locally
+ * - fetch: downloading the missing revisions, including parsing their JSON and writing their
+ *   attachments to disk as they stream in
+ * - decode: post-processing downloaded revisions (e.g. running the body transformation block)
+ * - insert: inserting revisions into the database, on a single thread since SQLite has only
+ *   one writer
+ *
+ * Each stage has a capacity, the maximum number of revisions in it at once. When a stage is
+ * full, the stage before it waits, down to the changes feed, which stops reading from the
+ * socket until there's room.
+ */
+@InterfaceAudience.Public
+public class PullPipelineOptions {
+
+    private int revsDiffConcurrency = 1;
+    private int revsDiffCapacity = 500;
+    private int fetchConcurrency = 5;
+    private int fetchCapacity = 1000;
+    private int decodeConcurrency = 2;
+    private int decodeCapacity = 200;
+    private int insertCapacity = 1000;
+
+    public int getRevsDiffConcurrency() {
+        return revsDiffConcurrency;
+    }
+
+    /**
+     * Sets the number of threads that look up missing revisions. Lookups only read from the
+     * database, so more than one is only useful with a storage engine that allows concurrent
+     * reads.
+     */
+    public void setRevsDiffConcurrency(int revsDiffConcurrency) {
+        this.revsDiffConcurrency = checkPositive(revsDiffConcurrency, "revsDiffConcurrency");
+    }
+
+    public int getRevsDiffCapacity() {
+        return revsDiffCapacity;
+    }
+
+    /**
+     * Sets the maximum number of changes read from the feed but not yet looked up.
+     */
+    public void setRevsDiffCapacity(int revsDiffCapacity) {
+        this.revsDiffCapacity = checkPositive(revsDiffCapacity, "revsDiffCapacity");
+    }
+
+    public int getFetchConcurrency() {
+        return fetchConcurrency;
+    }
+
+    /**
+     * Sets the number of threads that download revisions, i.e. the number of HTTP requests
+     * running at once.
+     */
+    public void setFetchConcurrency(int fetchConcurrency) {
+        this.fetchConcurrency = checkPositive(fetchConcurrency, "fetchConcurrency");
+    }
+
+    public int getFetchCapacity() {
+        return fetchCapacity;
+    }
+
+    /**
+     * Sets the maximum number of missing revisions waiting to be downloaded or downloading.
+     */
+    public void setFetchCapacity(int fetchCapacity) {
+        this.fetchCapacity = checkPositive(fetchCapacity, "fetchCapacity");
+    }
+
+    public int getDecodeConcurrency() {
+        return decodeConcurrency;
+    }
+
+    /**
+     * Sets the number of threads that post-process downloaded revisions.
+     */
+    public void setDecodeConcurrency(int decodeConcurrency) {
+        this.decodeConcurrency = checkPositive(decodeConcurrency, "decodeConcurrency");
+    }
+
+    public int getDecodeCapacity() {
+        return decodeCapacity;
+    }
+
+    /**
+     * Sets the maximum number of downloaded revisions waiting to be post-processed.
+     */
+    public void setDecodeCapacity(int decodeCapacity) {
+        this.decodeCapacity = checkPositive(decodeCapacity, "decodeCapacity");
+    }
+
+    public int getInsertCapacity() {
+        return insertCapacity;
+    }
+
+    /**
+     * Sets the maximum number of revisions waiting to be inserted into the database.
+     */
+    public void setInsertCapacity(int insertCapacity) {
+        this.insertCapacity = checkPositive(insertCapacity, "insertCapacity");
+    }
+
+    private static int checkPositive(int value, String name) {
+        if (value < 1) {
+            throw new IllegalArgumentException(name + " < 1");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,76 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+/**
+ * Limits on the _bulk_docs requests a push replication sends.
+ *
+ * The revisions a push finds missing on the server are split into several _bulk_docs requests,
+ * each holding at most maxBulkDocsCount documents, maxBulkDocsSize bytes of estimated JSON and
+ * maxBulkDocsMemory bytes of estimated heap. A document bigger than the limits is sent on its
+ * own. At most maxBulkDocsRequestsInFlight of the requests run at once; the rest wait their turn.
+ */
+@InterfaceAudience.Public
+public class PushBatchOptions {
+
+    private int maxBulkDocsCount = 100;
+    private long maxBulkDocsSize = 5L * 1000 * 1000;
+    private long maxBulkDocsMemory = 16L * 1000 * 1000;
+    private int maxBulkDocsRequestsInFlight = 2;
+
+    public int getMaxBulkDocsCount() {
+        return maxBulkDocsCount;
+    }
+
+    /**
+     * Sets the maximum number of documents in one _bulk_docs request.
+     */
+    public void setMaxBulkDocsCount(int maxBulkDocsCount) {
+        if (maxBulkDocsCount < 1) {
+            throw new IllegalArgumentException("maxBulkDocsCount < 1");
+        }
+        this.maxBulkDocsCount = maxBulkDocsCount;
+    }
+
+    public long getMaxBulkDocsSize() {
+        return maxBulkDocsSize;
+    }
+
+    /**
+     * Sets the maximum estimated size in bytes of the JSON body of one _bulk_docs request.
+     */
+    public void setMaxBulkDocsSize(long maxBulkDocsSize) {
+        if (maxBulkDocsSize < 1) {
+            throw new IllegalArgumentException("maxBulkDocsSize < 1");
+        }
+        this.maxBulkDocsSize = maxBulkDocsSize;
+    }
+
+    public long getMaxBulkDocsMemory() {
+        return maxBulkDocsMemory;
+    }
+
+    /**
+     * Sets the maximum estimated heap in bytes used by the documents of one _bulk_docs request.
+     */
+    public void setMaxBulkDocsMemory(long maxBulkDocsMemory) {
+        if (maxBulkDocsMemory < 1) {
+            throw new IllegalArgumentException("maxBulkDocsMemory < 1");
+        }
+        this.maxBulkDocsMemory = maxBulkDocsMemory;
+    }
+
+    public int getMaxBulkDocsRequestsInFlight() {
+        return maxBulkDocsRequestsInFlight;
+    }
+
+    /**
+     * Sets the maximum number of _bulk_docs requests a push runs at once.
+     */
+    public void setMaxBulkDocsRequestsInFlight(int maxBulkDocsRequestsInFlight) {
+        if (maxBulkDocsRequestsInFlight < 1) {
+            throw new IllegalArgumentException("maxBulkDocsRequestsInFlight < 1");
+        }
+        this.maxBulkDocsRequestsInFlight = maxBulkDocsRequestsInFlight;
+    }
+}
@@ -139,6 +139,29 @@ public class Query {
      */
     private int groupLevel;
 
+    /**
+     * If set to YES, run() returns an enumerator that reads rows from the index as they're
+     * iterated instead of loading them all first. Such an enumerator can only be iterated once,
+     * doesn't support getCount() or getRow(), and must be closed if it isn't iterated to the end.
+     * Reduced and grouped queries are never streamed.
+     */
+    private boolean streaming;
+
+    /**
+     * If set, the query returns the page of rows following the ones whose QueryEnumerator
+     * returned this token, by seeking to where they ended rather than skipping over the rows of
+     * all the earlier pages. The skip property then only applies to the first page.
+     */
+    private String continuationToken;
+
+    /**
+     * If set to YES, the rows of a view query with a limit are returned in a stable order that
+     * the query can be resumed from, so that its QueryEnumerator has a continuation token: rows
+     * with equal keys are ordered by document ID. That costs an extra sort of each run of equal
+     * keys, so it isn't done otherwise. Queries with a continuation token are always paged.
+     */
+    private boolean paged;
+
 
 
     private long lastSequence;
@@ -309,6 +332,44 @@ public class Query {
         this.mapOnly = mapOnly;
     }
 
+    @InterfaceAudience.Public
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    @InterfaceAudience.Public
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    @InterfaceAudience.Public
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    @InterfaceAudience.Public
+    public boolean isPaged() {
+        return paged;
+    }
+
+    @InterfaceAudience.Public
+    public void setPaged(boolean paged) {
+        this.paged = paged;
+    }
+
+    /**
+     * Sets a token returned by QueryEnumerator.getContinuationToken(), to fetch the next page of
+     * a paged query with a limit; or null to fetch the first page.
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    @InterfaceAudience.Public
+    public void setContinuationToken(String continuationToken) {
+        if (continuationToken != null) {
+            QueryPageToken.decode(continuationToken);
+        }
+        this.continuationToken = continuationToken;
+    }
+
     @InterfaceAudience.Public
     public int getGroupLevel() {
         return groupLevel;
@@ -345,11 +406,20 @@ public class Query {
      */
     @InterfaceAudience.Public
     public QueryEnumerator run() throws CouchbaseLiteException {
-        List<Long> outSequence = new ArrayList<Long>();
-        String viewName = (view != null) ? view.getName() : null;
-        List<QueryRow> rows = database.queryViewNamed(viewName, getQueryOptions(), outSequence);
-        lastSequence = outSequence.get(0);
-        return new QueryEnumerator(database, rows, lastSequence);
+        QueryOptions options = getQueryOptions();
+        QueryEnumerator enumerator;
+        if (streaming && view != null) {
+            lastSequence = database.updateIndexForQuery(view, options);
+            enumerator = view.streamingQueryWithOptions(options, lastSequence);
+        } else {
+            List<Long> outSequence = new ArrayList<Long>();
+            String viewName = (view != null) ? view.getName() : null;
+            List<QueryRow> rows = database.queryViewNamed(viewName, options, outSequence);
+            lastSequence = outSequence.get(0);
+            enumerator = new QueryEnumerator(database, rows, lastSequence);
+        }
+        trackPage(enumerator, options);
+        return enumerator;
     }
 
     /**
@@ -382,6 +452,45 @@ public class Query {
         public void completed(QueryEnumerator rows, Throwable error);
     }
 
+    /**
+     * Runs the query on the calling thread (LiveQuery doesn't override this, unlike run()).
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    /* package */ QueryEnumerator runInternal() throws CouchbaseLiteException {
+        if (!getDatabase().isOpen()) {
+            throw new IllegalStateException("The database has been closed.");
+        }
+
+        String viewName = view.getName();
+        QueryOptions options = getQueryOptions();
+        List<Long> outSequence = new ArrayList<Long>();
+        List<QueryRow> rows = database.queryViewNamed(viewName, options, outSequence);
+        long sequenceNumber = outSequence.get(0);
+        QueryEnumerator enumerator = new QueryEnumerator(database, rows, sequenceNumber);
+        trackPage(enumerator, options);
+        return enumerator;
+    }
+
+    /**
+     * Lets the enumerator work out its continuation token, if the query is paged.
+     */
+    private void trackPage(QueryEnumerator enumerator, QueryOptions options) {
+        if (options.getLimit() == Integer.MAX_VALUE || options.getKeys() != null) {
+            return;
+        }
+        if (view != null && view.isReduced(options)) {
+            // Reduced rows are aggregates, they can't be resumed from.
+            return;
+        }
+        if (view != null && !options.isOrderedByDocId()) {
+            // Without the doc ID tiebreak, the order of rows with equal keys can't be resumed from.
+            return;
+        }
+        QueryPageToken start = (continuationToken != null) ? QueryPageToken.decode(continuationToken) : null;
+        enumerator.trackPage(new QueryPageToken.Tracker(view == null, options.getLimit(), start));
+    }
+
     /**
      * @exclude
      */
@@ -392,17 +501,7 @@ public class Query {
             @Override
             public void run() {
                 try {
-
-                    if (!getDatabase().isOpen()) {
-                        throw new IllegalStateException("The database has been closed.");
-                    }
-
-                    String viewName = view.getName();
-                    QueryOptions options = getQueryOptions();
-                    List<Long> outSequence = new ArrayList<Long>();
-                    List<QueryRow> rows = database.queryViewNamed(viewName, options, outSequence);
-                    long sequenceNumber = outSequence.get(0);
-                    QueryEnumerator enumerator = new QueryEnumerator(database, rows, sequenceNumber);
+                    QueryEnumerator enumerator = runInternal();
                     onComplete.completed(enumerator, null);
 
                 } catch (Throwable t) {
@@ -423,7 +522,7 @@ public class Query {
     }
 
     @InterfaceAudience.Private
-    private QueryOptions getQueryOptions() {
+    /* package */ QueryOptions getQueryOptions() {
         QueryOptions queryOptions = new QueryOptions();
         queryOptions.setStartKey(getStartKey());
         queryOptions.setEndKey(getEndKey());
@@ -442,6 +541,18 @@ public class Query {
         queryOptions.setAllDocsMode(getAllDocsMode());
         queryOptions.setStartKeyDocId(getStartKeyDocId());
         queryOptions.setEndKeyDocId(getEndKeyDocId());
+        queryOptions.setOrderedByDocId(paged || continuationToken != null);
+        if (continuationToken != null) {
+            QueryPageToken start = QueryPageToken.decode(continuationToken);
+            queryOptions.setStartKey(start.getKey());
+            if (view != null) {
+                queryOptions.setStartKeyDocId(start.getDocID());
+                queryOptions.setSkip(start.getSkip());
+            } else {
+                queryOptions.setInclusiveStart(false);
+                queryOptions.setSkip(0);
+            }
+        }
         return queryOptions;
     }
 
@@ -1,20 +1,42 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.util.Log;
 
+import java.io.Closeable;
 import java.util.Iterator;
 import java.util.List;
 
 /**
  * An enumerator for Couchbase Lite View Query results.
+ *
+ * The enumerator of a streaming query (see Query.setStreaming()) reads each row, and its
+ * document if prefetching, from the database as it's enumerated, so only one row is in memory
+ * at a time. It can only be enumerated once, and holds a database cursor until it reaches the
+ * end or is closed. If reading a row fails, the enumerator stops there: hasNext() and next()
+ * throw the error instead of reporting that the rows ran out, and getError() returns it.
  */
-public class QueryEnumerator implements Iterator<QueryRow> {
+public class QueryEnumerator implements Iterator<QueryRow>, Closeable {
 
     private Database database;
     private List<QueryRow> rows;
     private int nextRow;
     private long sequenceNumber;
 
+    // Streaming mode: the rows are decoded from the cursor by the view one at a time, and the
+    // next one is read ahead so that hasNext() can answer.
+    private View view;
+    private Cursor cursor;
+    private QueryOptions options;
+    private QueryRow nextStreamedRow;
+    private boolean streamedToEnd;
+    private SQLException streamingError;
+
+    // Paging: where the page these rows make up ends, if they were queried with a limit.
+    private QueryPageToken.Tracker pageTracker;
+
     /**
      * Constructor
      */
@@ -30,11 +52,27 @@ public class QueryEnumerator implements Iterator<QueryRow> {
         }
     }
 
+    /**
+     * Constructor for a streaming enumerator, which takes ownership of the cursor.
+     */
+    @InterfaceAudience.Private
+    /* package */ QueryEnumerator(Database database, View view, Cursor cursor, QueryOptions options, long sequenceNumber) {
+        this.database = database;
+        this.view = view;
+        this.cursor = cursor;
+        this.options = options;
+        this.sequenceNumber = sequenceNumber;
+        readNextStreamedRow();
+    }
+
     /**
      * Constructor
      */
     @InterfaceAudience.Private
     /* package */ QueryEnumerator(QueryEnumerator other) {
+        if (other.isStreaming()) {
+            throw new IllegalStateException("A streaming QueryEnumerator can't be copied");
+        }
         this.database = other.database;
         this.rows = other.rows;
         this.sequenceNumber = other.sequenceNumber;
@@ -45,6 +83,7 @@ public class QueryEnumerator implements Iterator<QueryRow> {
      */
     @InterfaceAudience.Public
     public int getCount() {
+        checkNotStreaming("getCount");
         return rows.size();
     }
 
@@ -63,6 +102,14 @@ public class QueryEnumerator implements Iterator<QueryRow> {
     @Override
     @InterfaceAudience.Public
     public QueryRow next() {
+        if (isStreaming()) {
+            checkStreamingError();
+            QueryRow row = nextStreamedRow;
+            if (row != null) {
+                readNextStreamedRow();
+            }
+            return row;
+        }
         if (nextRow >= rows.size()) {
             return null;
         }
@@ -74,6 +121,7 @@ public class QueryEnumerator implements Iterator<QueryRow> {
      */
     @InterfaceAudience.Public
     public QueryRow getRow(int index) {
+        checkNotStreaming("getRow");
         return rows.get(index);
     }
 
@@ -93,6 +141,10 @@ public class QueryEnumerator implements Iterator<QueryRow> {
 
         QueryEnumerator that = (QueryEnumerator) o;
 
+        if (isStreaming() || that.isStreaming()) {
+            return false;
+        }
+
         if (rows != null ? !rows.equals(that.rows) : that.rows != null) return false;
 
         return true;
@@ -104,6 +156,10 @@ public class QueryEnumerator implements Iterator<QueryRow> {
     @Override
     @InterfaceAudience.Public
     public boolean hasNext() {
+        if (isStreaming()) {
+            checkStreamingError();
+            return nextStreamedRow != null;
+        }
         return nextRow < rows.size();
     }
 
@@ -129,8 +185,110 @@ public class QueryEnumerator implements Iterator<QueryRow> {
      */
     @InterfaceAudience.Public
     public void reset() {
+        checkNotStreaming("reset");
         nextRow = 0;
     }
 
+    /**
+     * Whether the rows are read from the database as they're enumerated.
+     */
+    @InterfaceAudience.Public
+    public boolean isStreaming() {
+        return view != null;
+    }
+
+    /**
+     * The error that stopped a streaming enumerator from reading any further rows, or null.
+     */
+    @InterfaceAudience.Public
+    public SQLException getError() {
+        return streamingError;
+    }
+
+    /**
+     * Releases the database cursor of a streaming enumerator that won't be enumerated to the
+     * end. Does nothing otherwise.
+     */
+    @Override
+    @InterfaceAudience.Public
+    public void close() {
+        nextStreamedRow = null;
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+    private void readNextStreamedRow() {
+        nextStreamedRow = null;
+        if (cursor == null) {
+            return;
+        }
+        try {
+            if (cursor.moveToNext()) {
+                nextStreamedRow = view.rowFromCursor(cursor, options);
+                if (pageTracker != null) {
+                    pageTracker.add(nextStreamedRow);
+                }
+            } else {
+                streamedToEnd = true;
+            }
+        } catch (SQLException e) {
+            Log.e(Log.TAG_QUERY, "Error reading query row", e);
+            streamingError = e;
+        } finally {
+            if (nextStreamedRow == null) {
+                close();
+            }
+        }
+    }
+
+    private void checkStreamingError() {
+        if (streamingError != null) {
+            throw streamingError;
+        }
+    }
+
+    /**
+     * An opaque token that, passed to Query.setContinuationToken(), makes the query return the
+     * page of rows following these ones. Null if these rows are the last page, or the query
+     * didn't have a limit, was reduced, or was a view query that wasn't paged
+     * (see Query.setPaged()). A streaming enumerator only has a token once it's been
+     * enumerated to the end.
+     */
+    @InterfaceAudience.Public
+    public String getContinuationToken() {
+        if (pageTracker == null || (isStreaming() && !streamedToEnd)) {
+            return null;
+        }
+        QueryPageToken nextPage = pageTracker.getNextPage();
+        return (nextPage != null) ? nextPage.encode() : null;
+    }
+
+    /**
+     * Starts tracking where the page of rows ends, for getContinuationToken().
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    /* package */ void trackPage(QueryPageToken.Tracker tracker) {
+        pageTracker = tracker;
+        if (isStreaming()) {
+            // The first row has already been read ahead:
+            if (nextStreamedRow != null) {
+                tracker.add(nextStreamedRow);
+            }
+        } else {
+            for (QueryRow row : rows) {
+                tracker.add(row);
+            }
+        }
+    }
+
+    private void checkNotStreaming(String method) {
+        if (isStreaming()) {
+            throw new UnsupportedOperationException(method + "() isn't supported by a streaming QueryEnumerator");
+        }
+    }
+
 
 }
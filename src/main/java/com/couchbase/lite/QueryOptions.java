@@ -39,10 +39,12 @@ public class QueryOptions {
     private boolean includeDocs = false;
 
     private boolean updateSeq = false;
+    private boolean inclusiveStart = true;
     private boolean inclusiveEnd = true;
     private boolean reduce = false;
     private boolean reduceSpecified = false;
     private boolean group = false;
+    private boolean orderedByDocId = false;
     private Query.IndexUpdateMode stale = Query.IndexUpdateMode.BEFORE;
     private Query.AllDocsMode allDocsMode;
 
@@ -106,6 +108,18 @@ public class QueryOptions {
         this.updateSeq = updateSeq;
     }
 
+    /**
+     * Whether rows with the start key are included. Only all-docs queries honour this, as doc IDs
+     * are unique; view queries resume after a row with startKeyDocId and skip instead.
+     */
+    public boolean isInclusiveStart() {
+        return inclusiveStart;
+    }
+
+    public void setInclusiveStart(boolean inclusiveStart) {
+        this.inclusiveStart = inclusiveStart;
+    }
+
     public boolean isInclusiveEnd() {
         return inclusiveEnd;
     }
@@ -162,6 +176,17 @@ public class QueryOptions {
         this.stale = stale;
     }
 
+    /**
+     * Whether rows with equal keys are ordered by doc ID, as paging needs.
+     */
+    public boolean isOrderedByDocId() {
+        return orderedByDocId;
+    }
+
+    public void setOrderedByDocId(boolean orderedByDocId) {
+        this.orderedByDocId = orderedByDocId;
+    }
+
     public boolean isReduceSpecified() {
         return reduceSpecified;
     }
@@ -0,0 +1,142 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.util.Base64;
+import com.couchbase.lite.util.Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The position a query page ended at, as passed from one page to the next by
+ * Query.setContinuationToken(): the key and doc ID of the last row, and how many rows with that
+ * same key and doc ID (i.e. emitted by the same document) have already been returned.
+ *
+ * The next page then seeks straight to that position through the index instead of skipping
+ * over all the rows of the earlier pages, so every page costs the same.
+ * @exclude
+ */
+@InterfaceAudience.Private
+/* package */ final class QueryPageToken {
+
+    private final Object key;
+    private final String docID;
+    private final int skip;
+
+    QueryPageToken(Object key, String docID, int skip) {
+        this.key = key;
+        this.docID = docID;
+        this.skip = skip;
+    }
+
+    Object getKey() {
+        return key;
+    }
+
+    String getDocID() {
+        return docID;
+    }
+
+    int getSkip() {
+        return skip;
+    }
+
+    /**
+     * Encodes the token as an opaque, URL-safe string.
+     */
+    String encode() {
+        List<Object> array = new ArrayList<Object>();
+        array.add(key);
+        array.add(docID);
+        array.add(skip);
+        try {
+            byte[] json = Manager.getObjectMapper().writeValueAsBytes(array);
+            return Base64.encodeToString(json, Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Decodes a string returned by encode().
+     * @throws IllegalArgumentException if the string isn't a valid token
+     */
+    static QueryPageToken decode(String token) {
+        try {
+            byte[] json = Base64.decode(token, Base64.URL_SAFE);
+            List<?> array = Manager.getObjectMapper().readValue(json, List.class);
+            if (array.size() != 3 || !(array.get(2) instanceof Number)
+                    || (array.get(1) != null && !(array.get(1) instanceof String))) {
+                throw new IllegalArgumentException("Invalid query continuation token: " + token);
+            }
+            return new QueryPageToken(array.get(0), (String) array.get(1), ((Number) array.get(2)).intValue());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid query continuation token: " + token, e);
+        }
+    }
+
+    /**
+     * Tracks the rows of a page as they're returned, to work out where the next page starts.
+     */
+    static class Tracker {
+
+        private final boolean allDocs;
+        private final int limit;
+        private final QueryPageToken start;
+
+        private int rowCount;
+        private Object lastKey;
+        private String lastDocID;
+        private int sameRowCount;
+
+        /**
+         * @param allDocs whether the rows come from an all-docs query, whose rows are keyed by
+         *                their (unique) doc IDs
+         * @param limit the page size
+         * @param start the token the page started at, or null for the first page
+         */
+        Tracker(boolean allDocs, int limit, QueryPageToken start) {
+            this.allDocs = allDocs;
+            this.limit = limit;
+            this.start = start;
+        }
+
+        void add(QueryRow row) {
+            Object key = row.getKey();
+            String docID = row.getSourceDocumentId();
+            if (rowCount > 0 && Utils.isEqual(key, lastKey) && Utils.isEqual(docID, lastDocID)) {
+                sameRowCount++;
+            } else {
+                lastKey = key;
+                lastDocID = docID;
+                sameRowCount = 1;
+                if (rowCount == 0 && start != null && Utils.isEqual(key, start.key)
+                        && Utils.isEqual(docID, start.docID)) {
+                    // Still within the rows of the document the previous page ended in:
+                    sameRowCount += start.skip;
+                }
+            }
+            rowCount++;
+        }
+
+        /**
+         * The token to continue from, or null if the page was the last one.
+         */
+        QueryPageToken getNextPage() {
+            if (rowCount == 0) {
+                return null;
+            }
+            if (allDocs) {
+                // Doc IDs are unique so the next page simply starts after the last one. Rows
+                // filtered out by the all-docs mode still count towards the limit, so a short
+                // page isn't necessarily the last one.
+                return new QueryPageToken(lastKey, null, 0);
+            }
+            if (rowCount < limit) {
+                return null;
+            }
+            return new QueryPageToken(lastKey, lastDocID, sameRowCount);
+        }
+    }
+}
@@ -234,7 +234,7 @@ public class QueryRow {
             // If values were emitted, compare them. Otherwise we have nothing to go on so check
             // if _anything_ about the doc has changed (i.e. the sequences are different.)
             if (value != null || other.getValue() != null) {
-                return value.equals(other.getValue());
+                return Utils.isEqual(value, other.getValue());
             }
             else {
                 return sequence == other.sequence;
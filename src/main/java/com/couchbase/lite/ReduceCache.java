@@ -0,0 +1,337 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteStatementCache;
+import com.couchbase.lite.support.JsonDocument;
+import com.couchbase.lite.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persisted intermediate reductions of a view, so that reduced and grouped queries take time
+ * proportional to the number of distinct keys rather than the number of rows.
+ *
+ * The 'reduces' table holds one bucket per distinct key of the view's index, with the reduction
+ * of all the rows emitted with that key. Triggers on the 'maps' table mark a key's bucket dirty
+ * whenever rows with that key are added or removed, by View.updateIndex() or anything else, and
+ * dirty buckets are re-reduced from their rows before the next query. Queries then rereduce the
+ * buckets: group=true returns them as they are, a group level rereduces the buckets of each
+ * group, and a full reduce rereduces them all. The result of a full reduce over the whole index
+ * is kept as well, in the 'views' table, until a bucket changes.
+ *
+ * Each view has triggers of its own, created when its cache is built on its first cached query
+ * and dropped when the cache is reset, so indexing the views that don't use the cache costs
+ * nothing extra. Since the buckets are combined with rereduce, the view's reduce function must
+ * support it.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+final class ReduceCache {
+
+    private static final String INSERT_TRIGGER = "maps_insert_reduce_";
+
+    private static final String DELETE_TRIGGER = "maps_delete_reduce_";
+
+    private static final String IS_ENABLED_SQL = "SELECT reduce_cache FROM views WHERE view_id=?";
+
+    private static final String DIRTY_KEYS_SQL = "SELECT key FROM reduces WHERE view_id=? AND dirty=1";
+
+    private static final String ROWS_WITH_KEY_SQL = "SELECT key, value FROM maps WHERE view_id=? AND key=?";
+
+    private static final String UPDATE_BUCKET_SQL =
+            "UPDATE reduces SET value=?, dirty=0 WHERE view_id=? AND key=?";
+
+    private static final String DELETE_BUCKET_SQL = "DELETE FROM reduces WHERE view_id=? AND key=?";
+
+    private static final String GET_TOTAL_SQL = "SELECT total_reduce FROM views WHERE view_id=?";
+
+    private static final String SET_TOTAL_SQL = "UPDATE views SET total_reduce=? WHERE view_id=?";
+
+    private final Database database;
+    private final View view;
+    private final Reducer reducer;
+    private final SQLiteStatementCache statements;
+    private final int viewId;
+
+    ReduceCache(Database database, View view) {
+        this.database = database;
+        this.view = view;
+        this.reducer = view.getReduce();
+        this.statements = database.getStatementCache();
+        this.viewId = view.getViewId();
+    }
+
+    /**
+     * Whether a reduced query with these options can be answered from the cache. Queries by
+     * specific keys or bounded by doc IDs need the individual rows, and the buckets are only
+     * ordered by the default collation.
+     */
+    static boolean canAnswer(View view, QueryOptions options) {
+        return view.getReduce() != null
+                && view.getCollation() == View.TDViewCollation.TDViewCollationUnicode
+                && options.getKeys() == null
+                && options.getStartKeyDocId() == null
+                && options.getEndKeyDocId() == null;
+    }
+
+    /**
+     * Drops a view's cache and stops maintaining it, before its index is deleted or rebuilt.
+     * Must be called within a transaction, before the 'maps' rows are deleted (so the triggers
+     * don't have to mark them all dirty first).
+     */
+    static void reset(Database database, int viewId) throws SQLException {
+        dropTriggers(database, viewId);
+        SQLiteStatementCache statements = database.getStatementCache();
+        statements.execute("UPDATE views SET reduce_cache=0, total_reduce=NULL WHERE view_id=?", viewId);
+        statements.execute("DELETE FROM reduces WHERE view_id=?", viewId);
+    }
+
+    /**
+     * Drops the triggers that maintain a view's cache, e.g. before the view is deleted.
+     */
+    static void dropTriggers(Database database, int viewId) throws SQLException {
+        database.getDatabase().execSQL("DROP TRIGGER IF EXISTS " + INSERT_TRIGGER + viewId);
+        database.getDatabase().execSQL("DROP TRIGGER IF EXISTS " + DELETE_TRIGGER + viewId);
+    }
+
+    /**
+     * Creates the 'maps' triggers that keep a view's buckets up to date.
+     */
+    private static void createTriggers(Database database, int viewId) throws SQLException {
+        database.getDatabase().execSQL("CREATE TRIGGER " + INSERT_TRIGGER + viewId + " AFTER INSERT ON maps "
+                + "WHEN new.view_id=" + viewId + " "
+                + "BEGIN "
+                + "INSERT OR REPLACE INTO reduces (view_id, key, value, dirty) "
+                + "VALUES (new.view_id, new.key, NULL, 1); "
+                + "END");
+        database.getDatabase().execSQL("CREATE TRIGGER " + DELETE_TRIGGER + viewId + " AFTER DELETE ON maps "
+                + "WHEN old.view_id=" + viewId + " "
+                + "BEGIN "
+                + "UPDATE reduces SET dirty=1 WHERE view_id=old.view_id AND key=old.key; "
+                + "END");
+    }
+
+    /**
+     * Runs a reduced or grouped query. Skip and limit apply to the reduced rows.
+     */
+    List<QueryRow> query(QueryOptions options) throws CouchbaseLiteException {
+        boolean success = false;
+        database.beginTransaction();
+        try {
+            refresh();
+            List<QueryRow> rows = reduce(options);
+            success = true;
+            return rows;
+        } catch (SQLException e) {
+            String errMsg = String.format("Error querying reduce cache of view: %s", view.getName());
+            Log.e(Log.TAG_VIEW, errMsg, e);
+            throw new CouchbaseLiteException(errMsg, e, new Status(Status.DB_ERROR));
+        } finally {
+            database.endTransaction(success);
+        }
+    }
+
+    /**
+     * Builds the cache if it doesn't exist yet, then re-reduces the dirty buckets.
+     */
+    private void refresh() throws SQLException {
+        if (statements.queryForLong(0, IS_ENABLED_SQL, viewId) == 0) {
+            Log.v(Log.TAG_VIEW, "Building reduce cache of view %s", view.getName());
+            reset(database, viewId);
+            createTriggers(database, viewId);
+            // DISTINCT uses the column's JSON collation, just like the unique index:
+            statements.execute("INSERT INTO reduces (view_id, key, dirty) "
+                    + "SELECT DISTINCT view_id, key, 1 FROM maps WHERE view_id=?", viewId);
+            statements.execute("UPDATE views SET reduce_cache=1 WHERE view_id=?", viewId);
+        }
+
+        List<String> dirtyKeys = new ArrayList<String>();
+        Cursor cursor = statements.query(DIRTY_KEYS_SQL, viewId);
+        try {
+            while (cursor.moveToNext()) {
+                dirtyKeys.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (dirtyKeys.isEmpty()) {
+            return;
+        }
+
+        List<Object> keys = new ArrayList<Object>();
+        List<Object> values = new ArrayList<Object>();
+        for (String key : dirtyKeys) {
+            keys.clear();
+            values.clear();
+            cursor = statements.query(ROWS_WITH_KEY_SQL, viewId, key);
+            try {
+                while (cursor.moveToNext()) {
+                    keys.add(new JsonDocument(cursor.getBlob(0)).jsonObject());
+                    values.add(new JsonDocument(cursor.getBlob(1)).jsonObject());
+                }
+            } finally {
+                cursor.close();
+            }
+            if (keys.isEmpty()) {
+                statements.execute(DELETE_BUCKET_SQL, viewId, key);
+            } else {
+                Object reduced = reducer.reduce(keys, values, false);
+                statements.execute(UPDATE_BUCKET_SQL, toJSON(reduced), viewId, key);
+            }
+        }
+        statements.execute(SET_TOTAL_SQL, null, viewId);
+        Log.v(Log.TAG_VIEW, "Re-reduced %d keys of view %s", dirtyKeys.size(), view.getName());
+    }
+
+    private List<QueryRow> reduce(QueryOptions options) throws SQLException {
+        int groupLevel = options.getGroupLevel();
+        boolean group = options.isGroup() || (groupLevel > 0);
+        boolean wholeIndex = (options.getStartKey() == null && options.getEndKey() == null);
+
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        if (!group && wholeIndex) {
+            String total = statements.queryForString(GET_TOTAL_SQL, viewId);
+            if (total != null) {
+                addRow(rows, null, fromJSON(total));
+                return limit(rows, options);
+            }
+        }
+
+        List<Object> values = new ArrayList<Object>();
+        Object lastKey = null;
+        Cursor cursor = queryBuckets(options);
+        try {
+            while (cursor.moveToNext()) {
+                Object key = new JsonDocument(cursor.getBlob(0)).jsonObject();
+                Object value = new JsonDocument(cursor.getBlob(1)).jsonObject();
+                if (group && groupLevel == 0) {
+                    // Each bucket is a group of its own:
+                    addRow(rows, key, value);
+                    continue;
+                }
+                if (group && lastKey != null && !View.groupTogether(key, lastKey, groupLevel)) {
+                    addRow(rows, View.groupKey(lastKey, groupLevel), rereduce(values));
+                    values.clear();
+                }
+                if (lastKey == null || group) {
+                    lastKey = key;
+                }
+                values.add(value);
+                if (values.size() >= View.REDUCE_BATCH_SIZE) {
+                    // Keep memory bounded however many buckets there are:
+                    Object partial = rereduce(values);
+                    values.clear();
+                    values.add(partial);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (!values.isEmpty()) {
+            Object reduced = rereduce(values);
+            addRow(rows, group ? View.groupKey(lastKey, groupLevel) : null, reduced);
+            if (!group && wholeIndex) {
+                statements.execute(SET_TOTAL_SQL, toJSON(reduced), viewId);
+            }
+        }
+        return limit(rows, options);
+    }
+
+    /**
+     * Selects the buckets within the query's key range, in the query's order.
+     */
+    private Cursor queryBuckets(QueryOptions options) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT key, value FROM reduces WHERE view_id=?");
+        List<Object> args = new ArrayList<Object>();
+        args.add(viewId);
+
+        String minKey = view.toJSONString(options.getStartKey());
+        String maxKey = view.toJSONString(options.getEndKey());
+        boolean inclusiveMax = options.isInclusiveEnd();
+        boolean inclusiveMin = true;
+        if (options.isDescending()) {
+            String min = minKey;
+            minKey = maxKey;
+            maxKey = min;
+            inclusiveMin = inclusiveMax;
+            inclusiveMax = true;
+        }
+        if (minKey != null) {
+            sql.append(inclusiveMin ? " AND key >= ?" : " AND key > ?");
+            args.add(minKey);
+        }
+        if (maxKey != null) {
+            sql.append(inclusiveMax ? " AND key <= ?" : " AND key < ?");
+            args.add(maxKey);
+        }
+        sql.append(options.isDescending() ? " ORDER BY key DESC" : " ORDER BY key");
+        return statements.query(sql.toString(), args.toArray());
+    }
+
+    /**
+     * Combines reductions, a batch at a time.
+     */
+    private Object rereduce(List<Object> values) {
+        while (values.size() > View.REDUCE_BATCH_SIZE) {
+            List<Object> partials = new ArrayList<Object>();
+            for (int start = 0; start < values.size(); start += View.REDUCE_BATCH_SIZE) {
+                int end = Math.min(start + View.REDUCE_BATCH_SIZE, values.size());
+                partials.add(reducer.reduce(null, new ArrayList<Object>(values.subList(start, end)), true));
+            }
+            values = partials;
+        }
+        return reducer.reduce(null, new ArrayList<Object>(values), true);
+    }
+
+    private void addRow(List<QueryRow> rows, Object key, Object value) {
+        QueryRow row = new QueryRow(null, 0, key, value, null);
+        row.setDatabase(database);
+        rows.add(row);
+    }
+
+    private static List<QueryRow> limit(List<QueryRow> rows, QueryOptions options) {
+        int start = Math.min(options.getSkip(), rows.size());
+        int end = (int) Math.min((long) start + options.getLimit(), rows.size());
+        if (start == 0 && end == rows.size()) {
+            return rows;
+        }
+        return new ArrayList<QueryRow>(rows.subList(start, end));
+    }
+
+    private static String toJSON(Object value) {
+        try {
+            // A null reduction is stored as "null", so that it differs from no value at all:
+            return Manager.getObjectMapper().writeValueAsString(value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Object fromJSON(String json) {
+        try {
+            return Manager.getObjectMapper().readValue(json, Object.class);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
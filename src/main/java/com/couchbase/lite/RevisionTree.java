@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The revision tree of one document, as stored in the 'revs' table: each revision's sequence,
+ * parent sequence, revID and flags, but not its body. Database keeps the trees of recently used
+ * documents in memory, so that revision histories and ancestors can be found without reading
+ * and walking every revision of the document each time.
+ *
+ * A tree may be read by several threads while the thread in a transaction adds to it, so all
+ * access is synchronized.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+final class RevisionTree {
+
+    // Rough heap cost of a node apart from its revID's characters, for the cache's budget.
+    private static final int NODE_OVERHEAD = 120;
+
+    private static final class Node {
+        final long sequence;
+        final long parent;
+        final String revID;
+        final boolean deleted;
+        final boolean missing;
+
+        Node(long sequence, long parent, String revID, boolean deleted, boolean missing) {
+            this.sequence = sequence;
+            this.parent = parent;
+            this.revID = revID;
+            this.deleted = deleted;
+            this.missing = missing;
+        }
+    }
+
+    // In sequence order:
+    private final List<Node> nodes = new ArrayList<Node>();
+    private final Map<Long, Node> bySequence = new HashMap<Long, Node>();
+    private final Map<String, Node> byRevID = new HashMap<String, Node>();
+    // Sequences of the revisions that have children, i.e. that aren't leaves:
+    private final Set<Long> parents = new HashSet<Long>();
+    private int size;
+
+    /**
+     * Adds a revision, which must have a higher sequence than all the others.
+     */
+    synchronized void add(long sequence, long parent, String revID, boolean deleted, boolean missing) {
+        Node node = new Node(sequence, parent, revID, deleted, missing);
+        nodes.add(node);
+        bySequence.put(sequence, node);
+        byRevID.put(revID, node);
+        if (parent > 0) {
+            parents.add(parent);
+        }
+        size += NODE_OVERHEAD + 2 * revID.length();
+    }
+
+    /**
+     * Estimated heap size, in bytes.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * The revision and its ancestors, newest first, or an empty list if it isn't in the tree.
+     */
+    synchronized List<RevisionInternal> getHistory(String docID, String revID, Database database) {
+        List<RevisionInternal> result = new ArrayList<RevisionInternal>();
+        Node node = byRevID.get(revID);
+        while (node != null) {
+            result.add(toRevision(docID, node, database));
+            node = (node.parent > 0) ? bySequence.get(node.parent) : null;
+        }
+        return result;
+    }
+
+    /**
+     * A revision, without its body, or null if it isn't in the tree.
+     */
+    synchronized RevisionInternal getRevision(String docID, String revID, Database database) {
+        Node node = byRevID.get(revID);
+        return (node != null) ? toRevision(docID, node, database) : null;
+    }
+
+    /**
+     * The winning leaf revision, in the same order as Database.winningRevIDOfDoc(): live
+     * revisions first, then the highest revID. Null if the tree is empty.
+     */
+    synchronized RevisionInternal getWinningRevision(String docID, Database database) {
+        Node best = null;
+        for (Node node : nodes) {
+            if (parents.contains(node.sequence)) {
+                continue;
+            }
+            if (best == null
+                    || (best.deleted && !node.deleted)
+                    || (best.deleted == node.deleted
+                        && RevisionInternal.CBLCompareRevIDs(node.revID, best.revID) > 0)) {
+                best = node;
+            }
+        }
+        return (best != null) ? toRevision(docID, best, database) : null;
+    }
+
+    /**
+     * Whether the document has more than one live leaf revision.
+     */
+    synchronized boolean isInConflict() {
+        int live = 0;
+        for (Node node : nodes) {
+            if (!node.deleted && !parents.contains(node.sequence) && ++live > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The highest of the given revIDs (in revID order) that are in the tree and no higher than
+     * maxRevID, or null.
+     */
+    synchronized String findCommonAncestor(List<String> revIDs, String maxRevID) {
+        String result = null;
+        for (String revID : revIDs) {
+            if (byRevID.containsKey(revID)
+                    && RevisionInternal.CBLCompareRevIDs(revID, maxRevID) <= 0
+                    && (result == null || RevisionInternal.CBLCompareRevIDs(revID, result) > 0)) {
+                result = revID;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The revIDs of up to limit (if positive) non-deleted revisions that still have their
+     * bodies and a lower generation than the given one, most recent first.
+     */
+    synchronized List<String> getPossibleAncestors(int generation, int limit) {
+        List<String> result = new ArrayList<String>();
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            Node node = nodes.get(i);
+            if (node.deleted || node.missing || Revision.generationFromRevID(node.revID) >= generation) {
+                continue;
+            }
+            result.add(node.revID);
+            if (limit > 0 && result.size() >= limit) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The sequence of a revision, or 0 if it isn't in the tree.
+     */
+    synchronized long getSequence(String revID) {
+        Node node = byRevID.get(revID);
+        return (node != null) ? node.sequence : 0;
+    }
+
+    private static RevisionInternal toRevision(String docID, Node node, Database database) {
+        RevisionInternal rev = new RevisionInternal(docID, node.revID, node.deleted, database);
+        rev.setMissing(node.missing);
+        rev.setSequence(node.sequence);
+        return rev;
+    }
+}
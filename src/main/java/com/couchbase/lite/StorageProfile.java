@@ -0,0 +1,208 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+/**
+ * SQLite tuning settings applied to each database when it's opened.
+ *
+ * Start from one of the presets and override individual settings as needed:
+ * <pre>
+ * options.setStorageProfile(StorageProfile.balanced().setCacheSize(-16384));
+ * </pre>
+ * A setting left null keeps SQLite's own default.
+ */
+@InterfaceAudience.Public
+public class StorageProfile {
+
+    /**
+     * Synchronous setting used while a database is in bulk-load mode, if the profile doesn't
+     * specify one.
+     */
+    public static final String DEFAULT_BULK_LOAD_SYNCHRONOUS = "OFF";
+
+    /**
+     * Default number of revisions a pull has to insert at once to use bulk-load mode.
+     */
+    public static final int DEFAULT_BULK_LOAD_THRESHOLD = 50;
+
+    private String journalMode;
+    private String synchronous;
+    private Integer pageSize;
+    private Integer cacheSize;
+    private Long mmapSize;
+    private String bulkLoadSynchronous;
+    private int bulkLoadThreshold = DEFAULT_BULK_LOAD_THRESHOLD;
+
+    /**
+     * Write-ahead logging with a full sync on every commit, and no bulk-load mode. A committed
+     * transaction survives a power failure. This is the default.
+     */
+    @InterfaceAudience.Public
+    public static StorageProfile durable() {
+        return new StorageProfile()
+                .setJournalMode("WAL")
+                .setSynchronous("FULL");
+    }
+
+    /**
+     * Write-ahead logging that only syncs at checkpoints. The database can't be corrupted, but the
+     * last transactions before a power failure may be rolled back. Large pulls run in bulk-load
+     * mode.
+     */
+    @InterfaceAudience.Public
+    public static StorageProfile balanced() {
+        return new StorageProfile()
+                .setJournalMode("WAL")
+                .setSynchronous("NORMAL")
+                .setCacheSize(-8192)
+                .setBulkLoadSynchronous(DEFAULT_BULK_LOAD_SYNCHRONOUS);
+    }
+
+    /**
+     * No syncing at all and a large page cache, for loading a database that can be rebuilt if the
+     * device crashes, e.g. an initial pull.
+     */
+    @InterfaceAudience.Public
+    public static StorageProfile bulkLoad() {
+        return new StorageProfile()
+                .setJournalMode("WAL")
+                .setSynchronous("OFF")
+                .setCacheSize(-32768)
+                .setMmapSize(64L * 1024 * 1024)
+                .setBulkLoadSynchronous("OFF");
+    }
+
+    /**
+     * Creates a profile that leaves every setting at SQLite's default.
+     */
+    @InterfaceAudience.Public
+    public StorageProfile() {
+    }
+
+    @InterfaceAudience.Public
+    public String getJournalMode() {
+        return journalMode;
+    }
+
+    /**
+     * Sets the journal mode, e.g. "WAL" or "DELETE".
+     */
+    @InterfaceAudience.Public
+    public StorageProfile setJournalMode(String journalMode) {
+        this.journalMode = checkKeyword(journalMode, "journalMode");
+        return this;
+    }
+
+    @InterfaceAudience.Public
+    public String getSynchronous() {
+        return synchronous;
+    }
+
+    /**
+     * Sets the synchronous setting: "FULL", "NORMAL" or "OFF".
+     */
+    @InterfaceAudience.Public
+    public StorageProfile setSynchronous(String synchronous) {
+        this.synchronous = checkKeyword(synchronous, "synchronous");
+        return this;
+    }
+
+    @InterfaceAudience.Public
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the page size in bytes, a power of two between 512 and 65536. Only takes effect when
+     * the database file is created.
+     */
+    @InterfaceAudience.Public
+    public StorageProfile setPageSize(Integer pageSize) {
+        if (pageSize != null && (pageSize < 512 || pageSize > 65536 || Integer.bitCount(pageSize) != 1)) {
+            throw new IllegalArgumentException("Invalid pageSize: " + pageSize);
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    @InterfaceAudience.Public
+    public Integer getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets the page cache size: a number of pages if positive, or a number of KiB if negative.
+     */
+    @InterfaceAudience.Public
+    public StorageProfile setCacheSize(Integer cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    @InterfaceAudience.Public
+    public Long getMmapSize() {
+        return mmapSize;
+    }
+
+    /**
+     * Sets the maximum number of bytes of the database file to memory-map, or 0 to disable
+     * memory-mapped I/O.
+     */
+    @InterfaceAudience.Public
+    public StorageProfile setMmapSize(Long mmapSize) {
+        if (mmapSize != null && mmapSize < 0) {
+            throw new IllegalArgumentException("mmapSize < 0");
+        }
+        this.mmapSize = mmapSize;
+        return this;
+    }
+
+    @InterfaceAudience.Public
+    public String getBulkLoadSynchronous() {
+        return bulkLoadSynchronous;
+    }
+
+    /**
+     * Sets the synchronous setting used while a database is in bulk-load mode, or null to never
+     * relax it.
+     */
+    @InterfaceAudience.Public
+    public StorageProfile setBulkLoadSynchronous(String bulkLoadSynchronous) {
+        this.bulkLoadSynchronous = checkKeyword(bulkLoadSynchronous, "bulkLoadSynchronous");
+        return this;
+    }
+
+    @InterfaceAudience.Public
+    public int getBulkLoadThreshold() {
+        return bulkLoadThreshold;
+    }
+
+    /**
+     * Sets the number of revisions a pull has to insert at once to use bulk-load mode.
+     */
+    @InterfaceAudience.Public
+    public StorageProfile setBulkLoadThreshold(int bulkLoadThreshold) {
+        if (bulkLoadThreshold < 1) {
+            throw new IllegalArgumentException("bulkLoadThreshold < 1");
+        }
+        this.bulkLoadThreshold = bulkLoadThreshold;
+        return this;
+    }
+
+    /**
+     * Whether bulk-load mode should be used for a batch of the given number of revisions.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public boolean useBulkLoad(int revisionCount) {
+        return bulkLoadSynchronous != null && revisionCount >= bulkLoadThreshold;
+    }
+
+    // The values are pasted into PRAGMA statements, so only allow plain keywords.
+    private static String checkKeyword(String value, String name) {
+        if (value != null && !value.matches("[A-Za-z]+")) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+        return value;
+    }
+}
@@ -27,9 +27,10 @@ import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
 import com.couchbase.lite.support.JsonDocument;
 import com.couchbase.lite.util.Log;
-import com.couchbase.lite.util.Utils;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -58,6 +59,8 @@ public final class View {
     private Mapper mapBlock;
     private Reducer reduceBlock;
     private TDViewCollation collation;
+    private int indexParallelism;
+    private boolean reduceCacheEnabled;
     private static ViewCompiler compiler;
 
     /**
@@ -128,6 +131,51 @@ public final class View {
         return (getLastSequenceIndexed() < database.getLastSequenceNumber());
     }
 
+    /**
+     * The number of threads that run the map function while the index is being updated.
+     * Zero (the default) means the value from the Manager's options is used.
+     */
+    @InterfaceAudience.Public
+    public int getIndexParallelism() {
+        if (indexParallelism > 0 || database == null) {
+            return indexParallelism;
+        }
+        return database.getManager().getOptions().getIndexParallelism();
+    }
+
+    /**
+     * Sets the number of threads that run the map function while the index is being updated.
+     * Values greater than one only make sense if the map function is thread-safe, as described
+     * in setMapReduce(). Zero means the value from the Manager's options is used.
+     */
+    @InterfaceAudience.Public
+    public void setIndexParallelism(int indexParallelism) {
+        if (indexParallelism < 0) {
+            throw new IllegalArgumentException("indexParallelism < 0");
+        }
+        this.indexParallelism = indexParallelism;
+    }
+
+    /**
+     * Whether reduced and grouped queries are answered from intermediate reductions stored in
+     * the database, which are kept up to date as the index is updated, instead of reducing all
+     * the matching rows every time. Off by default.
+     */
+    @InterfaceAudience.Public
+    public boolean isReduceCacheEnabled() {
+        return reduceCacheEnabled;
+    }
+
+    /**
+     * Enables the reduce cache. The reduce function must then support rereduce: it's called
+     * with null keys and previous results of itself as values, to combine them. Like the map
+     * and reduce functions, this setting isn't persistent and must be made on every launch.
+     */
+    @InterfaceAudience.Public
+    public void setReduceCacheEnabled(boolean reduceCacheEnabled) {
+        this.reduceCacheEnabled = reduceCacheEnabled;
+    }
+
     /**
      * Get the last sequence number indexed so far.
      */
@@ -255,6 +303,7 @@ public final class View {
         try {
             database.beginTransaction();
 
+            ReduceCache.reset(database, getViewId());
             String[] whereArgs = { Integer.toString(getViewId()) };
             database.getDatabase().delete("maps", "view_id=?", whereArgs);
 
@@ -365,10 +414,8 @@ public final class View {
      * @return 200 if updated, 304 if already up-to-date, else an error code
      * @exclude
      */
-    @SuppressWarnings("unchecked")
     @InterfaceAudience.Private
     public void updateIndex() throws CouchbaseLiteException {
-        Log.v(Log.TAG_VIEW, "Re-indexing view: %s", name);
         assert (mapBlock != null);
 
         if (getViewId() <= 0) {
@@ -376,191 +423,108 @@ public final class View {
             throw new CouchbaseLiteException(msg, new Status(Status.NOT_FOUND));
         }
 
+        updateIndexes(database, Collections.singletonList(this));
+    }
+
+    /**
+     * Updates the indexes of several views of the same database (incrementally) if necessary,
+     * in a single pass over the revisions added since the stalest of them was last indexed.
+     * Each revision's body is only read and parsed once, however many views map it.
+     * All the views must have a map function and a valid view id.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    static void updateIndexes(Database database, List<View> views) throws CouchbaseLiteException {
         database.beginTransaction();
         Status result = new Status(Status.INTERNAL_SERVER_ERROR);
         Cursor cursor = null;
 
         try {
 
-            long lastSequence = getLastSequenceIndexed();
             long dbMaxSequence = database.getLastSequenceNumber();
-            if(lastSequence == dbMaxSequence) {
-                // nothing to do (eg,  kCBLStatusNotModified)
-                Log.v(Log.TAG_VIEW, "lastSequence (%s) == dbMaxSequence (%s), nothing to do",
-                        lastSequence, dbMaxSequence);
-                result.setCode(Status.NOT_MODIFIED);
-                return;
-            }
-
-            // First remove obsolete emitted results from the 'maps' table:
-            long sequence = lastSequence;
-            if (lastSequence < 0) {
-                String msg = String.format("lastSequence < 0 (%s)", lastSequence);
-                throw new CouchbaseLiteException(msg, new Status(Status.INTERNAL_SERVER_ERROR));
-            }
-
-            if (lastSequence == 0) {
-                // If the lastSequence has been reset to 0, make sure to remove
-                // any leftover rows:
-                String[] whereArgs = { Integer.toString(getViewId()) };
-                database.getDatabase().delete("maps", "view_id=?", whereArgs);
-            } else {
-                // Delete all obsolete map results (ones from since-replaced
-                // revisions):
-                String[] args = { Integer.toString(getViewId()),
-                        Long.toString(lastSequence),
-                        Long.toString(lastSequence) };
-                database.getDatabase().execSQL(
-                        "DELETE FROM maps WHERE view_id=? AND sequence IN ("
-                                + "SELECT parent FROM revs WHERE sequence>? "
-                                + "AND parent>0 AND parent<=?)", args);
-            }
-
-            int deleted = 0;
-            cursor = database.getDatabase().rawQuery("SELECT changes()", null);
-            cursor.moveToNext();
-            deleted = cursor.getInt(0);
-            cursor.close();
-
-            // This is the emit() block, which gets called from within the
-            // user-defined map() block
-            // that's called down below.
-            AbstractTouchMapEmitBlock emitBlock = new AbstractTouchMapEmitBlock() {
-
-                @Override
-                public void emit(Object key, Object value) {
-
-                    try {
-                        String valueJson;
-                        String keyJson = Manager.getObjectMapper().writeValueAsString(key);
-                        if (value==null) {
-                            valueJson = null;
-                        } else{
-                            valueJson = Manager.getObjectMapper().writeValueAsString(value);
-                        }
-                        //Log.v(Log.TAG_VIEW, "    emit(" + keyJson + ", "
-                        //        + valueJson + ")");
-
-                        ContentValues insertValues = new ContentValues();
-                        insertValues.put("view_id", getViewId());
-                        insertValues.put("sequence", sequence);
-                        insertValues.put("key", keyJson);
-                        insertValues.put("value", valueJson);
-                        database.getDatabase().insert("maps", null, insertValues);
-                    } catch (Exception e) {
-                        Log.e(Log.TAG_VIEW, "Error emitting", e);
-                        // find a better way to propagate this back
-                    }
-                }
-            };
-
-            // Now scan every revision added since the last time the view was
-            // indexed:
-            String[] selectArgs = { Long.toString(lastSequence) };
-
-            cursor = database.getDatabase().rawQuery(
-                    "SELECT revs.doc_id, sequence, docid, revid, json, no_attachments FROM revs, docs "
-                            + "WHERE sequence>? AND current!=0 AND deleted=0 "
-                            + "AND revs.doc_id = docs.doc_id "
-                            + "ORDER BY revs.doc_id, revid DESC", selectArgs);
-
-
-            boolean keepGoing = cursor.moveToNext();
-            while (keepGoing) {
-                long docID = cursor.getLong(0);
-
-                // Reconstitute the document as a dictionary:
-                sequence = cursor.getLong(1);
-                String docId = cursor.getString(2);
-                if(docId.startsWith("_design/")) {  // design docs don't get indexed!
-                    keepGoing = cursor.moveToNext();
+            List<View> staleViews = new ArrayList<View>(views.size());
+            long[] lastSequences = new long[views.size()];
+            int[] deleted = new int[views.size()];
+            // All the views are mapped together, so they run on as many threads as the least
+            // parallel of them allows: a view left at 1 may have a map function that isn't
+            // thread-safe.
+            int parallelism = Integer.MAX_VALUE;
+
+            for (View view : views) {
+                Log.v(Log.TAG_VIEW, "Re-indexing view: %s", view.getName());
+                long lastSequence = view.getLastSequenceIndexed();
+                if(lastSequence == dbMaxSequence) {
+                    // nothing to do (eg,  kCBLStatusNotModified)
+                    Log.v(Log.TAG_VIEW, "lastSequence (%s) == dbMaxSequence (%s), nothing to do",
+                            lastSequence, dbMaxSequence);
                     continue;
                 }
-                String revId = cursor.getString(3);
-                byte[] json = cursor.getBlob(4);
-
-                boolean noAttachments = cursor.getInt(5) > 0;
 
-                while ((keepGoing = cursor.moveToNext()) &&  cursor.getLong(0) == docID) {
-                    // Skip rows with the same doc_id -- these are losing conflicts.
+                // First remove obsolete emitted results from the 'maps' table:
+                if (lastSequence < 0) {
+                    String msg = String.format("lastSequence < 0 (%s)", lastSequence);
+                    throw new CouchbaseLiteException(msg, new Status(Status.INTERNAL_SERVER_ERROR));
                 }
 
-                if (lastSequence > 0) {
-                    // Find conflicts with documents from previous indexings.
-                    String[] selectArgs2 = { Long.toString(docID), Long.toString(lastSequence) };
-
-                    Cursor cursor2 = null;
-                    try {
-                        cursor2 = database.getDatabase().rawQuery(
-                                "SELECT revid, sequence FROM revs "
-                                        + "WHERE doc_id=? AND sequence<=? AND current!=0 AND deleted=0 "
-                                        + "ORDER BY revID DESC "
-                                        + "LIMIT 1", selectArgs2);
-
-                        if (cursor2.moveToNext()) {
-                            String oldRevId = cursor2.getString(0);
-                            // This is the revision that used to be the 'winner'.
-                            // Remove its emitted rows:
-                            long oldSequence = cursor2.getLong(1);
-                            String[] args = {
-                                    Integer.toString(getViewId()),
-                                    Long.toString(oldSequence)
-                            };
-                            database.getDatabase().execSQL(
-                                    "DELETE FROM maps WHERE view_id=? AND sequence=?", args);
-                            if (RevisionInternal.CBLCompareRevIDs(oldRevId, revId) > 0) {
-                                // It still 'wins' the conflict, so it's the one that
-                                // should be mapped [again], not the current revision!
-                                revId = oldRevId;
-                                sequence = oldSequence;
-
-                                String[] selectArgs3 = { Long.toString(sequence) };
-                                json = Utils.byteArrayResultForQuery(database.getDatabase(), "SELECT json FROM revs WHERE sequence=?", selectArgs3);
-
-                            }
-                        }
-                    } finally {
-                        if (cursor2 != null) {
-                            cursor2.close();
-                        }
-                    }
+                if (lastSequence == 0) {
+                    // If the lastSequence has been reset to 0, make sure to remove
+                    // any leftover rows:
+                    ReduceCache.reset(database, view.getViewId());
+                    String[] whereArgs = { Integer.toString(view.getViewId()) };
+                    database.getDatabase().delete("maps", "view_id=?", whereArgs);
+                } else {
+                    // Delete all obsolete map results (ones from since-replaced
+                    // revisions):
+                    String[] args = { Integer.toString(view.getViewId()),
+                            Long.toString(lastSequence),
+                            Long.toString(lastSequence) };
+                    database.getDatabase().execSQL(
+                            "DELETE FROM maps WHERE view_id=? AND sequence IN ("
+                                    + "SELECT parent FROM revs WHERE sequence>? "
+                                    + "AND parent>0 AND parent<=?)", args);
+                }
 
+                cursor = database.getDatabase().rawQuery("SELECT changes()", null);
+                cursor.moveToNext();
+                deleted[staleViews.size()] = cursor.getInt(0);
+                cursor.close();
+                cursor = null;
 
-                }
+                lastSequences[staleViews.size()] = lastSequence;
+                staleViews.add(view);
+                parallelism = Math.min(parallelism, Math.max(1, view.getIndexParallelism()));
+            }
 
-                // Get the document properties, to pass to the map function:
-                EnumSet<TDContentOptions> contentOptions = EnumSet.noneOf(Database.TDContentOptions.class);
-                if (noAttachments)
-                    contentOptions.add(TDContentOptions.TDNoAttachments);
-                Map<String, Object> properties = database.documentPropertiesFromJSON(
-                        json,
-                        docId,
-                        revId,
-                        false,
-                        sequence,
-                        contentOptions
-                );
-                if (properties != null) {
-                    // Call the user-defined map() to emit new key/value
-                    // pairs from this revision:
-                    emitBlock.setSequence(sequence);
-                    mapBlock.map(properties, emitBlock);
-                }
+            if (staleViews.isEmpty()) {
+                result.setCode(Status.NOT_MODIFIED);
+                return;
+            }
 
+            // Now scan every revision added since the stalest view was last
+            // indexed, and run the map functions over it:
+            if (staleViews.size() < views.size()) {
+                long[] trimmed = new long[staleViews.size()];
+                System.arraycopy(lastSequences, 0, trimmed, 0, trimmed.length);
+                lastSequences = trimmed;
             }
+            ViewIndexer indexer = new ViewIndexer(database, staleViews, lastSequences, parallelism,
+                    (parallelism > 1) ? database.getManager().getIndexExecutor() : null);
+            int[] added = indexer.run();
 
             // Finally, record the last revision sequence number that was
             // indexed:
-            ContentValues updateValues = new ContentValues();
-            updateValues.put("lastSequence", dbMaxSequence);
-            String[] whereArgs = { Integer.toString(getViewId()) };
-            database.getDatabase().update("views", updateValues, "view_id=?",
-                    whereArgs);
-
-            // FIXME actually count number added :)
-            Log.v(Log.TAG_VIEW, "Finished re-indexing view: %s "
-                    + " up to sequence %s"
-                    + " (deleted %s added ?)", name, dbMaxSequence, deleted);
+            for (int i = 0; i < staleViews.size(); i++) {
+                View view = staleViews.get(i);
+                ContentValues updateValues = new ContentValues();
+                updateValues.put("lastSequence", dbMaxSequence);
+                String[] whereArgs = { Integer.toString(view.getViewId()) };
+                database.getDatabase().update("views", updateValues, "view_id=?",
+                        whereArgs);
+
+                Log.v(Log.TAG_VIEW, "Finished re-indexing view: %s "
+                        + " up to sequence %s"
+                        + " (deleted %s added %s)", view.getName(), dbMaxSequence, deleted[i], added[i]);
+            }
             result.setCode(Status.OK);
 
         } catch (SQLException e) {
@@ -570,11 +534,11 @@ public final class View {
                 cursor.close();
             }
             if (!result.isSuccessful()) {
-                Log.w(Log.TAG_VIEW, "Failed to rebuild view %s.  Result code: %d", name, result.getCode());
-            }
-            if(database != null) {
-                database.endTransaction(result.isSuccessful());
+                for (View view : views) {
+                    Log.w(Log.TAG_VIEW, "Failed to rebuild view %s.  Result code: %d", view.getName(), result.getCode());
+                }
             }
+            database.endTransaction(result.isSuccessful());
         }
 
     }
@@ -584,6 +548,16 @@ public final class View {
      */
     @InterfaceAudience.Private
     public Cursor resultSetWithOptions(QueryOptions options) {
+        return resultSetWithOptions(options, null);
+    }
+
+    /**
+     * Like resultSetWithOptions(options), but only returns rows emitted by the given documents
+     * (if not null).
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public Cursor resultSetWithOptions(QueryOptions options, Collection<String> docIDs) {
         if (options == null) {
             options = new QueryOptions();
         }
@@ -618,6 +592,17 @@ public final class View {
             sql += ")";
         }
 
+        if (docIDs != null) {
+            sql += " AND docid IN (";
+            String item = "?";
+            for (String docID : docIDs) {
+                sql += item;
+                item = ", ?";
+                argsList.add(docID);
+            }
+            sql += ")";
+        }
+
         String startKey = toJSONString(options.getStartKey());
         String endKey = toJSONString(options.getEndKey());
         String minKey = startKey;
@@ -672,7 +657,12 @@ public final class View {
                 + " AND revs.sequence = maps.sequence AND docs.doc_id = revs.doc_id ORDER BY key";
         sql += collationStr;
 
-        if (options.isDescending()) {
+        // For a paged query, rows with equal keys are ordered by doc ID, so that a page can resume
+        // from the (key, docid) of the previous page's last row (see QueryPageToken). maps has
+        // no docid to index, so that's a sort beyond the index; other queries skip it.
+        if (options.isOrderedByDocId()) {
+            sql += options.isDescending() ? " DESC, docid DESC" : ", docid";
+        } else if (options.isDescending()) {
             sql = sql + " DESC";
         }
 
@@ -687,6 +677,40 @@ public final class View {
         return cursor;
     }
 
+    /**
+     * Whether any of the given documents emits a row that the query with the given options would
+     * return, ignoring its skip and limit. Does NOT first update the index.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public boolean hasRowsForDocuments(QueryOptions options, Collection<String> docIDs) throws CouchbaseLiteException {
+        if (docIDs.isEmpty()) {
+            return false;
+        }
+        QueryOptions docOptions = new QueryOptions();
+        docOptions.setStartKey(options.getStartKey());
+        docOptions.setEndKey(options.getEndKey());
+        docOptions.setStartKeyDocId(options.getStartKeyDocId());
+        docOptions.setEndKeyDocId(options.getEndKeyDocId());
+        docOptions.setInclusiveEnd(options.isInclusiveEnd());
+        docOptions.setDescending(options.isDescending());
+        docOptions.setKeys(options.getKeys());
+        docOptions.setLimit(1);
+        Cursor cursor = null;
+        try {
+            cursor = resultSetWithOptions(docOptions, docIDs);
+            return cursor.moveToNext();
+        } catch (SQLException e) {
+            String errMsg = String.format("Error querying view: %s", this);
+            Log.e(Log.TAG_VIEW, errMsg, e);
+            throw new CouchbaseLiteException(errMsg, e, new Status(Status.DB_ERROR));
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * Are key1 and key2 grouped together at this groupLevel?
      * @exclude
@@ -848,6 +872,10 @@ public final class View {
         Cursor cursor = null;
         List<QueryRow> rows = new ArrayList<QueryRow>();
 
+        if (reduceCacheEnabled && isReduced(options) && ReduceCache.canAnswer(this, options)) {
+            return new ReduceCache(database, this).query(options);
+        }
+
         try {
             cursor = resultSetWithOptions(options);
             int groupLevel = options.getGroupLevel();
@@ -866,36 +894,7 @@ public final class View {
                 // regular query
                 cursor.moveToNext();
                 while (!cursor.isAfterLast()) {
-                    JsonDocument keyDoc = new JsonDocument(cursor.getBlob(0));
-                    JsonDocument valueDoc = new JsonDocument(cursor.getBlob(1));
-                    String docId = cursor.getString(2);
-                    int sequence =  Integer.valueOf(cursor.getString(3));
-                    Map<String, Object> docContents = null;
-                    if (options.isIncludeDocs()) {
-                        Object valueObject = valueDoc.jsonObject();
-                        // http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
-                        if (valueObject instanceof Map && ((Map) valueObject).containsKey("_id")) {
-                            String linkedDocId = (String) ((Map) valueObject).get("_id");
-                            RevisionInternal linkedDoc = database.getDocumentWithIDAndRev(
-                                    linkedDocId,
-                                    null,
-                                    EnumSet.noneOf(TDContentOptions.class)
-                            );
-                            docContents = linkedDoc.getProperties();
-                        } else {
-                            docContents = database.documentPropertiesFromJSON(
-                                    cursor.getBlob(5),
-                                    docId,
-                                    cursor.getString(4),
-                                    false,
-                                    cursor.getLong(3),
-                                    options.getContentOptions()
-                            );
-                        }
-                    }
-                    QueryRow row = new QueryRow(docId, sequence, keyDoc.jsonObject(), valueDoc.jsonObject(), docContents);
-                    row.setDatabase(database);
-                    rows.add(row);
+                    rows.add(rowFromCursor(cursor, options));
                     cursor.moveToNext();
 
                 }
@@ -916,6 +915,78 @@ public final class View {
     }
 
 
+    /**
+     * Decodes the row at the cursor's position, from a result set of a non-reduced query
+     * returned by resultSetWithOptions().
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    /* package */ QueryRow rowFromCursor(Cursor cursor, QueryOptions options) {
+        JsonDocument keyDoc = new JsonDocument(cursor.getBlob(0));
+        JsonDocument valueDoc = new JsonDocument(cursor.getBlob(1));
+        String docId = cursor.getString(2);
+        int sequence =  Integer.valueOf(cursor.getString(3));
+        Map<String, Object> docContents = null;
+        if (options.isIncludeDocs()) {
+            Object valueObject = valueDoc.jsonObject();
+            // http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
+            if (valueObject instanceof Map && ((Map) valueObject).containsKey("_id")) {
+                String linkedDocId = (String) ((Map) valueObject).get("_id");
+                RevisionInternal linkedDoc = database.getDocumentWithIDAndRev(
+                        linkedDocId,
+                        null,
+                        EnumSet.noneOf(TDContentOptions.class)
+                );
+                docContents = linkedDoc.getProperties();
+            } else {
+                docContents = database.documentPropertiesFromJSON(
+                        cursor.getBlob(5),
+                        docId,
+                        cursor.getString(4),
+                        false,
+                        cursor.getLong(3),
+                        options.getContentOptions()
+                );
+            }
+        }
+        QueryRow row = new QueryRow(docId, sequence, keyDoc.jsonObject(), valueDoc.jsonObject(), docContents);
+        row.setDatabase(database);
+        return row;
+    }
+
+    /**
+     * Whether a query with these options returns reduced or grouped rows.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public boolean isReduced(QueryOptions options) {
+        return options.isReduce() || options.isGroup() || (options.getGroupLevel() > 0);
+    }
+
+    /**
+     * Queries the view, returning an enumerator that reads the rows from the database as
+     * they're enumerated instead of loading them all first. Reduced queries are run in full, as
+     * their rows are aggregates. Does NOT first update the index.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public QueryEnumerator streamingQueryWithOptions(QueryOptions options, long sequenceNumber) throws CouchbaseLiteException {
+        if (options == null) {
+            options = new QueryOptions();
+        }
+        if (isReduced(options)) {
+            return new QueryEnumerator(database, queryWithOptions(options), sequenceNumber);
+        }
+        try {
+            Cursor cursor = resultSetWithOptions(options);
+            return new QueryEnumerator(database, this, cursor, options, sequenceNumber);
+        } catch (SQLException e) {
+            String errMsg = String.format("Error querying view: %s", this);
+            Log.e(Log.TAG_VIEW, errMsg, e);
+            throw new CouchbaseLiteException(errMsg, e, new Status(Status.DB_ERROR));
+        }
+    }
+
     /**
      * Utility function to use in reduce blocks. Totals an array of Numbers.
      */
@@ -0,0 +1,506 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.Database.TDContentOptions;
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteStatementCache;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the map functions of one or more views over every revision added since each view was
+ * last indexed, in a single pass over the 'revs' table.
+ *
+ * The work is pipelined in three stages:
+ *
+ * - The calling thread streams rows off the 'revs' cursor, resolves conflicts against earlier
+ *   indexings and looks up the attachment metadata, all of which need the database.
+ * - The JSON bodies are parsed, once per revision however many views map it, and handed to
+ *   the Mappers, either inline or, if the parallelism is greater than one, split across a pool
+ *   of worker threads.
+ * - The calling thread writes the emitted rows to the 'maps' table in bounded batches, while
+ *   the workers are already mapping the next batch.
+ *
+ * Only the calling thread ever touches the storage engine, since it owns the transaction. The
+ * per-row statements go through the database's statement cache, so they're only compiled once.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+final class ViewIndexer {
+
+    /**
+     * Number of revisions read off the cursor before they are handed to the mappers.
+     */
+    static final int BATCH_SIZE = 500;
+
+    private static final String INSERT_MAP_ROW_SQL =
+            "INSERT INTO maps (view_id, sequence, key, value) VALUES (?, ?, ?, ?)";
+
+    private static final String DELETE_MAP_ROWS_SQL =
+            "DELETE FROM maps WHERE view_id=? AND sequence=?";
+
+    private static final String OLD_WINNER_SQL =
+            "SELECT revid, sequence FROM revs "
+                    + "WHERE doc_id=? AND sequence<=? AND current!=0 AND deleted=0 "
+                    + "ORDER BY revID DESC "
+                    + "LIMIT 1";
+
+    private static final String REV_JSON_SQL = "SELECT json FROM revs WHERE sequence=?";
+
+    private final Database database;
+    private final SQLiteStatementCache statements;
+    private final int numViews;
+    private final Mapper[] mapBlocks;
+    private final int[] viewIds;
+    private final long[] lastSequences;
+    private final long minLastSequence;
+    private final int parallelism;
+    private final ExecutorService executor;
+
+    private int[] rowsAdded;
+
+    /**
+     * @param views the views to update, all belonging to the same database and all with a map
+     * @param lastSequences the sequence each view was last indexed to, in the same order
+     * @param executor pool used to run the mappers; ignored (and may be null) if parallelism <= 1
+     */
+    ViewIndexer(Database database, List<View> views, long[] lastSequences, int parallelism,
+                ExecutorService executor) {
+        this.database = database;
+        this.statements = database.getStatementCache();
+        this.numViews = views.size();
+        this.mapBlocks = new Mapper[numViews];
+        this.viewIds = new int[numViews];
+        this.lastSequences = lastSequences;
+        long minSequence = Long.MAX_VALUE;
+        for (int i = 0; i < numViews; i++) {
+            View view = views.get(i);
+            mapBlocks[i] = view.getMap();
+            viewIds[i] = view.getViewId();
+            minSequence = Math.min(minSequence, lastSequences[i]);
+        }
+        this.minLastSequence = minSequence;
+        this.parallelism = (executor != null) ? Math.max(1, parallelism) : 1;
+        this.executor = executor;
+    }
+
+    /**
+     * Indexes, for each view, all revisions with a sequence greater than its last sequence.
+     * Must be called within a transaction.
+     *
+     * @return the number of rows added to each view's index, in the order the views were given
+     */
+    int[] run() throws CouchbaseLiteException {
+        rowsAdded = new int[numViews];
+
+        String[] selectArgs = { Long.toString(minLastSequence) };
+        Cursor cursor = null;
+        List<Future<List<EmittedRow>>> inFlight = null;
+        try {
+            cursor = database.getDatabase().rawQuery(
+                    "SELECT revs.doc_id, sequence, docid, revid, json, no_attachments FROM revs, docs "
+                            + "WHERE sequence>? AND current!=0 AND deleted=0 "
+                            + "AND revs.doc_id = docs.doc_id "
+                            + "ORDER BY revs.doc_id, revid DESC", selectArgs);
+
+            boolean keepGoing = cursor.moveToNext();
+            while (true) {
+                List<MapInput> batch = new ArrayList<MapInput>(BATCH_SIZE);
+                while (keepGoing && batch.size() < BATCH_SIZE) {
+                    keepGoing = readNextDocument(cursor, batch);
+                }
+
+                // Hand this batch to the mappers, then write out the previous one while they work:
+                List<Future<List<EmittedRow>>> submitted = submit(batch);
+                if (inFlight != null) {
+                    writeRows(inFlight);
+                }
+                inFlight = submitted;
+
+                if (batch.isEmpty() && !keepGoing) {
+                    break;
+                }
+            }
+        } catch (SQLException e) {
+            cancel(inFlight);
+            throw new CouchbaseLiteException(e, new Status(Status.DB_ERROR));
+        } catch (CouchbaseLiteException e) {
+            cancel(inFlight);
+            throw e;
+        } catch (RuntimeException e) {
+            cancel(inFlight);
+            throw e;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return rowsAdded;
+    }
+
+    /**
+     * Reads all current revisions of the next document from the cursor, picks the one each view
+     * should map, and appends them to the batch.
+     *
+     * @return whether the cursor has more rows
+     */
+    private boolean readNextDocument(Cursor cursor, List<MapInput> batch) throws SQLException {
+        long docID = cursor.getLong(0);
+        String docId = cursor.getString(2);
+        boolean keepGoing;
+        if (docId.startsWith("_design/")) {  // design docs don't get indexed!
+            while ((keepGoing = cursor.moveToNext()) && cursor.getLong(0) == docID) {
+                // Skip the design doc's other rows too.
+            }
+            return keepGoing;
+        }
+
+        // Rows come in descending revid order, so each view's winner is the first row that is
+        // newer than what that view has already indexed; the rest are losing conflicts.
+        String[] revIds = new String[numViews];
+        long[] sequences = new long[numViews];
+        byte[][] jsons = new byte[numViews][];
+        boolean[] noAttachments = new boolean[numViews];
+        int unassigned = numViews;
+        do {
+            if (unassigned == 0) {
+                continue;
+            }
+            long sequence = cursor.getLong(1);
+            String revId = null;
+            byte[] json = null;
+            boolean rowNoAttachments = false;
+            for (int i = 0; i < numViews; i++) {
+                if (revIds[i] != null || sequence <= lastSequences[i]) {
+                    continue;
+                }
+                if (revId == null) {
+                    revId = cursor.getString(3);
+                    json = cursor.getBlob(4);
+                    rowNoAttachments = cursor.getInt(5) > 0;
+                }
+                revIds[i] = revId;
+                sequences[i] = sequence;
+                jsons[i] = json;
+                noAttachments[i] = rowNoAttachments;
+                --unassigned;
+            }
+        } while ((keepGoing = cursor.moveToNext()) && cursor.getLong(0) == docID);
+
+        // Find conflicts with documents from previous indexings. Views last indexed to the same
+        // sequence see the same old winner, so it's only looked up once per sequence.
+        Map<Long, OldWinner> oldWinners = new HashMap<Long, OldWinner>();
+        for (int i = 0; i < numViews; i++) {
+            if (revIds[i] == null || lastSequences[i] <= 0) {
+                continue;
+            }
+            OldWinner oldWinner;
+            if (oldWinners.containsKey(lastSequences[i])) {
+                oldWinner = oldWinners.get(lastSequences[i]);
+            } else {
+                oldWinner = findOldWinner(docID, lastSequences[i]);
+                oldWinners.put(lastSequences[i], oldWinner);
+            }
+            if (oldWinner == null) {
+                continue;
+            }
+            // This is the revision that used to be the 'winner'.
+            // Remove its emitted rows:
+            statements.execute(DELETE_MAP_ROWS_SQL, viewIds[i], oldWinner.sequence);
+            if (RevisionInternal.CBLCompareRevIDs(oldWinner.revId, revIds[i]) > 0) {
+                // It still 'wins' the conflict, so it's the one that
+                // should be mapped [again], not the current revision!
+                if (!oldWinner.jsonLoaded) {
+                    oldWinner.json = loadJson(oldWinner.sequence);
+                    oldWinner.jsonLoaded = true;
+                }
+                revIds[i] = oldWinner.revId;
+                sequences[i] = oldWinner.sequence;
+                jsons[i] = oldWinner.json;
+            }
+        }
+
+        // Group the views by the revision they map, so each body is only read and parsed once:
+        Map<Long, MapInput> inputs = new LinkedHashMap<Long, MapInput>();
+        for (int i = 0; i < numViews; i++) {
+            if (revIds[i] == null) {
+                continue;
+            }
+            MapInput input = inputs.get(sequences[i]);
+            if (input == null) {
+                // The special properties (_id, _rev, _attachments) need the database, so they're
+                // gathered here; parsing the body itself is left to the mappers.
+                EnumSet<TDContentOptions> contentOptions = EnumSet.noneOf(TDContentOptions.class);
+                if (noAttachments[i]) {
+                    contentOptions.add(TDContentOptions.TDNoAttachments);
+                }
+                RevisionInternal rev = new RevisionInternal(docId, revIds[i], false, database);
+                rev.setSequence(sequences[i]);
+                Map<String, Object> extra = database.extraPropertiesForRevision(rev, contentOptions);
+                input = new MapInput(sequences[i], jsons[i], extra);
+                inputs.put(sequences[i], input);
+            }
+            input.viewIndexes.add(i);
+        }
+        batch.addAll(inputs.values());
+        return keepGoing;
+    }
+
+    /**
+     * Finds the revision of a document that was winning when the view was indexed up to
+     * lastSequence, or returns null if there was none.
+     */
+    private OldWinner findOldWinner(long docID, long lastSequence) throws SQLException {
+        Cursor cursor2 = null;
+        try {
+            cursor2 = statements.query(OLD_WINNER_SQL, docID, lastSequence);
+            if (cursor2.moveToNext()) {
+                return new OldWinner(cursor2.getString(0), cursor2.getLong(1));
+            }
+            return null;
+        } finally {
+            if (cursor2 != null) {
+                cursor2.close();
+            }
+        }
+    }
+
+    private byte[] loadJson(long sequence) throws SQLException {
+        Cursor cursor3 = null;
+        try {
+            cursor3 = statements.query(REV_JSON_SQL, sequence);
+            return cursor3.moveToNext() ? cursor3.getBlob(0) : null;
+        } finally {
+            if (cursor3 != null) {
+                cursor3.close();
+            }
+        }
+    }
+
+    private List<Future<List<EmittedRow>>> submit(List<MapInput> batch) {
+        List<Future<List<EmittedRow>>> futures = new ArrayList<Future<List<EmittedRow>>>();
+        if (batch.isEmpty()) {
+            return futures;
+        }
+        if (parallelism <= 1) {
+            futures.add(new CompletedFuture(new MapTask(batch).call()));
+            return futures;
+        }
+        int chunkSize = (batch.size() + parallelism - 1) / parallelism;
+        for (int start = 0; start < batch.size(); start += chunkSize) {
+            int end = Math.min(start + chunkSize, batch.size());
+            futures.add(executor.submit(new MapTask(batch.subList(start, end))));
+        }
+        return futures;
+    }
+
+    /**
+     * Writes the rows emitted by a batch, in sequence order, through the cached insert statement.
+     */
+    private void writeRows(List<Future<List<EmittedRow>>> futures) throws CouchbaseLiteException {
+        for (Future<List<EmittedRow>> future : futures) {
+            List<EmittedRow> rows;
+            try {
+                rows = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CouchbaseLiteException(e, new Status(Status.INTERNAL_SERVER_ERROR));
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new CouchbaseLiteException(cause, new Status(Status.INTERNAL_SERVER_ERROR));
+            }
+            for (EmittedRow row : rows) {
+                statements.execute(INSERT_MAP_ROW_SQL,
+                        viewIds[row.viewIndex], row.sequence, row.keyJson, row.valueJson);
+                ++rowsAdded[row.viewIndex];
+            }
+        }
+    }
+
+    private static void cancel(List<Future<List<EmittedRow>>> futures) {
+        if (futures == null) {
+            return;
+        }
+        for (Future<List<EmittedRow>> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Parses the JSON bodies of a slice of a batch and runs the map functions over them.
+     * Runs on a worker thread, so it must not touch the storage engine.
+     */
+    private final class MapTask implements Callable<List<EmittedRow>> {
+
+        private final List<MapInput> inputs;
+
+        MapTask(List<MapInput> inputs) {
+            this.inputs = inputs;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<EmittedRow> call() {
+            final List<EmittedRow> rows = new ArrayList<EmittedRow>();
+            final int[] currentView = new int[1];
+            AbstractTouchMapEmitBlock emitBlock = new AbstractTouchMapEmitBlock() {
+                @Override
+                public void emit(Object key, Object value) {
+                    try {
+                        String keyJson = Manager.getObjectMapper().writeValueAsString(key);
+                        String valueJson = null;
+                        if (value != null) {
+                            valueJson = Manager.getObjectMapper().writeValueAsString(value);
+                        }
+                        rows.add(new EmittedRow(currentView[0], sequence, keyJson, valueJson));
+                    } catch (Exception e) {
+                        Log.e(Log.TAG_VIEW, "Error emitting", e);
+                        // find a better way to propagate this back
+                    }
+                }
+            };
+
+            for (MapInput input : inputs) {
+                Map<String, Object> properties = input.extra;
+                if (input.json != null) {
+                    try {
+                        properties = Manager.getObjectMapper().readValue(input.json, Map.class);
+                        properties.putAll(input.extra);
+                    } catch (Exception e) {
+                        Log.e(Database.TAG, "Error serializing properties to JSON", e);
+                        properties = null;
+                    }
+                }
+                if (properties != null) {
+                    // Call each interested view's user-defined map() to emit new key/value
+                    // pairs from this revision. They all see the same properties map, so map
+                    // functions must not modify it.
+                    emitBlock.setSequence(input.sequence);
+                    for (int viewIndex : input.viewIndexes) {
+                        currentView[0] = viewIndex;
+                        mapBlocks[viewIndex].map(properties, emitBlock);
+                    }
+                }
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * The revision that won a document's conflict as of a view's last indexing.
+     */
+    private static final class OldWinner {
+        final String revId;
+        final long sequence;
+        byte[] json;
+        boolean jsonLoaded;
+
+        OldWinner(String revId, long sequence) {
+            this.revId = revId;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A revision waiting to be mapped, and the views (by index) that should map it.
+     */
+    private static final class MapInput {
+        final long sequence;
+        final byte[] json;
+        final Map<String, Object> extra;
+        final List<Integer> viewIndexes = new ArrayList<Integer>(1);
+
+        MapInput(long sequence, byte[] json, Map<String, Object> extra) {
+            this.sequence = sequence;
+            this.json = json;
+            this.extra = extra;
+        }
+    }
+
+    /**
+     * A key/value pair emitted by a map function, already encoded as JSON.
+     */
+    private static final class EmittedRow {
+        final int viewIndex;
+        final long sequence;
+        final String keyJson;
+        final String valueJson;
+
+        EmittedRow(int viewIndex, long sequence, String keyJson, String valueJson) {
+            this.viewIndex = viewIndex;
+            this.sequence = sequence;
+            this.keyJson = keyJson;
+            this.valueJson = valueJson;
+        }
+    }
+
+    /**
+     * The result of a batch that was mapped on the calling thread.
+     */
+    private static final class CompletedFuture implements Future<List<EmittedRow>> {
+        private final List<EmittedRow> rows;
+
+        CompletedFuture(List<EmittedRow> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public List<EmittedRow> get() {
+            return rows;
+        }
+
+        @Override
+        public List<EmittedRow> get(long timeout, TimeUnit unit) {
+            return rows;
+        }
+    }
+}
@@ -33,6 +33,7 @@ public class Body {
 
     private byte[] json;
     private Object object;
+    private boolean knownValidJSON;
 
     public Body(byte[] json) {
         this.json = json;
@@ -56,6 +57,15 @@ public class Body {
         return result;
     }
 
+    /**
+     * Wraps JSON that the caller generated itself, so isValidJSON() doesn't have to parse it.
+     */
+    public static Body bodyWithValidJSON(byte[] json) {
+        Body result = new Body(json);
+        result.knownValidJSON = true;
+        return result;
+    }
+
     public byte[] getJson() {
         if (json == null) {
             lazyLoadJsonFromObject();
@@ -93,6 +103,9 @@ public class Body {
     }
 
     public boolean isValidJSON() {
+        if (knownValidJSON) {
+            return true;
+        }
         if (object == null) {
             boolean gotException = false;
             if (json == null) {
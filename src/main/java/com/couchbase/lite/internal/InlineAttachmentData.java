@@ -0,0 +1,121 @@
+package com.couchbase.lite.internal;
+
+import com.couchbase.lite.BlobKey;
+import com.couchbase.lite.BlobStore;
+import com.couchbase.lite.support.Base64;
+import com.couchbase.lite.util.StreamUtils;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The "data" of an inline attachment, standing in for its base64 string in a revision's
+ * "_attachments" dictionary. It's serialized by Jackson straight from the blob store file, a
+ * chunk at a time, so a large attachment is never held in memory, either as bytes or as a
+ * base64 string.
+ *
+ * toString() returns the whole base64 string, for code that needs it as one.
+ */
+@JsonSerialize(using = InlineAttachmentData.Serializer.class)
+public class InlineAttachmentData {
+
+    // A multiple of 3, so that the chunks encode without padding and can just be concatenated:
+    private static final int CHUNK_SIZE = 3 * 16 * 1024;
+
+    private final BlobStore blobStore;
+    private final BlobKey key;
+    private final long length;
+
+    /**
+     * @param length the length of the blob as stored (i.e. gzipped, if it is)
+     */
+    public InlineAttachmentData(BlobStore blobStore, BlobKey key, long length) {
+        this.blobStore = blobStore;
+        this.key = key;
+        this.length = length;
+    }
+
+    public BlobKey getKey() {
+        return key;
+    }
+
+    /**
+     * The length of the base64 string, without quotes.
+     */
+    public long getEncodedLength() {
+        return 4 * ((length + 2) / 3);
+    }
+
+    /**
+     * Reads the whole blob.
+     */
+    public byte[] getBytes() throws IOException {
+        InputStream in = openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+            StreamUtils.copyStream(in, out);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return Base64.encodeBytes(getBytes());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private InputStream openStream() throws IOException {
+        InputStream in = blobStore.blobStreamForKey(key);
+        if (in == null) {
+            throw new IOException("Attachment blob is missing: " + key);
+        }
+        return in;
+    }
+
+    /**
+     * Writes the blob as a JSON string of base64, encoding it a chunk at a time.
+     */
+    public static class Serializer extends JsonSerializer<InlineAttachmentData> {
+
+        @Override
+        public void serialize(InlineAttachmentData data, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            InputStream in = data.openStream();
+            try {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                // writeRawValue() takes care of the separator before the value; the rest of the
+                // string is appended raw, which is safe since base64 needs no escaping.
+                generator.writeRawValue("\"");
+                int count;
+                while ((count = readFully(in, chunk)) > 0) {
+                    generator.writeRaw(Base64.encodeBytes(chunk, 0, count));
+                }
+                generator.writeRaw('"');
+            } finally {
+                in.close();
+            }
+        }
+
+        private static int readFully(InputStream in, byte[] buffer) throws IOException {
+            int total = 0;
+            while (total < buffer.length) {
+                int count = in.read(buffer, total, buffer.length - total);
+                if (count < 0) {
+                    break;
+                }
+                total += count;
+            }
+            return total;
+        }
+    }
+}
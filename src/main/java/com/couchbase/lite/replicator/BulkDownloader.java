@@ -5,6 +5,7 @@ import com.couchbase.lite.Manager;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.support.HttpClientFactory;
+import com.couchbase.lite.support.HttpCompression;
 import com.couchbase.lite.support.MultipartDocumentReader;
 import com.couchbase.lite.support.MultipartReader;
 import com.couchbase.lite.support.MultipartReaderDelegate;
@@ -25,7 +26,6 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -73,8 +73,9 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
 
         request.addHeader("Content-Type", "application/json");
         request.addHeader("Accept", "multipart/related");
-        //TODO: implement gzip support for server response see issue #172
-        //request.addHeader("X-Accept-Part-Encoding", "gzip");
+        // The whole response is compressed, rather than each part with X-Accept-Part-Encoding,
+        // so that the MIME boundaries and JSON parts shrink too (see issue #172):
+        HttpCompression.acceptCompressedResponse(request);
 
         addRequestHeaders(request);
 
@@ -116,6 +117,10 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
                 Log.e(Log.TAG_REMOTE_REQUEST, "Unable to add in cookies to global store", e);
             }
 
+            if (retryUncompressed(httpClient, request, response)) {
+                return;
+            }
+
             StatusLine status = response.getStatusLine();
             if (status.getStatusCode() >= 300) {
                 Log.e(Log.TAG_REMOTE_REQUEST, "Got error status: %d for %s.  Reason: %s", status.getStatusCode(), request, status.getReasonPhrase());
@@ -135,20 +140,9 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
 
                         _topReader = new MultipartReader(contentTypeHeader.getValue(),this);
 
-                        inputStream = entity.getContent();
+                        inputStream = HttpCompression.getContent(compressionOptions, request, entity);
 
-                        int bufLen = 1024;
-                        byte[] buffer = new byte[bufLen];
-                        int numBytesRead = 0;
-                        while ( (numBytesRead = inputStream.read(buffer))!= -1 ) {
-                            if (numBytesRead != bufLen) {
-                                byte[] bufferToAppend = Arrays.copyOfRange(buffer, 0, numBytesRead);
-                                _topReader.appendData(bufferToAppend);
-                            }
-                            else {
-                                _topReader.appendData(buffer);
-                            }
-                        }
+                        _topReader.readFrom(inputStream);
 
                         _topReader.finished();
 
@@ -165,7 +159,7 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
                     Log.v(Log.TAG_SYNC, "contentTypeHeader is not multipart = %s",contentTypeHeader.getValue());
                     if (entity != null) {
                         try {
-                            inputStream = entity.getContent();
+                            inputStream = HttpCompression.getContent(compressionOptions, request, entity);
                             fullBody = Manager.getObjectMapper().readValue(inputStream,
                                     Object.class);
                             respondWithResult(fullBody, error, response);
@@ -211,11 +205,11 @@ public class BulkDownloader extends RemoteRequest implements MultipartReaderDele
      * This method is called to append data to a part's body.
      */
 
-    public void appendToPart(byte[] data) {
+    public void appendToPart(byte[] data, int offset, int length) {
         if (_docReader == null) {
             throw new IllegalStateException("_docReader is not defined");
         }
-        _docReader.appendData(data);
+        _docReader.appendData(data, offset, length);
     }
 
 
@@ -1,9 +1,11 @@
 package com.couchbase.lite.replicator;
 
+import com.couchbase.lite.CompressionOptions;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.auth.Authenticator;
 import com.couchbase.lite.auth.AuthenticatorImpl;
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.support.HttpCompression;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.URIUtils;
 import com.couchbase.lite.util.Utils;
@@ -23,7 +25,6 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.ClientContext;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.protocol.HttpContext;
@@ -76,6 +77,8 @@ public class ChangeTracker implements Runnable {
 
     private final Authenticator authenticator;
 
+    private volatile CompressionOptions compressionOptions = HttpCompression.getOptions(null);
+
     public enum ChangeTrackerMode {
         OneShot,
         LongPoll,
@@ -275,19 +278,21 @@ public class ChangeTracker implements Runnable {
             if (usePOST) {
                 HttpPost postRequest = new HttpPost(url.toString());
                 postRequest.setHeader("Content-Type", "application/json");
-                StringEntity entity;
+                byte[] body;
                 try {
-                    entity = new StringEntity(changesFeedPOSTBody());
+                    body = changesFeedPOSTBody().getBytes("UTF-8");
                 } catch (UnsupportedEncodingException e) {
                     throw new RuntimeException(e);
                 }
-                postRequest.setEntity(entity);
+                postRequest.setEntity(HttpCompression.bodyEntity(compressionOptions, postRequest, body, "application/json"));
                 request = postRequest;
 
             } else {
                 request = new HttpGet(url.toString());
             }
 
+            HttpCompression.acceptCompressedResponse(request);
+
             addRequestHeaders(request);
 
             // Perform BASIC Authentication if needed
@@ -335,6 +340,14 @@ public class ChangeTracker implements Runnable {
                 maskedRemoteWithoutCredentials = maskedRemoteWithoutCredentials.replaceAll("://.*:.*@", "://---:---@");
                 Log.v(Log.TAG_CHANGE_TRACKER, "%s: Making request to %s", this, maskedRemoteWithoutCredentials);
                 HttpResponse response = httpClient.execute(request);
+                if (HttpCompression.checkResponse(compressionOptions, request, response)) {
+                    // Go round again, now sending the body uncompressed:
+                    HttpEntity rejected = response.getEntity();
+                    if (rejected != null) {
+                        rejected.consumeContent();
+                    }
+                    continue;
+                }
                 StatusLine status = response.getStatusLine();
                 if (status.getStatusCode() >= 300 && !Utils.isTransientError(status)) {
                     Log.e(Log.TAG_CHANGE_TRACKER, "%s: Change tracker got error %d", this, status.getStatusCode());
@@ -347,7 +360,7 @@ public class ChangeTracker implements Runnable {
                 InputStream input = null;
                 if (entity != null) {
                     try {
-                        input = entity.getContent();
+                        input = HttpCompression.getContent(compressionOptions, request, entity);
                         if (mode == ChangeTrackerMode.LongPoll) {  // continuous replications
                             Map<String, Object> fullBody = Manager.getObjectMapper().readValue(input, Map.class);
                             if (receivedPollResponse(fullBody)) {
@@ -463,6 +476,14 @@ public class ChangeTracker implements Runnable {
         this.error = new Throwable(message);
     }
 
+    /**
+     * Sets the Manager's compression options, which say whether the server accepts compressed
+     * request bodies. Must be called before start().
+     */
+    public void setCompressionOptions(CompressionOptions compressionOptions) {
+        this.compressionOptions = compressionOptions;
+    }
+
     /**
      * Starts the change tracker. Can only be called once or it will throw an exception.
      * @return
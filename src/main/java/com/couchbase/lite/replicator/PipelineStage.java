@@ -0,0 +1,293 @@
+package com.couchbase.lite.replicator;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.util.Log;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of a replication pipeline: optionally a pool of threads that runs the stage's work,
+ * plus a bounded number of permits, one per item (revision) that has entered the stage and not
+ * yet left it. A producer that wants to hand items to a full stage blocks in acquire() until
+ * enough items have left, which pushes back on the stages before it.
+ *
+ * It also keeps throughput metrics: the number of items processed, the time spent processing
+ * them and the rate since the first one.
+ * @exclude
+ */
+@InterfaceAudience.Private
+public class PipelineStage {
+
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final String name;
+    private final int concurrency;
+    private final int capacity;
+    private final Semaphore permits;
+    private final ScheduledExecutorService executor;
+
+    // Items admitted beyond the permits taken for them: a request for more items than the
+    // capacity only takes the capacity, so that it can get in at all. The next releases pay this
+    // off before giving permits back, so exactly as many permits are given back as were taken.
+    private final AtomicInteger overdraft = new AtomicInteger();
+
+    private final AtomicInteger tasksInFlight = new AtomicInteger();
+    private final AtomicLong itemsProcessed = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private volatile long firstItemTime;
+    private volatile long lastItemTime;
+    private volatile boolean shutdown;
+
+    /**
+     * @param name the stage's name, used for its threads and in logs
+     * @param concurrency the number of threads to run the stage's work on, or 0 if the work is
+     *                    done on other threads (then execute() and submit() can't be used)
+     * @param capacity the maximum number of items in the stage at once
+     */
+    public PipelineStage(final String name, int concurrency, int capacity) {
+        if (concurrency < 0) {
+            throw new IllegalArgumentException("concurrency < 0");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        this.name = name;
+        this.concurrency = concurrency;
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity, true);
+        if (concurrency > 0) {
+            this.executor = new ScheduledThreadPoolExecutor(concurrency, new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CBLPipeline-" + name + "-" + counter.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The executor that runs the stage's work, for work scheduled some other way than with
+     * execute() (e.g. by a Batcher).
+     */
+    public ScheduledExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Waits until the stage has room for the given number of items, and reserves it. Returns
+     * false, without reserving anything, if the stage is shut down. More items than the capacity
+     * are let in once the stage is empty.
+     */
+    public boolean acquire(int items) {
+        int n = Math.min(items, capacity);
+        if (n <= 0) {
+            return !shutdown;
+        }
+        try {
+            while (!shutdown) {
+                if (permits.tryAcquire(n, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    overdraft.addAndGet(items - n);
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(Log.TAG_SYNC, "%s: interrupted waiting for room in stage %s", this, name);
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Reserves room for the given number of items if the stage has it right now.
+     */
+    public boolean tryAcquire(int items) {
+        int n = Math.min(items, capacity);
+        if (shutdown) {
+            return false;
+        }
+        if (n <= 0) {
+            return true;
+        }
+        if (!permits.tryAcquire(n)) {
+            return false;
+        }
+        overdraft.addAndGet(items - n);
+        return true;
+    }
+
+    /**
+     * Marks items reserved with acquire() as having left the stage. They needn't be released
+     * in the same groups as they were acquired.
+     */
+    public void release(int items) {
+        if (items <= 0) {
+            return;
+        }
+        // Items let in without permits are paid for first:
+        int owed;
+        int paid;
+        do {
+            owed = overdraft.get();
+            paid = Math.min(owed, items);
+        } while (paid > 0 && !overdraft.compareAndSet(owed, owed - paid));
+        if (items - paid > 0) {
+            permits.release(items - paid);
+        }
+    }
+
+    /**
+     * Runs a task processing the given number of items on the stage's threads, without
+     * reserving room for them. Returns null if the stage is shut down.
+     */
+    public Future<?> execute(final int items, final Runnable task) {
+        if (shutdown) {
+            return null;
+        }
+        tasksInFlight.incrementAndGet();
+        try {
+            return executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        Log.e(Log.TAG_SYNC, "Exception in pipeline stage " + name, e);
+                    } finally {
+                        recordProcessed(items, System.nanoTime() - start);
+                        tasksInFlight.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            tasksInFlight.decrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Waits for room for the given number of items, then runs a task processing them on the
+     * stage's threads; the room is freed when the task finishes. Returns null if the stage is
+     * shut down.
+     */
+    public Future<?> submit(final int items, final Runnable task) {
+        if (!acquire(items)) {
+            return null;
+        }
+        Future<?> future = execute(items, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    release(items);
+                }
+            }
+        });
+        if (future == null) {
+            release(items);
+        }
+        return future;
+    }
+
+    /**
+     * Records that items were processed, for work done outside execute() and submit().
+     */
+    public void recordProcessed(int items, long nanos) {
+        long now = System.nanoTime();
+        if (firstItemTime == 0) {
+            firstItemTime = now;
+        }
+        lastItemTime = now;
+        itemsProcessed.addAndGet(items);
+        busyNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Waits until none of the stage's tasks are queued or running, or it's shut down.
+     */
+    public void awaitIdle() {
+        try {
+            while (!shutdown && tasksInFlight.get() > 0) {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the stage: queued tasks are dropped, and threads waiting for room give up.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * The number of items in the stage (reserved and not yet released).
+     */
+    public int getItemsInStage() {
+        return capacity - permits.availablePermits() + overdraft.get();
+    }
+
+    public long getItemsProcessed() {
+        return itemsProcessed.get();
+    }
+
+    /**
+     * The total time spent processing items, summed over the stage's threads.
+     */
+    public long getBusyTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(busyNanos.get());
+    }
+
+    /**
+     * The number of items processed per second, from the first item to the last.
+     */
+    public double getItemsPerSecond() {
+        long elapsed = lastItemTime - firstItemTime;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return itemsProcessed.get() * 1e9 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[threads=%d, in stage=%d/%d, processed=%d, busy=%dms, %.1f/s]",
+                name, concurrency, getItemsInStage(), capacity, getItemsProcessed(),
+                getBusyTimeMillis(), getItemsPerSecond());
+    }
+}
@@ -4,17 +4,21 @@ import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Database;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.Misc;
+import com.couchbase.lite.PullPipelineOptions;
 import com.couchbase.lite.RevisionList;
 import com.couchbase.lite.Status;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.support.BatchProcessor;
+import com.couchbase.lite.support.AdaptiveBatcher;
 import com.couchbase.lite.support.Batcher;
 import com.couchbase.lite.support.HttpClientFactory;
+import com.couchbase.lite.support.HttpCompression;
 import com.couchbase.lite.support.RemoteRequestCompletionBlock;
 import com.couchbase.lite.support.SequenceMap;
 import com.couchbase.lite.util.CollectionUtils;
+import com.couchbase.lite.util.JSONSizeEstimator;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.Utils;
 
@@ -29,8 +33,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -38,6 +44,11 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Pull Replication
+ *
+ * Revisions go through a pipeline of stages, each with its own threads and a bounded capacity
+ * (see PullPipelineOptions): the changes feed, the lookup of missing revisions, the downloads,
+ * the post-processing of downloaded revisions, and the inserts into the database. A full stage
+ * makes the one before it wait, all the way back to the changes feed.
  */
 public class PullerInternal extends ReplicationInternal implements ChangeTrackerClient{
 
@@ -49,6 +60,9 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
     // Maximum number of revision IDs to pass in an "?atts_since=" query param
     public static final int MAX_NUMBER_OF_ATTS_SINCE = 50;
 
+    // Maximum estimated memory size of the revisions inserted in one transaction
+    private static final long MAX_INSERT_BATCH_SIZE = 16L * 1024 * 1024;
+
     public static int CHANGE_TRACKER_RESTART_DELAY_MS = 10 * 1000;
 
     private ChangeTracker changeTracker;
@@ -60,6 +74,12 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
     protected int httpConnectionCount;
     protected Batcher<RevisionInternal> downloadsToInsert;
 
+    protected PipelineStage changesStage;
+    protected PipelineStage revsDiffStage;
+    protected PipelineStage fetchStage;
+    protected PipelineStage decodeStage;
+    protected PipelineStage insertStage;
+
     public PullerInternal(Database db, URL remote, HttpClientFactory clientFactory, ScheduledExecutorService workExecutor, Replication.Lifecycle lifecycle, Replication parentReplication) {
         super(db, remote, clientFactory, workExecutor, lifecycle, parentReplication);
     }
@@ -73,6 +93,8 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
         initPendingSequences();
 
+        initPipelineStages();
+
         initDownloadsToInsert();
 
         startChangeTracker();
@@ -81,19 +103,94 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
     }
 
+    private PullPipelineOptions getPipelineOptions() {
+        Manager manager = (db != null) ? db.getManager() : null;
+        if (manager == null) {
+            return new PullPipelineOptions();
+        }
+        return manager.getOptions().getPullPipelineOptions();
+    }
+
+    private void initPipelineStages() {
+        if (insertStage != null) {
+            return;
+        }
+        PullPipelineOptions options = getPipelineOptions();
+        // The changes feed has its own thread, and the downloads run on remoteRequestExecutor:
+        changesStage = new PipelineStage("changes", 0, 1);
+        revsDiffStage = new PipelineStage("revsdiff", options.getRevsDiffConcurrency(), options.getRevsDiffCapacity());
+        fetchStage = new PipelineStage("fetch", 0, options.getFetchCapacity());
+        decodeStage = new PipelineStage("decode", options.getDecodeConcurrency(), options.getDecodeCapacity());
+        insertStage = new PipelineStage("insert", 1, options.getInsertCapacity());
+    }
+
+    /**
+     * The stages of this puller's pipeline, with their throughput metrics.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<PipelineStage> getPipelineStages() {
+        List<PipelineStage> stages = new ArrayList<PipelineStage>();
+        if (insertStage != null) {
+            stages.add(changesStage);
+            stages.add(revsDiffStage);
+            stages.add(fetchStage);
+            stages.add(decodeStage);
+            stages.add(insertStage);
+        }
+        return stages;
+    }
+
+    @Override
+    protected int getRemoteRequestThreadCount() {
+        return getPipelineOptions().getFetchConcurrency();
+    }
+
+    private int getMaxOpenHttpConnections() {
+        return Math.max(MAX_OPEN_HTTP_CONNECTIONS, getRemoteRequestThreadCount());
+    }
+
     private void initDownloadsToInsert() {
         if (downloadsToInsert == null) {
             int capacity = 200;
             int delay = 1000;
-            downloadsToInsert = new Batcher<RevisionInternal>(workExecutor, capacity, delay, new BatchProcessor<RevisionInternal>() {
+            // Inserts run on the insert stage's own thread, so they don't hold up the work executor:
+            // Batches are also limited by their estimated size, so a run of big documents
+            // doesn't have to be held in memory (and in one transaction) 200 at a time:
+            AdaptiveBatcher.Weigher<RevisionInternal> weigher = new AdaptiveBatcher.Weigher<RevisionInternal>() {
+                @Override
+                public long weigh(RevisionInternal rev) {
+                    return JSONSizeEstimator.estimateMemorySize(rev.getProperties());
+                }
+            };
+            downloadsToInsert = new AdaptiveBatcher<RevisionInternal>(insertStage.getExecutor(), capacity, delay, MAX_INSERT_BATCH_SIZE, weigher, new BatchProcessor<RevisionInternal>() {
                 @Override
                 public void process(List<RevisionInternal> inbox) {
-                    insertDownloads(inbox);
+                    long start = System.nanoTime();
+                    try {
+                        insertDownloads(inbox);
+                    } finally {
+                        insertStage.recordProcessed(inbox.size(), System.nanoTime() - start);
+                        insertStage.release(inbox.size());
+                    }
                 }
             });
         }
     }
 
+    /**
+     * Moves the checkpoint up to the last remote sequence whose revisions are all done with. Can
+     * be called on any thread; the checkpoint is saved on the work executor.
+     */
+    private void checkpointPendingSequences() {
+        workExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                setLastSequence(pendingSequences.getCheckpointedValue());
+            }
+        });
+    }
+
 
 
     public boolean isPull() {
@@ -124,6 +221,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
             changeTracker = new ChangeTracker(remote, changeTrackerMode, true, lastSequence, this, usePOST,
                     filterName, filterParams, requestHeaders, getAuthenticator(), isContinuous);
         }
+        changeTracker.setCompressionOptions(HttpCompression.getOptions(db));
         Log.w(Log.TAG_SYNC, "%s: started ChangeTracker %s", this, changeTracker);
 
         changeTracker.start();
@@ -135,7 +233,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
      */
     @Override
     @InterfaceAudience.Private
-    protected void processInbox(RevisionList inbox) {
+    protected void processInbox(final RevisionList inbox) {
 
         Log.d(Log.TAG_SYNC, "processInbox called");
 
@@ -143,8 +241,37 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
             canBulkGet = serverIsSyncGatewayVersion("0.81");
         }
 
-        // Ask the local database which of the revs are not known to it:
-        String lastInboxSequence = ((PulledRevision) inbox.get(inbox.size() - 1)).getRemoteSequenceID();
+        // Register the remote sequences here on the replicator thread, so that they're in the
+        // order of the feed even if the lookups run concurrently:
+        for (RevisionInternal rev : inbox) {
+            rev.setSequence(pendingSequences.addValue(((PulledRevision) rev).getRemoteSequenceID()));
+        }
+
+        // The room for these revisions in the revs-diff stage was reserved when they were read
+        // from the feed (see changeTrackerReceivedChange):
+        final int inboxSize = inbox.size();
+        Future future = revsDiffStage.execute(inboxSize, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queueMissingRevisions(inbox);
+                } finally {
+                    revsDiffStage.release(inboxSize);
+                }
+            }
+        });
+        if (future == null) {
+            revsDiffStage.release(inboxSize);
+        }
+    }
+
+    /**
+     * Finds which revisions of the inbox are missing locally, and queues them to be downloaded.
+     * Runs on the revs-diff stage's threads.
+     */
+    private void queueMissingRevisions(RevisionList inbox) {
+
+        List<RevisionInternal> allRevs = new ArrayList<RevisionInternal>(inbox);
 
         int numRevisionsRemoved = 0;
         try {
@@ -153,55 +280,58 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
             // afterwards are the revisions that need to be downloaded.
             numRevisionsRemoved = db.findMissingRevisions(inbox);
         } catch (SQLException e) {
+            // The revisions stay pending, so the checkpoint won't move past them:
             Log.e(Log.TAG_SYNC, String.format("%s failed to look up local revs", this), e);
-            inbox = null;
-        }
-
-        //introducing this to java version since inbox may now be null everywhere
-        int inboxCount = 0;
-        if (inbox != null) {
-            inboxCount = inbox.size();
+            return;
         }
 
         if (numRevisionsRemoved > 0) {
             Log.v(Log.TAG_SYNC, "%s: processInbox() setting changesCount to: %s", this, getChangesCount().get() - numRevisionsRemoved);
             // May decrease the changesCount, to account for the revisions we just found out we don’t need to get.
             addToChangesCount(-1 * numRevisionsRemoved);
+
+            // The revisions we already have are done with:
+            Set<RevisionInternal> missing = Collections.newSetFromMap(new IdentityHashMap<RevisionInternal, Boolean>());
+            missing.addAll(inbox);
+            for (RevisionInternal rev : allRevs) {
+                if (!missing.contains(rev)) {
+                    pendingSequences.removeSequence(rev.getSequence());
+                }
+            }
+            checkpointPendingSequences();
         }
 
-        if (inboxCount == 0) {
-            // Nothing to do. Just bump the lastSequence.
-            Log.w(Log.TAG_SYNC, "%s no new remote revisions to fetch.  add lastInboxSequence (%s) to pendingSequences (%s)", this, lastInboxSequence, pendingSequences);
-            long seq = pendingSequences.addValue(lastInboxSequence);
-            pendingSequences.removeSequence(seq);
-            setLastSequence(pendingSequences.getCheckpointedValue());
+        if (inbox.size() == 0) {
+            Log.v(Log.TAG_SYNC, "%s no new remote revisions to fetch", this);
             return;
         }
 
-        Log.v(Log.TAG_SYNC, "%s: fetching %s remote revisions...", this, inboxCount);
+        Log.v(Log.TAG_SYNC, "%s: fetching %s remote revisions...", this, inbox.size());
 
-        // Dump the revs into the queue of revs to pull from the remote db:
-        int numBulked = 0;
-
-        for (int i = 0; i < inbox.size(); i++) {
-
-            PulledRevision rev = (PulledRevision) inbox.get(i);
-
-            //TODO: add support for rev isConflicted
-            if (canBulkGet || (rev.getGeneration() == 1 && !rev.isDeleted())) { // &&!rev.isConflicted)
+        // Dump the revs into the queue of revs to pull from the remote db, as the fetch stage
+        // has room for them:
+        for (RevisionInternal rev : inbox) {
+            if (!fetchStage.tryAcquire(1)) {
+                // Start on what's queued so far before waiting for room:
+                pullRemoteRevisions();
+                if (!fetchStage.acquire(1)) {
+                    return;  // stopped
+                }
+            }
 
-                //optimistically pull 1st-gen revs in bulk
-                if (bulkRevsToPull == null)
-                    bulkRevsToPull = new ArrayList<RevisionInternal>(100);
+            synchronized (this) {
+                //TODO: add support for rev isConflicted
+                if (canBulkGet || (rev.getGeneration() == 1 && !rev.isDeleted())) { // &&!rev.isConflicted)
 
-                bulkRevsToPull.add(rev);
+                    //optimistically pull 1st-gen revs in bulk
+                    if (bulkRevsToPull == null)
+                        bulkRevsToPull = new ArrayList<RevisionInternal>(100);
 
-                ++numBulked;
-            } else {
-                queueRemoteRevision(rev);
+                    bulkRevsToPull.add(rev);
+                } else {
+                    queueRemoteRevision(rev);
+                }
             }
-
-            rev.setSequence(pendingSequences.addValue(rev.getRemoteSequenceID()));
         }
         pullRemoteRevisions();
 
@@ -217,38 +347,43 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
     public void pullRemoteRevisions() {
         //find the work to be done in a synchronized block
         List<RevisionInternal> workToStartNow = new ArrayList<RevisionInternal>();
-        List<RevisionInternal> bulkWorkToStartNow = new ArrayList<RevisionInternal>();
-        while (httpConnectionCount + workToStartNow.size() < MAX_OPEN_HTTP_CONNECTIONS) {
-            int nBulk = 0;
-            if (bulkRevsToPull != null) {
-                nBulk = (bulkRevsToPull.size() < MAX_REVS_TO_GET_IN_BULK) ? bulkRevsToPull.size() : MAX_REVS_TO_GET_IN_BULK;
-            }
-            if (nBulk == 1) {
-                // Rather than pulling a single revision in 'bulk', just pull it normally:
-                queueRemoteRevision(bulkRevsToPull.get(0));
-                bulkRevsToPull.remove(0);
-                nBulk = 0;
-            }
-            if (nBulk > 0) {
-                // Prefer to pull bulk revisions:
-                bulkWorkToStartNow.addAll(bulkRevsToPull.subList(0, nBulk));
-                bulkRevsToPull.subList(0, nBulk).clear();
-            } else {
-                // Prefer to pull an existing revision over a deleted one:
-                List<RevisionInternal> queue = revsToPull;
-                if (queue == null || queue.size() == 0) {
-                    queue = deletedRevsToPull;
-                    if (queue == null || queue.size() == 0)
-                        break;  // both queues are empty
+        List<List<RevisionInternal>> bulkWorkToStartNow = new ArrayList<List<RevisionInternal>>();
+        synchronized (this) {
+            int maxConnections = getMaxOpenHttpConnections();
+            while (httpConnectionCount < maxConnections) {
+                int nBulk = 0;
+                if (bulkRevsToPull != null) {
+                    nBulk = (bulkRevsToPull.size() < MAX_REVS_TO_GET_IN_BULK) ? bulkRevsToPull.size() : MAX_REVS_TO_GET_IN_BULK;
+                }
+                if (nBulk == 1) {
+                    // Rather than pulling a single revision in 'bulk', just pull it normally:
+                    queueRemoteRevision(bulkRevsToPull.get(0));
+                    bulkRevsToPull.remove(0);
+                    nBulk = 0;
+                }
+                if (nBulk > 0) {
+                    // Prefer to pull bulk revisions:
+                    bulkWorkToStartNow.add(new ArrayList<RevisionInternal>(bulkRevsToPull.subList(0, nBulk)));
+                    bulkRevsToPull.subList(0, nBulk).clear();
+                } else {
+                    // Prefer to pull an existing revision over a deleted one:
+                    List<RevisionInternal> queue = revsToPull;
+                    if (queue == null || queue.size() == 0) {
+                        queue = deletedRevsToPull;
+                        if (queue == null || queue.size() == 0)
+                            break;  // both queues are empty
+                    }
+                    workToStartNow.add(queue.get(0));
+                    queue.remove(0);
                 }
-                workToStartNow.add(queue.get(0));
-                queue.remove(0);
+                // Reserve the connection now, so concurrent callers don't exceed the limit:
+                ++httpConnectionCount;
             }
         }
 
         //actually run it outside the synchronized block
-        if(bulkWorkToStartNow.size() > 0) {
-            pullBulkRevisions(bulkWorkToStartNow);
+        for (List<RevisionInternal> bulkWork : bulkWorkToStartNow) {
+            pullBulkRevisions(bulkWork);
         }
 
         for (RevisionInternal work : workToStartNow) {
@@ -256,11 +391,24 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         }
     }
 
+    /**
+     * Called when a request started by pullRemoteRevisions() is finished with, after the
+     * revisions it was fetching have left the fetch stage.
+     */
+    private void connectionFinished(int numRevs) {
+        fetchStage.release(numRevs);
+        synchronized (this) {
+            --httpConnectionCount;
+        }
+    }
+
     // Get a bunch of revisions in one bulk request. Will use _bulk_get if possible.
-    protected void pullBulkRevisions(List<RevisionInternal> bulkRevs) {
+    // The caller has reserved an HTTP connection.
+    protected void pullBulkRevisions(final List<RevisionInternal> bulkRevs) {
 
         int nRevs = bulkRevs.size();
         if (nRevs == 0) {
+            connectionFinished(0);
             return;
         }
         Log.v(Log.TAG_SYNC, "%s bulk-fetching %d remote revisions...", this, nRevs);
@@ -274,8 +422,6 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         Log.v(Log.TAG_SYNC, "%s: POST _bulk_get", this);
         final List<RevisionInternal> remainingRevs = new ArrayList<RevisionInternal>(bulkRevs);
 
-        ++httpConnectionCount;
-
         final BulkDownloader dl;
         try {
 
@@ -324,7 +470,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                                 completedChangesCount.addAndGet(remainingRevs.size());
                             }
 
-                            --httpConnectionCount;
+                            connectionFinished(bulkRevs.size());
                             // Start another task if there are still revisions waiting to be pulled:
                             pullRemoteRevisions();
                         }
@@ -332,6 +478,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
             );
         } catch (Exception e) {
             Log.e(Log.TAG_SYNC, "%s: pullBulkRevisions Exception: %s", this, e);
+            connectionFinished(bulkRevs.size());
             return;
         }
 
@@ -344,8 +491,20 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
 
 
+    // Hands a downloaded revision to the decode stage. Waits if the stage is full, which stops
+    // the download from reading the response until there's room.
+    private void queueDownloadedRevision(final RevisionInternal rev) {
+        decodeStage.submit(1, new Runnable() {
+            @Override
+            public void run() {
+                decodeDownloadedRevision(rev);
+            }
+        });
+    }
+
     // This invokes the tranformation block if one is installed and queues the resulting CBL_Revision
-    private void queueDownloadedRevision(RevisionInternal rev) {
+    // for insertion. Runs on the decode stage's threads.
+    private void decodeDownloadedRevision(RevisionInternal rev) {
 
         if (revisionBodyTransformationBlock != null) {
             // Add 'file' properties to attachments pointing to their bodies:
@@ -365,7 +524,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
             if (xformed == null) {
                 Log.v(Log.TAG_SYNC, "%s: Transformer rejected revision %s", this, rev);
                 pendingSequences.removeSequence(rev.getSequence());
-                lastSequence = pendingSequences.getCheckpointedValue();
+                checkpointPendingSequences();
                 return;
             }
             rev = xformed;
@@ -381,6 +540,9 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
         //TODO: rev.getBody().compact();
 
+        if (!insertStage.acquire(1)) {
+            return;  // stopped
+        }
         downloadsToInsert.queueObject(rev);
 
     }
@@ -391,10 +553,10 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
     // Get as many revisions as possible in one _all_docs request.
     // This is compatible with CouchDB, but it only works for revs of generation 1 without attachments.
 
+    // The caller has reserved an HTTP connection.
     protected void pullBulkWithAllDocs(final List<RevisionInternal> bulkRevs) {
         // http://wiki.apache.org/couchdb/HTTP_Bulk_Document_API
 
-        ++httpConnectionCount;
         final RevisionList remainingRevs = new RevisionList(bulkRevs);
 
         Collection<String> keys = CollectionUtils.transform(bulkRevs,
@@ -456,16 +618,17 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                             }
                         }
 
-                        // Any leftover revisions that didn't get matched will be fetched individually:
-                        if (remainingRevs.size() > 0) {
+                        // Any leftover revisions that didn't get matched will be fetched individually
+                        // (they stay in the fetch stage):
+                        int numLeftover = remainingRevs.size();
+                        if (numLeftover > 0) {
                             Log.v(Log.TAG_SYNC, "%s bulk-fetch didn't work for %d of %d revs; getting individually", this, remainingRevs.size(), bulkRevs.size());
                             for (RevisionInternal rev : remainingRevs) {
                                 queueRemoteRevision(rev);
                             }
-                            pullRemoteRevisions();
                         }
 
-                        --httpConnectionCount;
+                        connectionFinished(bulkRevs.size() - numLeftover);
                         // Start another task if there are still revisions waiting to be pulled:
                         pullRemoteRevisions();
                     }
@@ -483,11 +646,20 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         long time = System.currentTimeMillis();
         Collections.sort(downloads, getRevisionListComparator());
 
+        // A large batch is written with the synchronous setting relaxed, as the storage profile
+        // allows; the profile's setting is restored after the commit.
+        boolean bulkLoad = db.getStorageProfile().useBulkLoad(downloads.size());
+        if (bulkLoad) {
+            db.beginBulkLoad();
+        }
+
         db.beginTransaction();
         boolean success = false;
         try {
+            List<RevisionInternal> revs = new ArrayList<RevisionInternal>(downloads.size());
+            List<List<String>> histories = new ArrayList<List<String>>(downloads.size());
+            List<Long> fakeSequences = new ArrayList<Long>(downloads.size());
             for (RevisionInternal rev : downloads) {
-                long fakeSequence = rev.getSequence();
                 List<String> history = db.parseCouchDBRevisionHistory(rev.getProperties());
                 if (history.isEmpty() && rev.getGeneration() > 1) {
                     Log.w(Log.TAG_SYNC, "%s: Missing revision history in response for: %s", this, rev);
@@ -497,24 +669,29 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                 }
 
                 Log.v(Log.TAG_SYNC, "%s: inserting %s %s", this, rev.getDocId(), history);
+                revs.add(rev);
+                histories.add(history);
+                fakeSequences.add(rev.getSequence());
+            }
 
-                // Insert the revision
-                try {
-                    db.forceInsert(rev, history, remote);
-                } catch (CouchbaseLiteException e) {
-                    if (e.getCBLStatus().getCode() == Status.FORBIDDEN) {
+            // Insert the revisions
+            List<Status> results = db.forceInsertBatch(revs, histories, remote);
+            for (int i = 0; i < revs.size(); i++) {
+                RevisionInternal rev = revs.get(i);
+                Status status = results.get(i);
+                if (!status.isSuccessful()) {
+                    if (status.getCode() == Status.FORBIDDEN) {
                         Log.i(Log.TAG_SYNC, "%s: Remote rev failed validation: %s", this, rev);
                     } else {
-                        Log.w(Log.TAG_SYNC, "%s: failed to write %s: status=%s", this, rev, e.getCBLStatus().getCode());
+                        Log.w(Log.TAG_SYNC, "%s: failed to write %s: status=%s", this, rev, status.getCode());
                         revisionFailed();
-                        setError(new HttpResponseException(e.getCBLStatus().getCode(), null));
+                        setError(new HttpResponseException(status.getCode(), null));
                         continue;
                     }
                 }
 
                 // Mark this revision's fake sequence as processed:
-                pendingSequences.removeSequence(fakeSequence);
-
+                pendingSequences.removeSequence(fakeSequences.get(i));
             }
 
             Log.v(Log.TAG_SYNC, "%s: finished inserting %d revisions", this, downloads.size());
@@ -522,13 +699,19 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
         } catch (SQLException e) {
             Log.e(Log.TAG_SYNC, this + ": Exception inserting revisions", e);
+        } catch (CouchbaseLiteException e) {
+            Log.e(Log.TAG_SYNC, this + ": Exception inserting revisions", e);
+            setError(e);
         } finally {
             db.endTransaction(success);
+            if (bulkLoad) {
+                db.endBulkLoad();
+            }
 
             if (success) {
 
                 // Checkpoint:
-                setLastSequence(pendingSequences.getCheckpointedValue());
+                checkpointPendingSequences();
 
                 long delta = System.currentTimeMillis() - time;
                 Log.v(Log.TAG_SYNC, "%s: inserted %d revs in %d milliseconds", this, downloads.size(), delta);
@@ -575,7 +758,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
         Log.d(Log.TAG_SYNC, "%s: pullRemoteRevision with rev: %s", this, rev);
 
-        ++httpConnectionCount;
+        // The caller has reserved an HTTP connection.
 
         // Construct a query. We want the revision history, and the bodies of attachments that have
         // been added since the latest revisions we have locally.
@@ -584,7 +767,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         List<String> knownRevs = knownCurrentRevIDs(rev);
         if (knownRevs == null) {
             Log.w(Log.TAG_SYNC, "knownRevs == null, something is wrong, possibly the replicator has shut down");
-            --httpConnectionCount;
+            connectionFinished(1);
             return;
         }
         if (knownRevs.size() > 0) {
@@ -610,12 +793,12 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
                     // TODO: [gotRev.body compact];
                     Log.d(Log.TAG_SYNC, "%s: pullRemoteRevision add rev: %s to batcher: %s", PullerInternal.this, gotRev, downloadsToInsert);
-                    downloadsToInsert.queueObject(gotRev);
+                    queueDownloadedRevision(gotRev);
                 }
 
                 // Note that we've finished this task; then start another one if there
                 // are still revisions waiting to be pulled:
-                --httpConnectionCount;
+                connectionFinished(1);
                 pullRemoteRevisions();
             }
         });
@@ -650,7 +833,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
      * Add a revision to the appropriate queue of revs to individually GET
      */
     @InterfaceAudience.Private
-    protected void queueRemoteRevision(RevisionInternal rev) {
+    protected synchronized void queueRemoteRevision(RevisionInternal rev) {
         if (rev.isDeleted()) {
             if (deletedRevsToPull == null) {
                 deletedRevsToPull = new ArrayList<RevisionInternal>(100);
@@ -700,35 +883,53 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
     @Override
     public void changeTrackerReceivedChange(final Map<String, Object> change) {
 
+        changesStage.recordProcessed(1, 0);
+
+        // Wait until the revs-diff stage has room for the change's revisions. This blocks the
+        // change tracker, so it stops reading the feed while the rest of the pipeline catches up.
+        List<?> changes = (List<?>) change.get("changes");
+        final int numRevs = (changes != null) ? changes.size() : 0;
+        if (!revsDiffStage.acquire(numRevs)) {
+            return;  // stopped
+        }
+
         // this callback will be on the changetracker thread, but we need
         // to do the work on the replicator thread.
         workExecutor.submit(new Runnable() {
             @Override
             public void run() {
+                int numAdded = 0;
                 try {
                     Log.d(Log.TAG_SYNC, "changeTrackerReceivedChange: %s", change);
-                    processChangeTrackerChange(change);
+                    numAdded = processChangeTrackerChange(change);
                 } catch (Exception e) {
                     Log.e(Log.TAG_SYNC, "Error processChangeTrackerChange(): %s", e);
                     e.printStackTrace();
                     throw new RuntimeException(e);
+                } finally {
+                    // Give back the room reserved for revisions that weren't added to the inbox:
+                    revsDiffStage.release(numRevs - numAdded);
                 }
             }
         });
     }
 
-    protected void processChangeTrackerChange(final Map<String, Object> change) {
+    /**
+     * Adds the revisions of a change from the feed to the inbox, and returns how many were added.
+     */
+    protected int processChangeTrackerChange(final Map<String, Object> change) {
 
         String lastSequence = change.get("seq").toString();
         String docID = (String) change.get("id");
         if (docID == null) {
-            return;
+            return 0;
         }
 
         if (!Database.isValidDocumentId(docID)) {
             Log.w(Log.TAG_SYNC, "%s: Received invalid doc ID from _changes: %s", this, change);
-            return;
+            return 0;
         }
+        int numAdded = 0;
         boolean deleted = (change.containsKey("deleted") && ((Boolean) change.get("deleted")).equals(Boolean.TRUE));
         List<Map<String, Object>> changes = (List<Map<String, Object>>) change.get("changes");
         for (Map<String, Object> changeDict : changes) {
@@ -746,10 +947,11 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
             addToChangesCount(1);
 
             addToInbox(rev);
+            ++numAdded;
 
         }
 
-
+        return numAdded;
 
     }
 
@@ -867,9 +1069,19 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                         batcher.waitForPendingFutures();
                     }
 
+                    if (revsDiffStage != null) {
+                        Log.d(Log.TAG_SYNC, "revsDiffStage.awaitIdle()");
+                        revsDiffStage.awaitIdle();
+                    }
+
                     Log.d(Log.TAG_SYNC, "waitForPendingFutures()");
                     waitForPendingFutures();
 
+                    if (decodeStage != null) {
+                        Log.d(Log.TAG_SYNC, "decodeStage.awaitIdle()");
+                        decodeStage.awaitIdle();
+                    }
+
                     if (downloadsToInsert != null) {
                         Log.d(Log.TAG_SYNC, "downloadsToInsert.waitForPendingFutures()");
                         // TODO: should we call downloadsToInsert.flushAll(); here?
@@ -889,6 +1101,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
                 } finally {
 
+                    shutdownPipelineStages();
                     triggerStopImmediate();
                 }
 
@@ -901,6 +1114,13 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
     }
 
+    private void shutdownPipelineStages() {
+        for (PipelineStage stage : getPipelineStages()) {
+            Log.i(Log.TAG_SYNC, "%s: pipeline stage %s", this, stage);
+            stage.shutdown();
+        }
+    }
+
     public void waitForPendingFutures() {
 
         try {
@@ -2,11 +2,13 @@ package com.couchbase.lite.replicator;
 
 import com.couchbase.lite.BlobKey;
 import com.couchbase.lite.BlobStore;
+import com.couchbase.lite.ChangesEnumerator;
 import com.couchbase.lite.ChangesOptions;
 import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Database;
 import com.couchbase.lite.DocumentChange;
 import com.couchbase.lite.Manager;
+import com.couchbase.lite.PushBatchOptions;
 import com.couchbase.lite.ReplicationFilter;
 import com.couchbase.lite.RevisionList;
 import com.couchbase.lite.Status;
@@ -14,6 +16,7 @@ import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.support.HttpClientFactory;
 import com.couchbase.lite.support.RemoteRequestCompletionBlock;
+import com.couchbase.lite.util.JSONSizeEstimator;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.URIUtils;
 
@@ -32,6 +35,7 @@ import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -56,6 +60,22 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
     SortedSet<Long> pendingSequences;
     Long maxPendingSequence;
 
+    // Changes are read from the database a page at a time as the earlier ones drain, so the
+    // next page is only read once fewer than this many are queued or waiting to be sent:
+    private static final int MAX_CHANGES_IN_FLIGHT = 2 * ChangesEnumerator.DEFAULT_PAGE_SIZE;
+
+    // The changes made before replication began that haven't been read yet, up to
+    // lastChangeToRead (later ones come through changed()); null once they've all been read.
+    // Guarded by changesLock.
+    private final Object changesLock = new Object();
+    private ChangesEnumerator unreadChanges;
+    private long lastChangeToRead;
+
+    private PushBatchOptions batchOptions;
+    // _bulk_docs requests waiting for one of the in-flight ones to finish, guarded by itself:
+    private final LinkedList<BulkDocsBatch> queuedBulkDocs = new LinkedList<BulkDocsBatch>();
+    private int bulkDocsInFlight;
+
     /**
      * Constructor
      * @exclude
@@ -127,25 +147,29 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
 
         try {
 
-            // wait for batcher's pending futures
-            if (batcher != null) {
-                Log.d(Log.TAG_SYNC, "batcher.waitForPendingFutures()");
-                // TODO: should we call batcher.flushAll(); here?
-                batcher.waitForPendingFutures();
-            }
+            // A finished request may have queued the next page of changes into the batcher,
+            // whose processing sends more requests, so go round until both have drained:
+            do {
+                // wait for batcher's pending futures
+                if (batcher != null) {
+                    Log.d(Log.TAG_SYNC, "batcher.waitForPendingFutures()");
+                    // TODO: should we call batcher.flushAll(); here?
+                    batcher.waitForPendingFutures();
+                }
 
-            while (!pendingFutures.isEmpty()) {
-                Future future = pendingFutures.take();
-                try {
-                    Log.d(Log.TAG_SYNC, "calling future.get() on %s", future);
-                    future.get();
-                    Log.d(Log.TAG_SYNC, "done calling future.get() on %s", future);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
+                while (!pendingFutures.isEmpty()) {
+                    Future future = pendingFutures.take();
+                    try {
+                        Log.d(Log.TAG_SYNC, "calling future.get() on %s", future);
+                        future.get();
+                        Log.d(Log.TAG_SYNC, "done calling future.get() on %s", future);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } catch (ExecutionException e) {
+                        e.printStackTrace();
+                    }
                 }
-            }
+            } while (batcher != null && batcher.hasPendingFlush() && !Thread.currentThread().isInterrupted());
 
         } catch (Exception e) {
             Log.e(Log.TAG_SYNC, "Exception waiting for pending futures: %s", e);
@@ -181,6 +205,7 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
             Log.w(Log.TAG_SYNC, "%s: removePending: sequence %s not in set, for rev %s", this, seq, revisionInternal);
         }
         pendingSequences.remove(seq);
+        queueMoreChanges();
         if (wasFirst) {
             // If I removed the first pending sequence, can advance the checkpoint:
             long maxCompleted;
@@ -194,6 +219,39 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
         }
     }
 
+    /**
+     * Reads the next page of the changes made before replication began and queues it into the
+     * batcher, unless enough changes are already queued or waiting to be sent. Called as they
+     * drain, so that only a bounded number of changes is ever in memory.
+     * @return the number of changes queued
+     */
+    @InterfaceAudience.Private
+    private int queueMoreChanges() {
+        RevisionList toQueue = new RevisionList();
+        synchronized (changesLock) {
+            if (unreadChanges == null
+                    || batcher.count() + pendingSequences.size() >= MAX_CHANGES_IN_FLIGHT) {
+                return 0;
+            }
+            RevisionList page = unreadChanges.nextPage();
+            for (RevisionInternal rev : page) {
+                if (rev.getSequence() > lastChangeToRead) {
+                    // Made since replication began, so changed() has already queued it
+                    break;
+                }
+                toQueue.add(rev);
+            }
+            if (toQueue.size() < page.size() || page.isEmpty()) {
+                unreadChanges = null;
+            }
+        }
+        if (toQueue.size() > 0) {
+            Log.d(Log.TAG_SYNC, "%s: Queuing %d changes since %s", this, toQueue.size(), lastSequence);
+            batcher.queueObjects(toQueue);
+        }
+        return toQueue.size();
+    }
+
     @Override
     @InterfaceAudience.Private
     void maybeCreateRemoteDB() {
@@ -237,6 +295,7 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
         }
 
         pendingSequences = Collections.synchronizedSortedSet(new TreeSet<Long>());
+        batchOptions = getBatchOptions();
         try {
             maxPendingSequence = Long.parseLong(lastSequence);
         } catch (NumberFormatException e) {
@@ -259,10 +318,14 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
         ChangesOptions options = new ChangesOptions();
         options.setIncludeConflicts(true);
         Log.d(Log.TAG_SYNC, "%s: Getting changes since %s", this, lastSequence);
-        RevisionList changes = db.changesSince(lastSequenceLong, options, filter);
-        if(changes.size() > 0) {
-            Log.d(Log.TAG_SYNC, "%s: Queuing %d changes since %s", this, changes.size(), lastSequence);
-            batcher.queueObjects(changes);
+        // Stream the changes into the batcher a page at a time, rather than loading the whole
+        // history into memory first. Only the first page is queued now; the rest follow as
+        // the batcher and the pending revisions drain (see queueMoreChanges()):
+        synchronized (changesLock) {
+            unreadChanges = db.enumerateChangesSince(lastSequenceLong, options, filter, filterParams);
+            lastChangeToRead = db.getLastSequenceNumber();
+        }
+        if(queueMoreChanges() > 0) {
             batcher.flush();
         } else {
             Log.d(Log.TAG_SYNC, "%s: No changes since %s", this, lastSequence);
@@ -292,6 +355,14 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
     }
 
 
+    private PushBatchOptions getBatchOptions() {
+        Manager manager = (db != null) ? db.getManager() : null;
+        if (manager == null) {
+            return new PushBatchOptions();
+        }
+        return manager.getOptions().getPushBatchOptions();
+    }
+
     @InterfaceAudience.Private
     private void stopObserving() {
         if(observing) {
@@ -319,8 +390,7 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
                 return;
             }
             RevisionInternal rev = change.getAddedRevision();
-            Map<String, Object> paramsFixMe = null;  // TODO: these should not be null
-            if (getLocalDatabase().runFilter(filter, paramsFixMe, rev)) {
+            if (getLocalDatabase().runFilter(filter, filterParams, rev)) {
                 addToInbox(rev);
             }
 
@@ -361,9 +431,9 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
                     revisionFailed();
                 } else if (results.size() != 0) {
                     // Go through the list of local changes again, selecting the ones the destination server
-                    // said were missing and mapping them to a JSON dictionary in the form _bulk_docs wants:
-                    final List<Object> docsToSend = new ArrayList<Object>();
-                    RevisionList revsToSend = new RevisionList();
+                    // said were missing and mapping them to a JSON dictionary in the form _bulk_docs wants.
+                    // They're split into batches small enough to send in one request each:
+                    BulkDocsBatch batch = new BulkDocsBatch();
                     for(RevisionInternal rev : changes) {
                         // Is this revision in the server's 'missing' list?
                         Map<String,Object> properties = null;
@@ -423,24 +493,18 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
                             throw new IllegalStateException("properties must contain a document _id");
                         }
 
-                        revsToSend.add(rev);
-                        docsToSend.add(properties);
-
-                        //TODO: port this code from iOS
-                                /*
-                                bufferedSize += [CBLJSON estimateMemorySize: properties];
-                                if (bufferedSize > kMaxBulkDocsObjectSize) {
-                                    [self uploadBulkDocs: docsToSend changes: revsToSend];
-                                    docsToSend = $marray();
-                                    revsToSend = [[CBL_RevisionList alloc] init];
-                                    bufferedSize = 0;
-                                }
-                                */
+                        long jsonSize = JSONSizeEstimator.estimateJSONSize(properties);
+                        long memorySize = JSONSizeEstimator.estimateMemorySize(properties);
+                        if (!batch.fits(jsonSize, memorySize)) {
+                            uploadBulkDocs(batch);
+                            batch = new BulkDocsBatch();
+                        }
+                        batch.add(rev, properties, jsonSize, memorySize);
 
                     }
 
-                    // Post the revisions to the destination:
-                    uploadBulkDocs(docsToSend, revsToSend);
+                    // Post the remaining revisions to the destination:
+                    uploadBulkDocs(batch);
 
                 } else {
                     // None of the revisions are new to the remote
@@ -454,6 +518,36 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
         });
         pendingFutures.add(future);
 
+        // This batch has left the batcher; if it was the last queued, read the next page:
+        queueMoreChanges();
+    }
+
+    /**
+     * Revisions to post to _bulk_docs in one request, with their estimated size.
+     */
+    private class BulkDocsBatch {
+        final List<Object> docs = new ArrayList<Object>();
+        final RevisionList revs = new RevisionList();
+        long jsonSize;
+        long memorySize;
+
+        /**
+         * Whether a document of the given size can be added without going over the limits. An
+         * empty batch takes any document, however big.
+         */
+        boolean fits(long docJsonSize, long docMemorySize) {
+            return docs.isEmpty() ||
+                    (docs.size() < batchOptions.getMaxBulkDocsCount()
+                    && jsonSize + docJsonSize <= batchOptions.getMaxBulkDocsSize()
+                    && memorySize + docMemorySize <= batchOptions.getMaxBulkDocsMemory());
+        }
+
+        void add(RevisionInternal rev, Map<String, Object> properties, long docJsonSize, long docMemorySize) {
+            revs.add(rev);
+            docs.add(properties);
+            jsonSize += docJsonSize;
+            memorySize += docMemorySize;
+        }
     }
 
     /**
@@ -462,13 +556,60 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
      */
     @InterfaceAudience.Private
     protected void uploadBulkDocs(List<Object> docsToSend, final RevisionList changes) {
+        BulkDocsBatch batch = new BulkDocsBatch();
+        batch.docs.addAll(docsToSend);
+        batch.revs.addAll(changes);
+        uploadBulkDocs(batch);
+    }
 
-        final int numDocsToSend = docsToSend.size();
-        if (numDocsToSend == 0 ) {
+    /**
+     * Queues a batch to be posted, and posts it right away unless the maximum number of
+     * _bulk_docs requests are already running.
+     */
+    private void uploadBulkDocs(BulkDocsBatch batch) {
+        if (batch.docs.isEmpty()) {
             return;
         }
+        synchronized (queuedBulkDocs) {
+            queuedBulkDocs.add(batch);
+        }
+        sendQueuedBulkDocs();
+    }
+
+    private void sendQueuedBulkDocs() {
+        while (true) {
+            BulkDocsBatch batch;
+            synchronized (queuedBulkDocs) {
+                if (queuedBulkDocs.isEmpty() || bulkDocsInFlight >= batchOptions.getMaxBulkDocsRequestsInFlight()) {
+                    return;
+                }
+                batch = queuedBulkDocs.removeFirst();
+                ++bulkDocsInFlight;
+            }
+            if (!sendBulkDocs(batch)) {
+                synchronized (queuedBulkDocs) {
+                    --bulkDocsInFlight;
+                }
+            }
+        }
+    }
+
+    private void bulkDocsFinished() {
+        synchronized (queuedBulkDocs) {
+            --bulkDocsInFlight;
+        }
+        // Start the next request before this one's future completes, so waitForPendingFutures()
+        // waits for it too:
+        sendQueuedBulkDocs();
+    }
+
+    private boolean sendBulkDocs(BulkDocsBatch batch) {
+
+        final List<Object> docsToSend = batch.docs;
+        final RevisionList changes = batch.revs;
+        final int numDocsToSend = docsToSend.size();
 
-        Log.v(Log.TAG_SYNC, "%s: POSTing " + numDocsToSend + " revisions to _bulk_docs: %s", PusherInternal.this, docsToSend);
+        Log.v(Log.TAG_SYNC, "%s: POSTing " + numDocsToSend + " revisions (~%d bytes) to _bulk_docs: %s", PusherInternal.this, batch.jsonSize, docsToSend);
         addToChangesCount(numDocsToSend);
 
         Map<String,Object> bulkDocsBody = new HashMap<String,Object>();
@@ -479,47 +620,55 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
 
             @Override
             public void onCompletion(HttpResponse httpResponse, Object result, Throwable e) {
-                if (e == null) {
-                    Set<String> failedIDs = new HashSet<String>();
-                    // _bulk_docs response is really an array, not a dictionary!
-                    List<Map<String, Object>> items = (List) result;
-                    for (Map<String, Object> item : items) {
-                        Status status = statusFromBulkDocsResponseItem(item);
-                        if (status.isError()) {
-                            // One of the docs failed to save.
-                            Log.w(Log.TAG_SYNC, "%s: _bulk_docs got an error: %s", item, this);
-                            // 403/Forbidden means validation failed; don't treat it as an error
-                            // because I did my job in sending the revision. Other statuses are
-                            // actual replication errors.
-                            if (status.getCode() != Status.FORBIDDEN) {
-                                String docID = (String) item.get("id");
-                                failedIDs.add(docID);
-                                // TODO - port from iOS
-                                // NSURL* url = docID ? [_remote URLByAppendingPathComponent: docID] : nil;
-                                // error = CBLStatusToNSError(status, url);
+                try {
+                    if (e == null) {
+                        Set<String> failedIDs = new HashSet<String>();
+                        // _bulk_docs response is really an array, not a dictionary!
+                        List<Map<String, Object>> items = (List) result;
+                        for (Map<String, Object> item : items) {
+                            Status status = statusFromBulkDocsResponseItem(item);
+                            if (status.isError()) {
+                                // One of the docs failed to save.
+                                Log.w(Log.TAG_SYNC, "%s: _bulk_docs got an error: %s", item, this);
+                                // 403/Forbidden means validation failed; don't treat it as an error
+                                // because I did my job in sending the revision. Other statuses are
+                                // actual replication errors.
+                                if (status.getCode() != Status.FORBIDDEN) {
+                                    String docID = (String) item.get("id");
+                                    failedIDs.add(docID);
+                                    // TODO - port from iOS
+                                    // NSURL* url = docID ? [_remote URLByAppendingPathComponent: docID] : nil;
+                                    // error = CBLStatusToNSError(status, url);
+                                }
                             }
                         }
-                    }
 
-                    // Remove from the pending list all the revs that didn't fail:
-                    for (RevisionInternal revisionInternal : changes) {
-                        if (!failedIDs.contains(revisionInternal.getDocId())) {
-                            removePending(revisionInternal);
+                        // Remove from the pending list all the revs that didn't fail:
+                        for (RevisionInternal revisionInternal : changes) {
+                            if (!failedIDs.contains(revisionInternal.getDocId())) {
+                                removePending(revisionInternal);
+                            }
                         }
-                    }
 
+                    }
+                    if (e != null) {
+                        setError(e);
+                        revisionFailed();
+                    } else {
+                        Log.v(Log.TAG_SYNC, "%s: POSTed to _bulk_docs", PusherInternal.this);
+                    }
+                    addToCompletedChangesCount(numDocsToSend);
+                } finally {
+                    bulkDocsFinished();
                 }
-                if (e != null) {
-                    setError(e);
-                    revisionFailed();
-                } else {
-                    Log.v(Log.TAG_SYNC, "%s: POSTed to _bulk_docs", PusherInternal.this);
-                }
-                addToCompletedChangesCount(numDocsToSend);
 
             }
         });
+        if (future == null) {
+            return false;
+        }
         pendingFutures.add(future);
+        return true;
 
     }
 
@@ -298,13 +298,20 @@ abstract class ReplicationInternal {
         db.getManager().getContext().getNetworkReachabilityManager().addNetworkReachabilityListener(parentReplication);
     }
 
+    /**
+     * Number of threads that run HTTP requests.
+     */
+    protected int getRemoteRequestThreadCount() {
+        return EXECUTOR_THREAD_POOL_SIZE;
+    }
+
     public abstract boolean shouldCreateTarget();
 
     public abstract void setCreateTarget(boolean createTarget);
 
     protected void goOnlineInitialStartup() {
 
-        remoteRequestExecutor = Executors.newScheduledThreadPool(EXECUTOR_THREAD_POOL_SIZE, new ThreadFactory() {
+        remoteRequestExecutor = Executors.newScheduledThreadPool(getRemoteRequestThreadCount(), new ThreadFactory() {
             private int counter = 0;
             @Override
             public Thread newThread(Runnable r) {
@@ -4,6 +4,7 @@ package com.couchbase.lite.router;
 import com.couchbase.lite.AsyncTask;
 import com.couchbase.lite.Attachment;
 import com.couchbase.lite.BlobStoreWriter;
+import com.couchbase.lite.ChangesEnumerator;
 import com.couchbase.lite.ChangesOptions;
 import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Database;
@@ -12,6 +13,7 @@ import com.couchbase.lite.DocumentChange;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.Mapper;
 import com.couchbase.lite.Misc;
+import com.couchbase.lite.QueryEnumerator;
 import com.couchbase.lite.QueryOptions;
 import com.couchbase.lite.QueryRow;
 import com.couchbase.lite.Reducer;
@@ -33,6 +35,7 @@ import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.StreamUtils;
 
 import org.apache.http.client.HttpResponseException;
+import org.codehaus.jackson.JsonGenerator;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -1275,16 +1278,41 @@ public class Router implements Database.ChangeListener {
             }
         }
 
-        RevisionList changes = db.changesSince(since, options, changesFilter);
+        String feed = getQuery("feed");
+        longpoll = "longpoll".equals(feed);
+        boolean continuous = !longpoll && "continuous".equals(feed);
+
+        if(continuous && options.isSortBySequence()) {
+            // Stream the existing changes out in sequence order, without loading them all first:
+            connection.setChunked(true);
+            connection.setResponseCode(Status.OK);
+            sendResponse();
+            ChangesEnumerator changes = db.enumerateChangesSince(since, options, changesFilter);
+            while (changes.hasNext()) {
+                sendContinuousChange(changes.next());
+            }
+            db.addChangeListener(this);
+            // Don't close connection; more data to come
+            return new Status(0);
+        }
+
+        RevisionList changes;
+        if(options.isSortBySequence()) {
+            // The limit is applied in SQL, so this only reads as many changes as are returned:
+            changes = new RevisionList();
+            ChangesEnumerator enumerator = db.enumerateChangesSince(since, options, changesFilter);
+            while (enumerator.hasNext()) {
+                changes.add(enumerator.next());
+            }
+        } else {
+            // Conflicts have to be grouped by document, so they can't be streamed by sequence:
+            changes = db.changesSince(since, options, changesFilter);
+        }
 
         if(changes == null) {
             return new Status(Status.INTERNAL_SERVER_ERROR);
         }
 
-        String feed = getQuery("feed");
-        longpoll = "longpoll".equals(feed);
-        boolean continuous = !longpoll && "continuous".equals(feed);
-
         if(continuous || (longpoll && changes.size() == 0)) {
             connection.setChunked(true);
             connection.setResponseCode(Status.OK);
@@ -1720,21 +1748,34 @@ public class Router implements Database.ChangeListener {
             }
         }
 
-        // convert from QueryRow -> Map
-        List<QueryRow> queryRows = view.queryWithOptions(options);
-        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
-        for (QueryRow queryRow : queryRows) {
-            rows.add(queryRow.asJSONDictionary());
-        }
-
-        Map<String,Object> responseBody = new HashMap<String,Object>();
-        responseBody.put("rows", rows);
-        responseBody.put("total_rows", rows.size());
-        responseBody.put("offset", options.getSkip());
-        if(options.isUpdateSeq()) {
-            responseBody.put("update_seq", lastSequenceIndexed);
+        // Write the rows out as they're read from the index, so a large result set is never
+        // held in memory as QueryRows and Maps as well as JSON:
+        QueryEnumerator rows = view.streamingQueryWithOptions(options, lastSequenceIndexed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            JsonGenerator generator = Manager.getObjectMapper().getJsonFactory().createJsonGenerator(out);
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("rows");
+            int totalRows = 0;
+            while (rows.hasNext()) {
+                generator.writeObject(rows.next().asJSONDictionary());
+                totalRows++;
+            }
+            generator.writeEndArray();
+            generator.writeNumberField("total_rows", totalRows);
+            generator.writeNumberField("offset", options.getSkip());
+            if(options.isUpdateSeq()) {
+                generator.writeNumberField("update_seq", lastSequenceIndexed);
+            }
+            generator.writeEndObject();
+            generator.close();
+        } catch (IOException e) {
+            Log.e(Log.TAG_ROUTER, "Error writing view query results", e);
+            return new Status(Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            rows.close();
         }
-        connection.setResponseBody(new Body(responseBody));
+        connection.setResponseBody(Body.bodyWithValidJSON(out.toByteArray()));
         return new Status(Status.OK);
     }
 
@@ -0,0 +1,701 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.LruCache;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A storage engine on top of a JDBC SQLite driver (by default the Xerial sqlite-jdbc driver).
+ * It's meant to be used with the database in WAL mode (as set by every StorageProfile preset) so
+ * that reads don't block on writes.
+ *
+ * It keeps one writer connection and a pool of read-only connections:
+ *
+ * - All writes, and every statement run by the thread that holds the current transaction, go
+ *   through the writer connection. Only one thread can use it at a time; other threads wait
+ *   until the transaction, or the single write, in progress is finished.
+ * - Queries from other threads go to a read-only connection, so they run concurrently with
+ *   each other and with the writer, and see the last committed state of the database. A thread
+ *   keeps the same read connection until all of its cursors are closed, so nested queries on one
+ *   thread never wait for a second connection.
+ *
+ * Each connection keeps its own cache of prepared statements, keyed by SQL text.
+ *
+ * The custom collations used by the schema and the views (REVID, JSON, JSON_ASCII, JSON_RAW)
+ * aren't part of any JDBC driver, and this tree has no Java implementation of them, so the
+ * class is abstract: without them it can't open a Couchbase Lite database. A subclass must
+ * register them, with whatever API its driver provides, in configureConnection(). To use the
+ * engine, name that subclass in the services/com.couchbase.lite.storage.SQLiteStorageEngine
+ * resource.
+ */
+public abstract class JDBCSQLiteStorageEngine implements SQLiteStorageEngine, SQLiteStatementCompiler {
+
+    public static final String DEFAULT_DRIVER_CLASS = "org.sqlite.JDBC";
+    public static final String URL_PREFIX = "jdbc:sqlite:";
+    public static final int DEFAULT_READ_CONNECTIONS = 4;
+
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    // sqlite3_open_v2() flag for a read-only connection, as understood by sqlite-jdbc's
+    // "open_mode" property.
+    private static final String SQLITE_OPEN_READONLY = "1";
+
+    private String path;
+    private int maxReadConnections = DEFAULT_READ_CONNECTIONS;
+
+    private JDBCConnection writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final List<Boolean> transactionStack = new ArrayList<Boolean>();
+    private boolean transactionFailed;
+
+    private BlockingQueue<JDBCConnection> idleReaders;
+    private final List<JDBCConnection> allReaders = new ArrayList<JDBCConnection>();
+    private final ConcurrentMap<Thread, ReaderLease> leases = new ConcurrentHashMap<Thread, ReaderLease>();
+
+    /**
+     * Sets the maximum number of read-only connections. Must be called before open().
+     */
+    public void setMaxReadConnections(int maxReadConnections) {
+        if (maxReadConnections < 1) {
+            throw new IllegalArgumentException("maxReadConnections < 1");
+        }
+        this.maxReadConnections = maxReadConnections;
+    }
+
+    public int getMaxReadConnections() {
+        return maxReadConnections;
+    }
+
+    /**
+     * The class name of the JDBC driver, loaded when the database is opened.
+     */
+    protected String getDriverClassName() {
+        return DEFAULT_DRIVER_CLASS;
+    }
+
+    /**
+     * Called on every new connection, before it is used. Must register the REVID, JSON,
+     * JSON_ASCII and JSON_RAW collations, and can apply any other per-connection settings.
+     */
+    protected abstract void configureConnection(Connection connection, boolean readOnly) throws java.sql.SQLException;
+
+    @Override
+    public boolean open(String path) {
+        this.path = path;
+        try {
+            Class.forName(getDriverClassName());
+            writer = new JDBCConnection(DriverManager.getConnection(URL_PREFIX + path));
+            configureConnection(writer.connection, false);
+            // The journal mode is left to the database's storage profile, which has to set the
+            // page size of a new database before switching it to WAL.
+            idleReaders = new ArrayBlockingQueue<JDBCConnection>(maxReadConnections);
+            return true;
+        } catch (Exception e) {
+            Log.e(Database.TAG, "Error opening JDBC connection to " + path, e);
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public int getVersion() {
+        Cursor cursor = rawQuery("PRAGMA user_version", null);
+        try {
+            return cursor.moveToNext() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void setVersion(int version) {
+        execSQL("PRAGMA user_version = " + version);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return writer != null;
+    }
+
+    @Override
+    public void beginTransaction() {
+        writeLock.lock();
+        try {
+            if (transactionStack.isEmpty()) {
+                execute(checkOpen(), "BEGIN IMMEDIATE", null);
+                transactionFailed = false;
+            }
+            transactionStack.add(Boolean.FALSE);
+        } catch (RuntimeException e) {
+            writeLock.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        checkTransactionOwner();
+        transactionStack.set(transactionStack.size() - 1, Boolean.TRUE);
+    }
+
+    @Override
+    public void endTransaction() {
+        checkTransactionOwner();
+        try {
+            // As on Android, a nested transaction that isn't marked successful rolls back the
+            // whole outer transaction.
+            if (!transactionStack.remove(transactionStack.size() - 1)) {
+                transactionFailed = true;
+            }
+            if (transactionStack.isEmpty()) {
+                execute(checkOpen(), transactionFailed ? "ROLLBACK" : "COMMIT", null);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void execSQL(String sql) throws SQLException {
+        execSQL(sql, null);
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] bindArgs) throws SQLException {
+        writeLock.lock();
+        try {
+            execute(checkOpen(), sql, bindArgs);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        return query(sql, selectionArgs);
+    }
+
+    @Override
+    public SQLiteStatement compileStatement(String sql) throws SQLException {
+        return new JDBCStatement(sql);
+    }
+
+    @Override
+    public long insert(String table, String nullColumnHack, ContentValues values) {
+        return insertWithOnConflict(table, nullColumnHack, values, CONFLICT_NONE);
+    }
+
+    @Override
+    public long insertWithOnConflict(String table, String nullColumnHack, ContentValues initialValues, int conflictAlgorithm) {
+        StringBuilder sql = new StringBuilder("INSERT");
+        if (conflictAlgorithm == CONFLICT_IGNORE) {
+            sql.append(" OR IGNORE");
+        } else if (conflictAlgorithm == CONFLICT_REPLACE) {
+            sql.append(" OR REPLACE");
+        }
+        sql.append(" INTO ").append(table);
+
+        List<Object> args = new ArrayList<Object>();
+        if (initialValues == null || initialValues.size() == 0) {
+            sql.append(" (").append(nullColumnHack).append(") VALUES (NULL)");
+        } else {
+            StringBuilder columns = new StringBuilder();
+            StringBuilder placeholders = new StringBuilder();
+            for (Map.Entry<String, Object> entry : initialValues.valueSet()) {
+                if (columns.length() > 0) {
+                    columns.append(", ");
+                    placeholders.append(", ");
+                }
+                columns.append(entry.getKey());
+                placeholders.append('?');
+                args.add(entry.getValue());
+            }
+            sql.append(" (").append(columns).append(") VALUES (").append(placeholders).append(')');
+        }
+
+        try {
+            return executeInsert(sql.toString(), args.toArray());
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error inserting into " + table, e);
+            return -1;
+        }
+    }
+
+    @Override
+    public int update(String table, ContentValues values, String whereClause, String[] whereArgs) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        List<Object> args = new ArrayList<Object>();
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            if (!args.isEmpty()) {
+                sql.append(", ");
+            }
+            sql.append(entry.getKey()).append("=?");
+            args.add(entry.getValue());
+        }
+        appendWhere(sql, args, whereClause, whereArgs);
+        return executeUpdateDelete(sql.toString(), args.toArray());
+    }
+
+    @Override
+    public int delete(String table, String whereClause, String[] whereArgs) {
+        StringBuilder sql = new StringBuilder("DELETE FROM ").append(table);
+        List<Object> args = new ArrayList<Object>();
+        appendWhere(sql, args, whereClause, whereArgs);
+        return executeUpdateDelete(sql.toString(), args.toArray());
+    }
+
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            synchronized (allReaders) {
+                for (JDBCConnection reader : allReaders) {
+                    reader.close();
+                }
+                allReaders.clear();
+            }
+            if (idleReaders != null) {
+                idleReaders.clear();
+            }
+            leases.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Runs an INSERT on the writer connection and returns the row id of the new row, or -1 if
+     * no row was inserted.
+     */
+    long executeInsert(String sql, Object[] bindArgs) throws SQLException {
+        writeLock.lock();
+        try {
+            JDBCConnection connection = checkOpen();
+            int changes = executeUpdate(connection, sql, bindArgs);
+            if (changes == 0) {
+                return -1;
+            }
+            return queryForLong(connection, "SELECT last_insert_rowid()");
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Runs an UPDATE or DELETE on the writer connection and returns the number of rows changed.
+     */
+    int executeUpdateDelete(String sql, Object[] bindArgs) throws SQLException {
+        writeLock.lock();
+        try {
+            return executeUpdate(checkOpen(), sql, bindArgs);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Runs a query on the writer connection if this thread holds the current transaction (so it
+     * sees its own changes), otherwise on a read-only connection.
+     */
+    Cursor query(String sql, Object[] bindArgs) throws SQLException {
+        if (writeLock.isHeldByCurrentThread()) {
+            return openCursor(checkOpen(), sql, bindArgs, null);
+        }
+        ReaderLease lease = acquireReader();
+        try {
+            return openCursor(lease.connection, sql, bindArgs, lease);
+        } catch (RuntimeException e) {
+            releaseReader(lease);
+            throw e;
+        }
+    }
+
+    private JDBCConnection checkOpen() {
+        JDBCConnection connection = writer;
+        if (connection == null) {
+            throw new SQLException("Database is not open: " + path);
+        }
+        return connection;
+    }
+
+    private void checkTransactionOwner() {
+        if (!writeLock.isHeldByCurrentThread() || transactionStack.isEmpty()) {
+            throw new SQLException("No transaction in progress on this thread");
+        }
+    }
+
+    private ReaderLease acquireReader() {
+        checkOpen();
+        Thread thread = Thread.currentThread();
+        ReaderLease lease = leases.get(thread);
+        if (lease != null) {
+            // A cursor may be closed, and the lease released, on another thread meanwhile:
+            synchronized (lease) {
+                if (lease.refCount > 0) {
+                    lease.refCount++;
+                    return lease;
+                }
+            }
+        }
+
+        JDBCConnection connection = idleReaders.poll();
+        if (connection == null) {
+            synchronized (allReaders) {
+                if (allReaders.size() < maxReadConnections) {
+                    connection = openReader();
+                    allReaders.add(connection);
+                }
+            }
+        }
+        if (connection == null) {
+            try {
+                connection = idleReaders.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a read connection", e);
+            }
+        }
+        lease = new ReaderLease(thread, connection);
+        leases.put(thread, lease);
+        return lease;
+    }
+
+    private void releaseReader(ReaderLease lease) {
+        // Cursors may be closed on a different thread from the one that opened them.
+        synchronized (lease) {
+            if (--lease.refCount > 0) {
+                return;
+            }
+            leases.remove(lease.owner, lease);
+        }
+        if (writer != null) {
+            idleReaders.offer(lease.connection);
+        }
+    }
+
+    private JDBCConnection openReader() {
+        try {
+            Properties properties = new Properties();
+            properties.setProperty("open_mode", SQLITE_OPEN_READONLY);
+            Connection connection = DriverManager.getConnection(URL_PREFIX + path, properties);
+            configureConnection(connection, true);
+            return new JDBCConnection(connection);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException("Error opening read connection to " + path, e);
+        }
+    }
+
+    private static void appendWhere(StringBuilder sql, List<Object> args, String whereClause, String[] whereArgs) {
+        if (whereClause != null && whereClause.length() > 0) {
+            sql.append(" WHERE ").append(whereClause);
+            if (whereArgs != null) {
+                for (String arg : whereArgs) {
+                    args.add(arg);
+                }
+            }
+        }
+    }
+
+    private static void execute(JDBCConnection connection, String sql, Object[] bindArgs) {
+        PreparedStatement statement = connection.acquire(sql);
+        try {
+            bind(statement, bindArgs);
+            statement.execute();
+            ResultSet resultSet = statement.getResultSet();
+            if (resultSet != null) {
+                // Some PRAGMAs return a row, which has to be consumed before reuse.
+                resultSet.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw new SQLException("Error executing: " + sql, e);
+        } finally {
+            connection.release(sql, statement);
+        }
+    }
+
+    private static int executeUpdate(JDBCConnection connection, String sql, Object[] bindArgs) {
+        PreparedStatement statement = connection.acquire(sql);
+        try {
+            bind(statement, bindArgs);
+            return statement.executeUpdate();
+        } catch (java.sql.SQLException e) {
+            throw new SQLException("Error executing: " + sql, e);
+        } finally {
+            connection.release(sql, statement);
+        }
+    }
+
+    private static long queryForLong(JDBCConnection connection, String sql) {
+        PreparedStatement statement = connection.acquire(sql);
+        ResultSet resultSet = null;
+        try {
+            resultSet = statement.executeQuery();
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        } catch (java.sql.SQLException e) {
+            throw new SQLException("Error executing: " + sql, e);
+        } finally {
+            closeQuietly(resultSet);
+            connection.release(sql, statement);
+        }
+    }
+
+    private Cursor openCursor(JDBCConnection connection, String sql, Object[] bindArgs, ReaderLease lease) {
+        PreparedStatement statement = connection.acquire(sql);
+        try {
+            bind(statement, bindArgs);
+            return new JDBCCursor(connection, sql, statement, statement.executeQuery(), lease);
+        } catch (java.sql.SQLException e) {
+            connection.release(sql, statement);
+            throw new SQLException("Error querying: " + sql, e);
+        }
+    }
+
+    private static void bind(PreparedStatement statement, Object[] bindArgs) throws java.sql.SQLException {
+        statement.clearParameters();
+        if (bindArgs == null) {
+            return;
+        }
+        for (int i = 0; i < bindArgs.length; i++) {
+            Object arg = bindArgs[i];
+            int index = i + 1;
+            if (arg == null) {
+                statement.setNull(index, java.sql.Types.NULL);
+            } else if (arg instanceof byte[]) {
+                statement.setBytes(index, (byte[]) arg);
+            } else if (arg instanceof Double || arg instanceof Float) {
+                statement.setDouble(index, ((Number) arg).doubleValue());
+            } else if (arg instanceof Number) {
+                statement.setLong(index, ((Number) arg).longValue());
+            } else if (arg instanceof Boolean) {
+                statement.setLong(index, ((Boolean) arg) ? 1 : 0);
+            } else {
+                statement.setString(index, arg.toString());
+            }
+        }
+    }
+
+    private static void closeQuietly(ResultSet resultSet) {
+        if (resultSet != null) {
+            try {
+                resultSet.close();
+            } catch (java.sql.SQLException e) {
+                Log.w(Database.TAG, "Error closing result set", e);
+            }
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (java.sql.SQLException e) {
+            Log.w(Database.TAG, "Error closing statement", e);
+        }
+    }
+
+    /**
+     * A connection and its prepared statements. A statement is checked out of the cache while it
+     * is in use, so an open cursor's statement is never re-executed underneath it.
+     */
+    private static final class JDBCConnection {
+        final Connection connection;
+        final LruCache<String, PreparedStatement> statements;
+
+        JDBCConnection(Connection connection) {
+            this.connection = connection;
+            this.statements = new LruCache<String, PreparedStatement>(STATEMENT_CACHE_SIZE) {
+                @Override
+                protected void entryRemoved(boolean evicted, String key, PreparedStatement oldValue,
+                                            PreparedStatement newValue) {
+                    if (evicted || (newValue != null && newValue != oldValue)) {
+                        closeQuietly(oldValue);
+                    }
+                }
+            };
+        }
+
+        PreparedStatement acquire(String sql) {
+            PreparedStatement statement = statements.remove(sql);
+            if (statement != null) {
+                return statement;
+            }
+            try {
+                return connection.prepareStatement(sql);
+            } catch (java.sql.SQLException e) {
+                throw new SQLException("Error preparing: " + sql, e);
+            }
+        }
+
+        void release(String sql, PreparedStatement statement) {
+            statements.put(sql, statement);
+        }
+
+        void close() {
+            statements.evictAll();
+            try {
+                connection.close();
+            } catch (java.sql.SQLException e) {
+                Log.w(Database.TAG, "Error closing connection", e);
+            }
+        }
+    }
+
+    /**
+     * A read connection checked out by a thread, with the number of its cursors still open.
+     * The count is guarded by the lease itself; once it drops to zero the lease is dead.
+     */
+    private static final class ReaderLease {
+        final Thread owner;
+        final JDBCConnection connection;
+        int refCount = 1;
+
+        ReaderLease(Thread owner, JDBCConnection connection) {
+            this.owner = owner;
+            this.connection = connection;
+        }
+    }
+
+    private final class JDBCCursor implements Cursor {
+        private final JDBCConnection connection;
+        private final String sql;
+        private final PreparedStatement statement;
+        private final ResultSet resultSet;
+        private final ReaderLease lease;
+        private boolean afterLast;
+        private boolean closed;
+
+        JDBCCursor(JDBCConnection connection, String sql, PreparedStatement statement,
+                   ResultSet resultSet, ReaderLease lease) {
+            this.connection = connection;
+            this.sql = sql;
+            this.statement = statement;
+            this.resultSet = resultSet;
+            this.lease = lease;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            if (afterLast) {
+                return false;
+            }
+            try {
+                afterLast = !resultSet.next();
+            } catch (java.sql.SQLException e) {
+                throw new SQLException("Error reading results of: " + sql, e);
+            }
+            return !afterLast;
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            return afterLast;
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            try {
+                return resultSet.getString(columnIndex + 1);
+            } catch (java.sql.SQLException e) {
+                throw new SQLException(e);
+            }
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            try {
+                return resultSet.getInt(columnIndex + 1);
+            } catch (java.sql.SQLException e) {
+                throw new SQLException(e);
+            }
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            try {
+                return resultSet.getLong(columnIndex + 1);
+            } catch (java.sql.SQLException e) {
+                throw new SQLException(e);
+            }
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            try {
+                return resultSet.getBytes(columnIndex + 1);
+            } catch (java.sql.SQLException e) {
+                throw new SQLException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeQuietly(resultSet);
+            connection.release(sql, statement);
+            if (lease != null) {
+                releaseReader(lease);
+            }
+        }
+    }
+
+    /**
+     * A statement that runs through the engine, so it is routed to the right connection and uses
+     * that connection's prepared statement.
+     */
+    private final class JDBCStatement extends SimpleSQLiteStatement {
+
+        JDBCStatement(String sql) {
+            super(JDBCSQLiteStorageEngine.this, sql);
+        }
+
+        @Override
+        public long executeInsert() throws SQLException {
+            return JDBCSQLiteStorageEngine.this.executeInsert(getSql(), getBindArgs());
+        }
+
+        @Override
+        public int executeUpdateDelete() throws SQLException {
+            return JDBCSQLiteStorageEngine.this.executeUpdateDelete(getSql(), getBindArgs());
+        }
+
+        @Override
+        public Cursor query() throws SQLException {
+            return JDBCSQLiteStorageEngine.this.query(getSql(), getBindArgs());
+        }
+    }
+}
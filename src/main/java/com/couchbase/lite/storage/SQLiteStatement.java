@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+/**
+ * A pre-compiled SQL statement that can be bound and executed any number of times.
+ *
+ * Parameter indexes are 1-based. Bindings are kept between executions until they are
+ * overwritten or cleared. A statement is not thread-safe; use SQLiteStatementCache to share
+ * statements between threads.
+ */
+public interface SQLiteStatement {
+    void bindNull(int index);
+    void bindLong(int index, long value);
+    void bindDouble(int index, double value);
+    void bindString(int index, String value);
+    void bindBlob(int index, byte[] value);
+    void clearBindings();
+
+    /**
+     * Executes a statement that returns no rows.
+     */
+    void execute() throws SQLException;
+
+    /**
+     * Executes an INSERT and returns the row id of the inserted row, or -1 on failure.
+     */
+    long executeInsert() throws SQLException;
+
+    /**
+     * Executes an UPDATE or DELETE and returns the number of rows affected.
+     */
+    int executeUpdateDelete() throws SQLException;
+
+    /**
+     * Returns the first column of the first row as a long.
+     * @throws SQLiteDoneException if the query returned no rows
+     */
+    long simpleQueryForLong() throws SQLException;
+
+    /**
+     * Returns the first column of the first row as a String.
+     * @throws SQLiteDoneException if the query returned no rows
+     */
+    String simpleQueryForString() throws SQLException;
+
+    /**
+     * Runs a query returning any number of rows. The statement must not be rebound or
+     * executed again until the returned cursor has been closed.
+     */
+    Cursor query() throws SQLException;
+
+    void close();
+}
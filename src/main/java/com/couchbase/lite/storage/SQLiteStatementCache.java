@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import com.couchbase.lite.util.LruCache;
+
+/**
+ * An LRU cache of compiled statements, keyed by their SQL text, so the hot paths don't pay the
+ * cost of parsing and planning their SQL on every call.
+ *
+ * A statement is checked out of the cache while it is being bound and executed, so callers on
+ * different threads never share one; a caller that finds its statement checked out compiles
+ * another. Statements evicted from the cache, or replaced by another copy, are closed.
+ *
+ * Statements are compiled if the engine is a SQLiteStatementCompiler; otherwise they're
+ * SimpleSQLiteStatements, which just save re-building the SQL.
+ */
+public class SQLiteStatementCache {
+
+    public static final int DEFAULT_MAX_SIZE = 64;
+
+    private final SQLiteStorageEngine engine;
+    private final LruCache<String, SQLiteStatement> statements;
+    private boolean closed;
+
+    public SQLiteStatementCache(SQLiteStorageEngine engine, int maxSize) {
+        this.engine = engine;
+        this.statements = new LruCache<String, SQLiteStatement>(maxSize) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, SQLiteStatement oldValue,
+                                        SQLiteStatement newValue) {
+                // A plain remove() means the statement has been checked out, not discarded.
+                if (evicted || (newValue != null && newValue != oldValue)) {
+                    oldValue.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Runs a statement that returns no rows.
+     */
+    public void execute(String sql, Object... args) throws SQLException {
+        SQLiteStatement statement = acquire(sql, args);
+        try {
+            statement.execute();
+        } finally {
+            release(sql, statement);
+        }
+    }
+
+    /**
+     * Runs an INSERT and returns the row id of the inserted row, or -1 on failure.
+     */
+    public long executeInsert(String sql, Object... args) throws SQLException {
+        SQLiteStatement statement = acquire(sql, args);
+        try {
+            return statement.executeInsert();
+        } finally {
+            release(sql, statement);
+        }
+    }
+
+    /**
+     * Runs an UPDATE or DELETE and returns the number of rows affected.
+     */
+    public int executeUpdateDelete(String sql, Object... args) throws SQLException {
+        SQLiteStatement statement = acquire(sql, args);
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            release(sql, statement);
+        }
+    }
+
+    /**
+     * Returns the first column of the first row as a long, or defaultValue if there are no rows.
+     */
+    public long queryForLong(long defaultValue, String sql, Object... args) throws SQLException {
+        SQLiteStatement statement = acquire(sql, args);
+        try {
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return defaultValue;
+        } finally {
+            release(sql, statement);
+        }
+    }
+
+    /**
+     * Returns the first column of the first row as a String, or null if there are no rows.
+     */
+    public String queryForString(String sql, Object... args) throws SQLException {
+        SQLiteStatement statement = acquire(sql, args);
+        try {
+            return statement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            release(sql, statement);
+        }
+    }
+
+    /**
+     * Runs a query returning any number of rows. The statement goes back into the cache when
+     * the returned cursor is closed, so the cursor must always be closed.
+     */
+    public Cursor query(final String sql, Object... args) throws SQLException {
+        final SQLiteStatement statement = acquire(sql, args);
+        final Cursor cursor;
+        try {
+            cursor = statement.query();
+        } catch (RuntimeException e) {
+            release(sql, statement);
+            throw e;
+        }
+        return new Cursor() {
+            private boolean released;
+
+            @Override
+            public boolean moveToNext() {
+                return cursor.moveToNext();
+            }
+
+            @Override
+            public boolean isAfterLast() {
+                return cursor.isAfterLast();
+            }
+
+            @Override
+            public String getString(int columnIndex) {
+                return cursor.getString(columnIndex);
+            }
+
+            @Override
+            public int getInt(int columnIndex) {
+                return cursor.getInt(columnIndex);
+            }
+
+            @Override
+            public long getLong(int columnIndex) {
+                return cursor.getLong(columnIndex);
+            }
+
+            @Override
+            public byte[] getBlob(int columnIndex) {
+                return cursor.getBlob(columnIndex);
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+                if (!released) {
+                    released = true;
+                    release(sql, statement);
+                }
+            }
+        };
+    }
+
+    public int hitCount() {
+        return statements.hitCount();
+    }
+
+    public int missCount() {
+        return statements.missCount();
+    }
+
+    /**
+     * Closes all cached statements. Statements checked out at the time are closed when they
+     * are released.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        statements.evictAll();
+    }
+
+    private SQLiteStatement acquire(String sql, Object[] args) throws SQLException {
+        SQLiteStatement statement = statements.remove(sql);
+        if (statement == null) {
+            if (engine instanceof SQLiteStatementCompiler) {
+                statement = ((SQLiteStatementCompiler) engine).compileStatement(sql);
+            } else {
+                statement = new SimpleSQLiteStatement(engine, sql);
+            }
+        }
+        try {
+            bindAll(statement, args);
+        } catch (RuntimeException e) {
+            statement.close();
+            throw e;
+        }
+        return statement;
+    }
+
+    private void release(String sql, SQLiteStatement statement) {
+        // Don't keep references to large values alive in the cache.
+        statement.clearBindings();
+        synchronized (this) {
+            if (!closed) {
+                statements.put(sql, statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    private static void bindAll(SQLiteStatement statement, Object[] args) {
+        statement.clearBindings();
+        if (args == null) {
+            return;
+        }
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            int index = i + 1;
+            if (arg == null) {
+                statement.bindNull(index);
+            } else if (arg instanceof byte[]) {
+                statement.bindBlob(index, (byte[]) arg);
+            } else if (arg instanceof Double || arg instanceof Float) {
+                statement.bindDouble(index, ((Number) arg).doubleValue());
+            } else if (arg instanceof Number) {
+                statement.bindLong(index, ((Number) arg).longValue());
+            } else if (arg instanceof Boolean) {
+                statement.bindLong(index, ((Boolean) arg) ? 1 : 0);
+            } else {
+                statement.bindString(index, arg.toString());
+            }
+        }
+    }
+}
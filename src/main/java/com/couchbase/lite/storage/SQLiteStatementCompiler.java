@@ -0,0 +1,25 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+/**
+ * Implemented by a SQLiteStorageEngine that can compile statements to be bound and executed
+ * repeatedly. It's optional: SQLiteStatementCache runs the statements of an engine that doesn't
+ * implement it through the engine's rawQuery() and execSQL(), using SimpleSQLiteStatement.
+ */
+public interface SQLiteStatementCompiler {
+
+    SQLiteStatement compileStatement(String sql) throws SQLException;
+}
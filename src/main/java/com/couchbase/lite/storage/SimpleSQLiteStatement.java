@@ -0,0 +1,359 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A SQLiteStatement that isn't actually compiled, but runs its SQL through the engine every
+ * time it is executed. For storage engines that have no native support for compiled statements.
+ *
+ * Simple INSERTs, UPDATEs and DELETEs (a single table, values that are placeholders or plain
+ * literals, and a WHERE clause that only compares columns with placeholders) are run through
+ * the engine's insert(), update() and delete(), which return the new row id or the number of
+ * rows changed themselves. Anything else is run with execSQL() and followed by a query for
+ * last_insert_rowid() or changes().
+ */
+public class SimpleSQLiteStatement implements SQLiteStatement {
+
+    private static final int FLAGS = Pattern.CASE_INSENSITIVE | Pattern.DOTALL;
+    private static final Pattern INSERT = Pattern.compile(
+            "\\s*INSERT\\s+(?:OR\\s+(IGNORE|REPLACE)\\s+)?INTO\\s+(\\w+)\\s*\\(([^)]*)\\)\\s*VALUES\\s*\\(([^)]*)\\)\\s*", FLAGS);
+    private static final Pattern UPDATE = Pattern.compile(
+            "\\s*UPDATE\\s+(\\w+)\\s+SET\\s+(.*?)(?:\\s+WHERE\\s+(.*))?", FLAGS);
+    private static final Pattern DELETE = Pattern.compile(
+            "\\s*DELETE\\s+FROM\\s+(\\w+)(?:\\s+WHERE\\s+(.*))?", FLAGS);
+    private static final Pattern ASSIGNMENT = Pattern.compile(
+            "\\s*(\\w+)\\s*=\\s*(\\?|-?\\d+|NULL)\\s*", FLAGS);
+    private static final Pattern COMPARISON = Pattern.compile(
+            "\\w+\\s*(?:==?|!=|<>|<=?|>=?)\\s*\\?");
+
+    private final SQLiteStorageEngine engine;
+    private final String sql;
+    private Object[] bindArgs;
+    private final Write write;
+
+    public SimpleSQLiteStatement(SQLiteStorageEngine engine, String sql) {
+        this.engine = engine;
+        this.sql = sql;
+        this.bindArgs = new Object[countParameters(sql)];
+        this.write = Write.parse(sql);
+    }
+
+    @Override
+    public void bindNull(int index) {
+        bind(index, null);
+    }
+
+    @Override
+    public void bindLong(int index, long value) {
+        bind(index, value);
+    }
+
+    @Override
+    public void bindDouble(int index, double value) {
+        bind(index, value);
+    }
+
+    @Override
+    public void bindString(int index, String value) {
+        bind(index, value);
+    }
+
+    @Override
+    public void bindBlob(int index, byte[] value) {
+        bind(index, value);
+    }
+
+    @Override
+    public void clearBindings() {
+        bindArgs = new Object[bindArgs.length];
+    }
+
+    @Override
+    public void execute() throws SQLException {
+        engine.execSQL(sql, bindArgs);
+    }
+
+    @Override
+    public long executeInsert() throws SQLException {
+        if (write != null && write.isInsert) {
+            return engine.insertWithOnConflict(write.table, null, write.values(bindArgs), write.conflictAlgorithm);
+        }
+        engine.execSQL(sql, bindArgs);
+        return queryForLong("SELECT last_insert_rowid()");
+    }
+
+    @Override
+    public int executeUpdateDelete() throws SQLException {
+        if (write != null && !write.isInsert && write.canBindWhere(bindArgs)) {
+            String[] whereArgs = write.whereArgs(bindArgs);
+            if (write.columns.isEmpty()) {
+                // Some engines only count the rows deleted by a DELETE with a WHERE clause:
+                String whereClause = (write.whereClause != null) ? write.whereClause : "1";
+                return engine.delete(write.table, whereClause, whereArgs);
+            }
+            return engine.update(write.table, write.values(bindArgs), write.whereClause, whereArgs);
+        }
+        engine.execSQL(sql, bindArgs);
+        return (int) queryForLong("SELECT changes()");
+    }
+
+    @Override
+    public long simpleQueryForLong() throws SQLException {
+        Cursor cursor = null;
+        try {
+            cursor = query();
+            if (!cursor.moveToNext()) {
+                throw new SQLiteDoneException();
+            }
+            return cursor.getLong(0);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public String simpleQueryForString() throws SQLException {
+        Cursor cursor = null;
+        try {
+            cursor = query();
+            if (!cursor.moveToNext()) {
+                throw new SQLiteDoneException();
+            }
+            return cursor.getString(0);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public Cursor query() throws SQLException {
+        // rawQuery() only takes string arguments.
+        String[] args = new String[bindArgs.length];
+        for (int i = 0; i < bindArgs.length; i++) {
+            args[i] = (bindArgs[i] != null) ? bindArgs[i].toString() : null;
+        }
+        return engine.rawQuery(sql, args);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    protected SQLiteStorageEngine getEngine() {
+        return engine;
+    }
+
+    protected String getSql() {
+        return sql;
+    }
+
+    /**
+     * The current bindings, indexed from 0.
+     */
+    protected Object[] getBindArgs() {
+        return bindArgs;
+    }
+
+    private void bind(int index, Object value) {
+        if (index < 1 || index > bindArgs.length) {
+            throw new IllegalArgumentException("Bind index " + index + " out of range for: " + sql);
+        }
+        bindArgs[index - 1] = value;
+    }
+
+    private long queryForLong(String query) {
+        Cursor cursor = null;
+        try {
+            cursor = engine.rawQuery(query, null);
+            cursor.moveToNext();
+            return cursor.getLong(0);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Counts the '?' placeholders outside of string literals.
+     */
+    private static int countParameters(String sql) {
+        int count = 0;
+        boolean inLiteral = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                inLiteral = !inLiteral;
+            } else if (c == '?' && !inLiteral) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A simple INSERT, UPDATE or DELETE broken down into the arguments of the engine's insert(),
+     * update() or delete().
+     */
+    private static final class Write {
+        final boolean isInsert;
+        final String table;
+        final int conflictAlgorithm;
+        // The columns an INSERT or UPDATE sets, in order; each value is either a literal or,
+        // if PLACEHOLDER, the next bound argument:
+        final List<String> columns = new ArrayList<String>();
+        final List<Object> literals = new ArrayList<Object>();
+        final String whereClause;
+        final int numWhereArgs;
+
+        private static final Object PLACEHOLDER = new Object();
+
+        private Write(boolean isInsert, String table, int conflictAlgorithm, String whereClause) {
+            this.isInsert = isInsert;
+            this.table = table;
+            this.conflictAlgorithm = conflictAlgorithm;
+            this.whereClause = whereClause;
+            this.numWhereArgs = (whereClause != null) ? countParameters(whereClause) : 0;
+        }
+
+        /**
+         * Returns null if the SQL isn't simple enough.
+         */
+        static Write parse(String sql) {
+            Matcher m = INSERT.matcher(sql);
+            if (m.matches()) {
+                int conflict = SQLiteStorageEngine.CONFLICT_NONE;
+                if (m.group(1) != null) {
+                    conflict = m.group(1).equalsIgnoreCase("IGNORE")
+                            ? SQLiteStorageEngine.CONFLICT_IGNORE : SQLiteStorageEngine.CONFLICT_REPLACE;
+                }
+                Write write = new Write(true, m.group(2), conflict, null);
+                String[] columns = m.group(3).split(",");
+                String[] values = m.group(4).split(",");
+                if (columns.length != values.length) {
+                    return null;
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    if (!write.addColumn(columns[i].trim() + "=" + values[i])) {
+                        return null;
+                    }
+                }
+                return write;
+            }
+            m = UPDATE.matcher(sql);
+            if (m.matches()) {
+                Write write = new Write(false, m.group(1), SQLiteStorageEngine.CONFLICT_NONE, m.group(3));
+                for (String assignment : m.group(2).split(",")) {
+                    if (!write.addColumn(assignment)) {
+                        return null;
+                    }
+                }
+                return write.isWhereSimple() ? write : null;
+            }
+            m = DELETE.matcher(sql);
+            if (m.matches()) {
+                Write write = new Write(false, m.group(1), SQLiteStorageEngine.CONFLICT_NONE, m.group(2));
+                return write.isWhereSimple() ? write : null;
+            }
+            return null;
+        }
+
+        private boolean addColumn(String assignment) {
+            Matcher m = ASSIGNMENT.matcher(assignment);
+            if (!m.matches()) {
+                return false;
+            }
+            String value = m.group(2);
+            columns.add(m.group(1));
+            if (value.equals("?")) {
+                literals.add(PLACEHOLDER);
+            } else if (value.equalsIgnoreCase("NULL")) {
+                literals.add(null);
+            } else {
+                literals.add(Long.valueOf(value));
+            }
+            return true;
+        }
+
+        /**
+         * The engines only take WHERE arguments as strings, which SQLite converts back to
+         * numbers only when they're compared directly with a numeric column.
+         */
+        private boolean isWhereSimple() {
+            if (numWhereArgs == 0) {
+                return true;
+            }
+            int comparisons = 0;
+            Matcher m = COMPARISON.matcher(whereClause);
+            while (m.find()) {
+                comparisons++;
+            }
+            return comparisons == numWhereArgs;
+        }
+
+        boolean canBindWhere(Object[] bindArgs) {
+            for (int i = bindArgs.length - numWhereArgs; i < bindArgs.length; i++) {
+                if (!(bindArgs[i] instanceof Long || bindArgs[i] instanceof String)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        ContentValues values(Object[] bindArgs) {
+            ContentValues values = new ContentValues(columns.size());
+            int arg = 0;
+            for (int i = 0; i < columns.size(); i++) {
+                Object value = literals.get(i);
+                if (value == PLACEHOLDER) {
+                    value = bindArgs[arg++];
+                }
+                String column = columns.get(i);
+                if (value == null) {
+                    values.putNull(column);
+                } else if (value instanceof Long) {
+                    values.put(column, (Long) value);
+                } else if (value instanceof Double) {
+                    values.put(column, (Double) value);
+                } else if (value instanceof byte[]) {
+                    values.put(column, (byte[]) value);
+                } else {
+                    values.put(column, value.toString());
+                }
+            }
+            return values;
+        }
+
+        String[] whereArgs(Object[] bindArgs) {
+            if (numWhereArgs == 0) {
+                return null;
+            }
+            String[] args = new String[numWhereArgs];
+            for (int i = 0; i < numWhereArgs; i++) {
+                args[i] = bindArgs[bindArgs.length - numWhereArgs + i].toString();
+            }
+            return args;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.couchbase.lite.support;
+
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Batcher that also limits the total weight of a batch, e.g. its size in bytes, and keeps
+ * metrics on its queue and flushes.
+ *
+ * A batch is processed as soon as the queue holds capacity objects or maxWeight worth of
+ * objects; otherwise at most delay ms after the first object was queued (right away if the
+ * batcher has been idle for longer than the delay). There is never more than one flush scheduled
+ * at a time, where a plain Batcher schedules one for every call to queueObjects().
+ *
+ * The inbox is a lock-free queue, so producers never block each other or the processor. Batches
+ * are drained into a list that's reused for every batch, so the processor must not keep the list
+ * it's given, or hand it off, once process() returns.
+ */
+public class AdaptiveBatcher<T> extends Batcher<T> {
+
+    /**
+     * Gives the weight of an object, e.g. its estimated size in bytes.
+     */
+    public interface Weigher<T> {
+        long weigh(T object);
+    }
+
+    private static class QueuedObject<T> {
+        final T object;
+        final long weight;
+
+        QueuedObject(T object, long weight) {
+            this.object = object;
+            this.weight = weight;
+        }
+    }
+
+    private ScheduledExecutorService workExecutor;
+
+    private int capacity;
+    private int delay;
+    private long maxWeight;
+    private Weigher<T> weigher;
+    private Queue<QueuedObject<T>> inbox;
+    // An object taken from the inbox that didn't fit in the last batch; only touched by the
+    // running flush, and counted as queued:
+    private QueuedObject<T> carriedOver;
+    // The list every batch is drained into; only touched by the running flush:
+    private final List<T> batch;
+    private BatchProcessor<T> processor;
+    private long lastProcessedTime;
+
+    // ConcurrentLinkedQueue.size() walks the queue, so the depth and weight are kept on the side:
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong queuedWeight = new AtomicLong();
+    // When the oldest object in the queue (approximately) was added, or 0 if it's empty:
+    private final AtomicLong oldestQueuedTime = new AtomicLong();
+
+    // The one scheduled flush, guarded by scheduleLock. A flush that has started running stays
+    // here until it finishes, so that waitForPendingFutures() waits for it.
+    private final Object scheduleLock = new Object();
+    private ScheduledFuture flushFuture;
+    private long flushDueTime;
+    private boolean flushStarted;
+    private long flushGeneration;
+
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong itemsProcessed = new AtomicLong();
+    private final AtomicLong totalFlushLatency = new AtomicLong();
+    private final AtomicLong maxFlushLatency = new AtomicLong();
+
+    /**
+     * Initializes a batcher that also limits the total weight of a batch.
+     *
+     * @param workExecutor the work executor that performs actual work
+     * @param capacity The maximum number of objects to batch up. If the queue reaches this size, the queued objects will be sent to the processor immediately.
+     * @param delay The maximum waiting time to collect objects before processing them. In some circumstances objects will be processed sooner.
+     * @param maxWeight The maximum total weight of a batch. If the queued objects reach this weight, they will be sent to the processor immediately. A single object heavier than this is processed on its own.
+     * @param weigher Gives the weight of each object, or null to only limit the number of objects.
+     * @param processor The callback/block that will be called to process the objects. It must not keep the list it's given.
+     */
+    public AdaptiveBatcher(ScheduledExecutorService workExecutor, int capacity, int delay, long maxWeight, Weigher<T> weigher, BatchProcessor<T> processor) {
+        super(workExecutor, capacity, delay, processor);
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        this.workExecutor = workExecutor;
+        this.capacity = capacity;
+        this.delay = delay;
+        this.maxWeight = (weigher != null) ? maxWeight : Long.MAX_VALUE;
+        this.weigher = weigher;
+        this.processor = processor;
+        this.inbox = new ConcurrentLinkedQueue<QueuedObject<T>>();
+        this.batch = new ArrayList<T>(capacity);
+    }
+
+    /**
+     * Adds multiple objects to the queue.
+     */
+    @Override
+    public void queueObjects(List<T> objects) {
+
+        Log.v(Log.TAG_SYNC, "%s: queueObjects called with %d objects. ", this, objects.size());
+        if (objects.size() == 0) {
+            return;
+        }
+
+        long weight = 0;
+        List<QueuedObject<T>> queued = new ArrayList<QueuedObject<T>>(objects.size());
+        for (T object : objects) {
+            long objectWeight = (weigher != null) ? weigher.weigh(object) : 0;
+            queued.add(new QueuedObject<T>(object, objectWeight));
+            weight += objectWeight;
+        }
+        // Counted before they're added, so that the running flush never sees them uncounted:
+        int depth = queueDepth.addAndGet(objects.size());
+        long totalWeight = queuedWeight.addAndGet(weight);
+        oldestQueuedTime.compareAndSet(0, System.nanoTime());
+        inbox.addAll(queued);
+
+        Log.v(Log.TAG_SYNC, "%s: inbox size after adding objects: %d", this, depth);
+
+        if (depth >= capacity || totalWeight >= maxWeight) {
+            scheduleWithDelay(0);
+        } else {
+            scheduleWithDelay(delayToUse());
+        }
+    }
+
+    /**
+     * Waits until the queued objects have been processed, including ones queued while waiting.
+     */
+    @Override
+    public void waitForPendingFutures() {
+
+        while (true) {
+            ScheduledFuture future;
+            synchronized (scheduleLock) {
+                future = flushFuture;
+            }
+            if (future == null) {
+                return;
+            }
+            try {
+                Log.d(Log.TAG_SYNC, "calling future.get() on %s", future);
+                future.get();
+                Log.d(Log.TAG_SYNC, "done calling future.get() on %s", future);
+            } catch (CancellationException e) {
+                // It was replaced by a flush scheduled sooner, which the next pass waits for
+            } catch (InterruptedException e) {
+                Log.e(Log.TAG_SYNC, "Interrupted waiting for pending futures", e);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Log.e(Log.TAG_SYNC, "Exception waiting for pending futures", e);
+            }
+            synchronized (scheduleLock) {
+                if (flushFuture == future) {
+                    // It finished without clearing itself, e.g. it was cancelled by clear()
+                    flushFuture = null;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Adds an object to the queue.
+     */
+    @Override
+    public void queueObject(T object) {
+        List<T> objects = Arrays.asList(object);
+        queueObjects(objects);
+    }
+
+    /**
+     * Sends queued objects to the processor block (up to the capacity).
+     */
+    @Override
+    public void flush() {
+        scheduleWithDelay(0);
+    }
+
+
+    /**
+     * Empties the queue without processing any of the objects in it.
+     */
+    @Override
+    public void clear() {
+        Log.v(Log.TAG_SYNC, "%s: clear() called, emptying inbox", this);
+        unschedule();
+        QueuedObject<T> queued;
+        while ((queued = inbox.poll()) != null) {
+            queueDepth.decrementAndGet();
+            queuedWeight.addAndGet(-queued.weight);
+        }
+    }
+
+    @Override
+    public int count() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Whether a flush is scheduled or running, i.e. whether waitForPendingFutures() would wait.
+     */
+    @Override
+    public boolean hasPendingFlush() {
+        synchronized (scheduleLock) {
+            return flushFuture != null;
+        }
+    }
+
+    /**
+     * The total weight of the queued objects, if the batcher has a weigher.
+     */
+    public long getQueuedWeight() {
+        return queuedWeight.get();
+    }
+
+    /**
+     * The number of batches processed so far.
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public long getItemsProcessed() {
+        return itemsProcessed.get();
+    }
+
+    /**
+     * The average time from the oldest object of a batch being queued to the batch being
+     * processed.
+     */
+    public long getAverageFlushLatencyMillis() {
+        long flushes = flushCount.get();
+        if (flushes == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(totalFlushLatency.get() / flushes);
+    }
+
+    public long getMaxFlushLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxFlushLatency.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AdaptiveBatcher[queued=%d, weight=%d, flushes=%d, processed=%d, latency avg=%dms max=%dms]",
+                count(), getQueuedWeight(), getFlushCount(), getItemsProcessed(),
+                getAverageFlushLatencyMillis(), getMaxFlushLatencyMillis());
+    }
+
+
+    private void processNow(long generation) {
+
+        synchronized (scheduleLock) {
+            if (generation != flushGeneration) {
+                // This flush was replaced by one scheduled sooner
+                return;
+            }
+            flushStarted = true;
+        }
+
+        try {
+            Log.v(Log.TAG_SYNC, "%s: processNow() called, inbox size: %d", this, count());
+
+            long batchStartTime = oldestQueuedTime.get();
+            List<T> toProcess = batch;
+            drainTo(toProcess);
+            if (toProcess.size() > 0) {
+                long now = System.nanoTime();
+                // The objects left over were queued after this batch's oldest one, but there's no
+                // record of when; count them from now.
+                oldestQueuedTime.set(count() > 0 ? now : 0);
+                if (batchStartTime != 0) {
+                    recordLatency(now - batchStartTime);
+                }
+                flushCount.incrementAndGet();
+                itemsProcessed.addAndGet(toProcess.size());
+
+                Log.v(Log.TAG_SYNC, "%s: invoking processor with %d items ", this, toProcess.size());
+                processor.process(toProcess);
+            } else {
+                Log.v(Log.TAG_SYNC, "%s: nothing to process", this);
+            }
+        } finally {
+            batch.clear();
+            lastProcessedTime = System.currentTimeMillis();
+            // There may be objects left, or objects queued while this flush was running, which
+            // didn't schedule a flush because this one was still pending. The next flush is
+            // scheduled under the same lock, so waitForPendingFutures() never sees neither.
+            synchronized (scheduleLock) {
+                flushFuture = null;
+                flushStarted = false;
+                if (count() > 0) {
+                    if (count() >= capacity || getQueuedWeight() >= maxWeight) {
+                        scheduleWithDelay(0);
+                    } else {
+                        scheduleWithDelay(delayToUse());
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Moves objects from the inbox to the list, up to the capacity and the maximum weight (but
+     * always at least one object).
+     */
+    private void drainTo(List<T> batch) {
+        long weight = 0;
+        while (batch.size() < capacity) {
+            QueuedObject<T> queued = carriedOver;
+            carriedOver = null;
+            if (queued == null) {
+                queued = inbox.poll();
+                if (queued == null) {
+                    break;
+                }
+            }
+            if (batch.size() > 0 && weight + queued.weight > maxWeight) {
+                carriedOver = queued;
+                break;
+            }
+            weight += queued.weight;
+            batch.add(queued.object);
+            queueDepth.decrementAndGet();
+            queuedWeight.addAndGet(-queued.weight);
+        }
+    }
+
+    private void recordLatency(long latency) {
+        totalFlushLatency.addAndGet(latency);
+        long max;
+        do {
+            max = maxFlushLatency.get();
+        } while (latency > max && !maxFlushLatency.compareAndSet(max, latency));
+    }
+
+    private void scheduleWithDelay(int suggestedDelay) {
+        synchronized (scheduleLock) {
+            long dueTime = System.currentTimeMillis() + suggestedDelay;
+            if (flushFuture != null) {
+                if (flushStarted || flushDueTime <= dueTime) {
+                    // The pending flush will do (a running one reschedules when it's done)
+                    return;
+                }
+                // Replace the pending flush by one that runs sooner:
+                flushFuture.cancel(false);
+            }
+            Log.v(Log.TAG_SYNC, "%s: scheduleWithDelay: workExecutor.schedule() with delay: %d ms", this, suggestedDelay);
+            final long generation = ++flushGeneration;
+            try {
+                flushFuture = workExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            processNow(generation);
+                        } catch (Exception e) {
+                            // we don't want this to crash the batcher
+                            Log.e(Log.TAG_SYNC, this + ": BatchProcessor throw exception", e);
+                        }
+                    }
+                }, suggestedDelay, TimeUnit.MILLISECONDS);
+                flushDueTime = dueTime;
+            } catch (RejectedExecutionException e) {
+                Log.w(Log.TAG_SYNC, "%s: executor is shut down, not scheduling a flush", this);
+                flushFuture = null;
+            }
+        }
+    }
+
+    private void unschedule() {
+        Log.v(Log.TAG_SYNC, this + ": unschedule() called");
+        synchronized (scheduleLock) {
+            if (flushFuture != null && !flushStarted) {
+                flushFuture.cancel(false);
+                flushFuture = null;
+                ++flushGeneration;
+            }
+        }
+    }
+
+    /*
+     * calculates the delay to use when scheduling the next batch of objects to process
+     * There is a balance required between clearing down the input queue as fast as possible
+     * and not exhausting downstream system resources such as sockets and http response buffers
+     * by processing too many batches concurrently.
+     */
+    private int delayToUse() {
+
+        //initially set the delay to the default value for this Batcher
+        int delayToUse = delay;
+
+        //get the time interval since the last batch completed to the current system time
+        long delta = (System.currentTimeMillis() - lastProcessedTime);
+
+        //if the time interval is greater or equal to the default delay then set the
+        // delay so that the next batch gets scheduled to process immediately
+        if (delta >= delay) {
+            delayToUse = 0;
+        }
+
+        Log.v(Log.TAG_SYNC, "%s: delayToUse() delta: %d, delayToUse: %d, delay: %d", this, delta, delayToUse, delay);
+
+        return delayToUse;
+    }
+}
@@ -141,6 +141,18 @@ public class Batcher<T> {
         }
     }
 
+    /**
+     * Whether a flush is scheduled or running, i.e. whether waitForPendingFutures() would wait.
+     */
+    public boolean hasPendingFlush() {
+        for (ScheduledFuture future : pendingFutures) {
+            if (!future.isDone()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 
     private void processNow() {
 
@@ -0,0 +1,94 @@
+package com.couchbase.lite.support;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue length and task latency of one of the Manager's executors: how long tasks waited
+ * between being due and starting, and how long they ran.
+ */
+public class ExecutorStats {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong tasksRun = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+    private final AtomicLong maxRunNanos = new AtomicLong();
+
+    public ExecutorStats(String name, ThreadPoolExecutor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The number of tasks waiting to run, including scheduled tasks that aren't due yet.
+     */
+    public int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getTasksRun() {
+        return tasksRun.get();
+    }
+
+    public long getAverageWaitMillis() {
+        long tasks = tasksRun.get();
+        return (tasks == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / tasks);
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    public long getAverageRunMillis() {
+        long tasks = tasksRun.get();
+        return (tasks == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(totalRunNanos.get() / tasks);
+    }
+
+    public long getMaxRunMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxRunNanos.get());
+    }
+
+    /**
+     * Runs a task, recording how long it waited (given) and how long it runs.
+     */
+    void run(Runnable task, long waitNanos) {
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            long runNanos = System.nanoTime() - start;
+            tasksRun.incrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            totalRunNanos.addAndGet(runNanos);
+            updateMax(maxWaitNanos, waitNanos);
+            updateMax(maxRunNanos, runNanos);
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        do {
+            current = max.get();
+        } while (value > current && !max.compareAndSet(current, value));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[queued=%d, active=%d, run=%d, wait avg=%dms max=%dms, run avg=%dms max=%dms]",
+                name, getQueueLength(), getActiveCount(), getTasksRun(),
+                getAverageWaitMillis(), getMaxWaitMillis(), getAverageRunMillis(), getMaxRunMillis());
+    }
+}
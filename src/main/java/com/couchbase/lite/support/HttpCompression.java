@@ -0,0 +1,320 @@
+package com.couchbase.lite.support;
+
+import com.couchbase.lite.CompressionOptions;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Negotiated gzip/deflate compression of replication traffic.
+ *
+ * Every request advertises "Accept-Encoding: gzip, deflate", and responses are decoded according
+ * to their Content-Encoding. Request bodies are gzipped as the Manager's CompressionOptions
+ * allow; the caller retries a request uncompressed if checkResponse() says the server rejected
+ * its compressed body.
+ *
+ * The byte counters cover all replications in the process.
+ *
+ * @exclude
+ */
+public final class HttpCompression {
+
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    // For requests made without a database, e.g. in tests:
+    private static final CompressionOptions defaultOptions = new CompressionOptions();
+
+    private static final AtomicLong bytesSent = new AtomicLong();
+    private static final AtomicLong bytesSentUncompressed = new AtomicLong();
+    private static final AtomicLong bytesReceived = new AtomicLong();
+    private static final AtomicLong bytesReceivedUncompressed = new AtomicLong();
+
+    private HttpCompression() {
+    }
+
+    /**
+     * The CompressionOptions of a database's Manager.
+     */
+    public static CompressionOptions getOptions(Database db) {
+        Manager manager = (db != null) ? db.getManager() : null;
+        if (manager == null || manager.getOptions() == null) {
+            return defaultOptions;
+        }
+        return manager.getOptions().getCompressionOptions();
+    }
+
+    /**
+     * Bytes of request bodies sent, as they went over the wire.
+     */
+    public static long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Bytes saved by compressing request bodies.
+     */
+    public static long getBytesSavedSending() {
+        return bytesSentUncompressed.get() - bytesSent.get();
+    }
+
+    /**
+     * Bytes of response bodies received, as they came over the wire.
+     */
+    public static long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Bytes saved by the server compressing response bodies.
+     */
+    public static long getBytesSavedReceiving() {
+        return bytesReceivedUncompressed.get() - bytesReceived.get();
+    }
+
+    public static void resetCounters() {
+        bytesSent.set(0);
+        bytesSentUncompressed.set(0);
+        bytesReceived.set(0);
+        bytesReceivedUncompressed.set(0);
+    }
+
+    /**
+     * Adds the Accept-Encoding header to a request.
+     */
+    public static void acceptCompressedResponse(HttpUriRequest request) {
+        request.setHeader("Accept-Encoding", ACCEPT_ENCODING);
+    }
+
+    /**
+     * Makes the entity for a request body, gzipped if the server is known to accept that and
+     * the body is long enough.
+     */
+    public static HttpEntity bodyEntity(CompressionOptions options, HttpUriRequest request,
+                                        byte[] body, String contentType) {
+        ByteArrayEntity entity;
+        if (shouldCompress(options, request, body.length)) {
+            entity = new ByteArrayEntity(gzip(body));
+            entity.setContentEncoding("gzip");
+        } else {
+            entity = new ByteArrayEntity(body);
+        }
+        entity.setContentType(contentType);
+        bytesSent.addAndGet(entity.getContentLength());
+        bytesSentUncompressed.addAndGet(body.length);
+        return entity;
+    }
+
+    /**
+     * Wraps a streamed request body, e.g. a multipart one, so that it's gzipped as it's written
+     * if the server is known to accept that and the body is long enough (or of unknown length).
+     */
+    public static HttpEntity bodyEntity(CompressionOptions options, HttpUriRequest request, HttpEntity entity) {
+        long length = entity.getContentLength();
+        if (!shouldCompress(options, request, (length < 0) ? Long.MAX_VALUE : length)) {
+            if (length > 0) {
+                bytesSent.addAndGet(length);
+                bytesSentUncompressed.addAndGet(length);
+            }
+            return entity;
+        }
+        return new GzipRequestEntity(entity);
+    }
+
+    /**
+     * The decoded content of a response, according to its Content-Encoding. Also notes that the
+     * server speaks gzip if it compressed the response.
+     */
+    public static InputStream getContent(CompressionOptions options, HttpUriRequest request,
+                                         HttpEntity entity) throws IOException {
+        CountingInputStream raw = new CountingInputStream(entity.getContent(), bytesReceived);
+        String encoding = getEncoding(entity.getContentEncoding());
+        if (encoding == null || encoding.equals("identity")) {
+            return new CountingInputStream(raw, bytesReceivedUncompressed);
+        }
+        InputStream decoded;
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            decoded = new GZIPInputStream(raw);
+            options.serverSentGzip(serverOf(request));
+        } else if (encoding.equals("deflate")) {
+            // HTTP's "deflate" is zlib-wrapped, which is what Inflater expects by default:
+            decoded = new InflaterInputStream(raw);
+        } else {
+            Log.w(Log.TAG_REMOTE_REQUEST, "Unsupported Content-Encoding in response: %s", encoding);
+            return raw;
+        }
+        return new CountingInputStream(decoded, bytesReceivedUncompressed);
+    }
+
+    /**
+     * Checks a response for the server rejecting a compressed request body. Servers that don't
+     * understand gzip fail in different ways (415, 400, ...), so any 4xx status counts, and the
+     * server is never sent a compressed body again.
+     * @return true if the body was rejected, in which case the caller should send the request
+     *         again, which will now be uncompressed
+     */
+    public static boolean checkResponse(CompressionOptions options, HttpUriRequest request, HttpResponse response) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode < 400 || statusCode >= 500 || !isCompressed(request)) {
+            return false;
+        }
+        Log.w(Log.TAG_REMOTE_REQUEST, "%s rejected a compressed request with status %d; retrying uncompressed",
+                serverOf(request), statusCode);
+        options.serverRejectedGzip(serverOf(request));
+        return true;
+    }
+
+    private static boolean isCompressed(HttpUriRequest request) {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return false;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        return entity != null && entity.getContentEncoding() != null;
+    }
+
+    private static boolean shouldCompress(CompressionOptions options, HttpUriRequest request, long length) {
+        return length >= options.getMinCompressedLength()
+                && Boolean.TRUE.equals(options.acceptsGzip(serverOf(request)));
+    }
+
+    private static String serverOf(HttpUriRequest request) {
+        URI uri = request.getURI();
+        return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+    }
+
+    private static String getEncoding(Header header) {
+        if (header == null || header.getValue() == null) {
+            return null;
+        }
+        return header.getValue().trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(body);
+            gzip.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // can't happen writing to memory
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A request body gzipped as it's written, so of unknown length, sent chunked.
+     */
+    private static class GzipRequestEntity extends HttpEntityWrapper {
+
+        GzipRequestEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return new BasicHeader("Content-Encoding", "gzip");
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            CountingOutputStream counted = new CountingOutputStream(out, bytesSent);
+            GZIPOutputStream gzip = new GZIPOutputStream(counted);
+            wrappedEntity.writeTo(new CountingOutputStream(gzip, bytesSentUncompressed));
+            // finish() rather than close(), which would close the connection's stream:
+            gzip.finish();
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final AtomicLong counter;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                counter.addAndGet(count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counter.addAndGet(skipped);
+            return skipped;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private final AtomicLong counter;
+
+        CountingOutputStream(OutputStream out, AtomicLong counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            counter.addAndGet(length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();  // the wrapped stream is closed by whoever owns it
+        }
+    }
+}
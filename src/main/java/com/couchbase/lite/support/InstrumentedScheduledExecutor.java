@@ -0,0 +1,102 @@
+package com.couchbase.lite.support;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A ScheduledThreadPoolExecutor that keeps ExecutorStats. A scheduled task's wait is measured
+ * from the time it was due, not the time it was scheduled.
+ */
+public class InstrumentedScheduledExecutor extends ScheduledThreadPoolExecutor {
+
+    private final ExecutorStats stats;
+
+    /**
+     * @param name the executor's name, used for its stats
+     * @param threads the number of threads
+     * @param threadFactory creates the threads
+     */
+    public InstrumentedScheduledExecutor(String name, int threads, ThreadFactory threadFactory) {
+        super(threads, threadFactory);
+        this.stats = new ExecutorStats(name, this);
+    }
+
+    public ExecutorStats getStats() {
+        return stats;
+    }
+
+    @Override
+    protected <V> RunnableScheduledFuture<V> decorateTask(Runnable runnable, RunnableScheduledFuture<V> task) {
+        return new TimedTask<V>(task);
+    }
+
+    @Override
+    protected <V> RunnableScheduledFuture<V> decorateTask(Callable<V> callable, RunnableScheduledFuture<V> task) {
+        return new TimedTask<V>(task);
+    }
+
+    private class TimedTask<V> implements RunnableScheduledFuture<V> {
+
+        private final RunnableScheduledFuture<V> task;
+
+        TimedTask(RunnableScheduledFuture<V> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            // Once a task is due its delay goes negative, by how late it is:
+            long wait = Math.max(0, -task.getDelay(TimeUnit.NANOSECONDS));
+            stats.run(task, wait);
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return task.isPeriodic();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return task.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other instanceof TimedTask) {
+                other = ((TimedTask) other).task;
+            }
+            return task.compareTo(other);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return task.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return task.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return task.isDone();
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            return task.get();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return task.get(timeout, unit);
+        }
+    }
+}
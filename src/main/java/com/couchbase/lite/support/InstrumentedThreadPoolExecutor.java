@@ -0,0 +1,49 @@
+package com.couchbase.lite.support;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed-size thread pool with an unbounded queue that keeps ExecutorStats.
+ */
+public class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+
+    private final ExecutorStats stats;
+
+    /**
+     * @param name the pool's name, used for its threads and its stats
+     * @param threads the number of threads
+     */
+    public InstrumentedThreadPoolExecutor(final String name, int threads) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Idle threads go away, so a Manager that's rarely queried doesn't keep them around:
+        allowCoreThreadTimeOut(true);
+        this.stats = new ExecutorStats(name, this);
+    }
+
+    public ExecutorStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        final long queuedTime = System.nanoTime();
+        super.execute(new Runnable() {
+            @Override
+            public void run() {
+                stats.run(command, System.nanoTime() - queuedTime);
+            }
+        });
+    }
+}
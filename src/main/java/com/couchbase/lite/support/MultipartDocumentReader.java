@@ -10,6 +10,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.util.ByteArrayBuffer;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -60,11 +61,31 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
     }
 
     public void appendData(byte[] data) {
+        appendData(data, 0, data.length);
+    }
+
+    public void appendData(byte[] data, int offset, int length) {
         if (multipartReader != null) {
-            multipartReader.appendData(data);
+            multipartReader.appendData(data, offset, length);
         }
         else {
-            jsonBuffer.append(data, 0, data.length);
+            jsonBuffer.append(data, offset, length);
+        }
+    }
+
+    /**
+     * Reads the rest of the stream as the response body. Doesn't close the stream.
+     */
+    public void readFrom(InputStream inputStream) throws IOException {
+        if (multipartReader != null) {
+            multipartReader.readFrom(inputStream);
+        }
+        else {
+            byte[] buffer = new byte[MultipartReader.READ_BUFFER_SIZE];
+            int numBytesRead;
+            while ((numBytesRead = inputStream.read(buffer)) != -1) {
+                jsonBuffer.append(buffer, 0, numBytesRead);
+            }
         }
     }
 
@@ -199,12 +220,12 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
 
 
     @Override
-    public void appendToPart(byte[] data) {
+    public void appendToPart(byte[] data, int offset, int length) {
         if (jsonBuffer != null) {
-            jsonBuffer.append(data, 0, data.length);
+            jsonBuffer.append(data, offset, length);
         }
         else {
-            curAttachment.appendData(data);
+            curAttachment.appendData(data, offset, length);
         }
     }
 
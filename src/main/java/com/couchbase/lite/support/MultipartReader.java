@@ -2,30 +2,46 @@ package com.couchbase.lite.support;
 
 import org.apache.http.util.ByteArrayBuffer;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
 
+/**
+ * Incremental parser for MIME multipart bodies. Data can be appended in chunks of any size; the
+ * parts' headers and bodies are handed to the delegate as soon as they're known.
+ *
+ * Body data is never buffered: the boundary is searched for with a KMP matcher whose state is
+ * kept across appends, and the delegate is given slices of the caller's arrays. Only the few
+ * bytes of a boundary split across two appends are held back, and those are always a prefix of
+ * the boundary itself, so they don't need to be stored either. Only part headers are copied.
+ */
 public class MultipartReader {
 
+    /**
+     * Size of the buffer readFrom() reads into.
+     */
+    public static final int READ_BUFFER_SIZE = 65536;
+
     private static enum MultipartReaderState {
-        kUninitialized,
-        kAtStart,
         kInPrologue,
         kInBody,
         kInHeaders,
-        kAtEnd,
-        kFailed
+        kAtEnd
     }
     private static Charset utf8 = Charset.forName("UTF-8");
     private static byte[] kCRLFCRLF = new String("\r\n\r\n").getBytes(utf8);
+    private static byte[] kEOM = new String("--").getBytes(utf8);
 
     private MultipartReaderState state;
-    private ByteArrayBuffer buffer;
     private String contentType;
     private byte[] boundary;
+    private StreamMatcher boundaryMatcher;
+    private StreamMatcher headersEndMatcher;
+    private ByteArrayBuffer headersBuffer;
     private MultipartReaderDelegate delegate;
     public Map<String, String> headers;
 
@@ -33,11 +49,18 @@ public class MultipartReader {
 
         this.contentType = contentType;
         this.delegate = delegate;
-        this.buffer = new ByteArrayBuffer(1024);
-        this.state = MultipartReaderState.kAtStart;
 
         parseContentType();
 
+        this.boundaryMatcher = new StreamMatcher(boundary);
+        this.headersEndMatcher = new StreamMatcher(kCRLFCRLF);
+        this.headersBuffer = new ByteArrayBuffer(1024);
+
+        // The entire message might start with a boundary without a leading CRLF. Since the
+        // prologue is skipped anyway, act as if the CRLF had already been read:
+        this.state = MultipartReaderState.kInPrologue;
+        this.boundaryMatcher.matched = 2;
+
     }
 
     public byte[] getBoundary() {
@@ -54,33 +77,6 @@ public class MultipartReader {
         return state == MultipartReaderState.kAtEnd;
     }
 
-    private byte[] eomBytes() {
-        return new String("--").getBytes(Charset.forName("UTF-8"));
-    }
-
-    private boolean memcmp(byte[] array1, byte[] array2, int len) {
-        boolean equals = true;
-        for (int i=0; i<len; i++) {
-            if (array1[i] != array2[i]) {
-                equals = false;
-            }
-        }
-        return equals;
-    }
-
-    public Range searchFor(byte[] pattern, int start) {
-
-        KMPMatch searcher = new KMPMatch();
-        int matchIndex = searcher.indexOf(buffer.toByteArray(), pattern, start);
-
-        if (matchIndex != -1) {
-            return new Range(matchIndex, pattern.length);
-        }
-        else {
-            return new Range(matchIndex, 0);
-        }
-    }
-
     public void parseHeaders(String headersStr) {
 
         headers = new HashMap<String, String>();
@@ -103,121 +99,114 @@ public class MultipartReader {
 
     }
 
-    private void deleteUpThrough(int location) {
+    public void appendData(byte[] data) {
+        appendData(data, 0, data.length);
+    }
 
-        // int start = location + 1;  // start at the first byte after the location
+    /**
+     * Parses the given bytes of the array. The delegate may be given slices of the array, which
+     * it must copy if it wants to keep them; the caller is free to reuse the array afterwards.
+     */
+    public void appendData(byte[] data, int offset, int length) {
 
-        byte[] newBuffer = Arrays.copyOfRange(buffer.toByteArray(), location, buffer.length());
-        buffer.clear();
-        buffer.append(newBuffer, 0, newBuffer.length);
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            switch (state) {
+                case kInPrologue:
+                case kInBody:
+                    pos = appendToBody(data, pos, end);
+                    break;
+                case kInHeaders:
+                    pos = appendToHeaders(data, pos, end);
+                    break;
+                case kAtEnd:
+                    // Ignore the epilogue:
+                    return;
+            }
+        }
 
     }
 
-    private void trimBuffer() {
-        int bufLen = buffer.length();
-        int boundaryLen = getBoundary().length;
-        if (bufLen > boundaryLen) {
-            // Leave enough bytes in _buffer that we can find an incomplete boundary string
-            byte[] dataToAppend = Arrays.copyOfRange(buffer.toByteArray(), 0, bufLen - boundaryLen);
-            delegate.appendToPart(dataToAppend);
-            deleteUpThrough(bufLen - boundaryLen);
+    /**
+     * Parses the rest of the stream, reading it through a single buffer, so the memory used
+     * doesn't depend on the size of the body. Doesn't close the stream.
+     */
+    public void readFrom(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int numBytesRead;
+        while (!finished() && (numBytesRead = inputStream.read(buffer)) != -1) {
+            appendData(buffer, 0, numBytesRead);
         }
-
     }
 
-    public void appendData(byte[] data) {
+    /**
+     * Looks for the next boundary in data[pos..end), passing the body bytes before it to the
+     * delegate. Returns the position after the boundary, or end if it wasn't found.
+     */
+    private int appendToBody(byte[] data, int pos, int end) {
+        // Bytes held back from the previous append; they're boundary[0..heldBack):
+        int heldBack = boundaryMatcher.matched;
+        int matchEnd = boundaryMatcher.scan(data, pos, end);
+        boolean found = (matchEnd >= 0);
+
+        // Everything before the (partial) boundary is body data. In terms of the held-back bytes
+        // followed by data[pos..], that's the first bodyLength bytes:
+        int scanned = (found ? matchEnd : end) - pos;
+        int bodyLength = heldBack + scanned - (found ? boundary.length : boundaryMatcher.matched);
+        if (state == MultipartReaderState.kInBody && bodyLength > 0) {
+            int fromHeldBack = Math.min(bodyLength, heldBack);
+            if (fromHeldBack > 0) {
+                delegate.appendToPart(boundary, 0, fromHeldBack);
+            }
+            if (bodyLength > heldBack) {
+                delegate.appendToPart(data, pos, bodyLength - heldBack);
+            }
+        }
 
-        if (buffer == null) {
-            return;
+        if (!found) {
+            return end;
         }
-        if (data.length == 0) {
-            return;
+        if (state == MultipartReaderState.kInBody) {
+            delegate.finishedPart();
         }
-        buffer.append(data, 0, data.length);
-
-        MultipartReaderState nextState;
-        do {
-            nextState = MultipartReaderState.kUninitialized;
-            int bufLen = buffer.length();
-            // Log.d(Database.TAG, "appendData.  bufLen: " + bufLen);
-            switch (state) {
-                case kAtStart: {
-                    // The entire message might start with a boundary without a leading CRLF.
-                    byte[] boundaryWithoutLeadingCRLF = getBoundaryWithoutLeadingCRLF();
-                    if (bufLen >= boundaryWithoutLeadingCRLF.length) {
-                        // if (Arrays.equals(buffer.toByteArray(), boundaryWithoutLeadingCRLF)) {
-                        if (memcmp(buffer.toByteArray(), boundaryWithoutLeadingCRLF, boundaryWithoutLeadingCRLF.length)) {
-                            deleteUpThrough(boundaryWithoutLeadingCRLF.length);
-                            nextState = MultipartReaderState.kInHeaders;
-                        } else {
-                            nextState = MultipartReaderState.kInPrologue;
-                        }
-                    }
-                    break;
-                }
-                case kInPrologue:
-                case kInBody: {
-                    // Look for the next part boundary in the data we just added and the ending bytes of
-                    // the previous data (in case the boundary string is split across calls)
-                    if (bufLen < boundary.length) {
-                        break;
-                    }
-                    int start = Math.max(0, bufLen - data.length - boundary.length);
-                    Range r = searchFor(boundary, start);
-                    if (r.getLength() > 0) {
-                        if (state == MultipartReaderState.kInBody) {
-                            byte[] dataToAppend = Arrays.copyOfRange(buffer.toByteArray(), 0, r.getLocation());
-                            delegate.appendToPart(dataToAppend);
-                            delegate.finishedPart();
-                        }
-                        deleteUpThrough(r.getLocation() + r.getLength());
-                        nextState = MultipartReaderState.kInHeaders;
-                    } else {
-                        trimBuffer();
-                    }
-                    break;
-                }
-                case kInHeaders: {
-                    // First check for the end-of-message string ("--" after separator):
-                    if (bufLen >= 2 &&
-                            memcmp(buffer.toByteArray(), eomBytes(), 2)) {
-                        state = MultipartReaderState.kAtEnd;
-                        close();
-                        return;
-                    }
-                    // Otherwise look for two CRLFs that delimit the end of the headers:
-                    Range r = searchFor(kCRLFCRLF, 0);
-                    if (r.getLength() > 0) {
-                        byte[] headersBytes = Arrays.copyOf(buffer.toByteArray(), r.getLocation());
-                        // byte[] headersBytes = Arrays.copyOfRange(buffer.toByteArray(), 0, r.getLocation())  <-- better?
-
-                        String headersString = new String(headersBytes, utf8);
-                        parseHeaders(headersString);
-                        deleteUpThrough(r.getLocation() + r.getLength());
-                        delegate.startedPart(headers);
-                        nextState = MultipartReaderState.kInBody;
-
-                    }
-                    break;
-
-                }
-                default: {
-                    throw new IllegalStateException("Unexpected data after end of MIME body");
-                }
-            }
+        boundaryMatcher.matched = 0;
+        headersEndMatcher.matched = 0;
+        headersBuffer.clear();
+        state = MultipartReaderState.kInHeaders;
+        return matchEnd;
+    }
 
-            if (nextState != MultipartReaderState.kUninitialized) {
-                state = nextState;
+    /**
+     * Collects the headers of a part from data[pos..end), up to the blank line that ends them.
+     * Returns the position after the headers, or end if they're incomplete.
+     */
+    private int appendToHeaders(byte[] data, int pos, int end) {
+        // First check for the end-of-message string ("--" after separator):
+        while (headersBuffer.length() < kEOM.length && pos < end) {
+            byte b = data[pos++];
+            headersBuffer.append(b);
+            headersEndMatcher.scan(b);
+            if (headersBuffer.length() == kEOM.length
+                    && headersBuffer.byteAt(0) == kEOM[0] && headersBuffer.byteAt(1) == kEOM[1]) {
+                state = MultipartReaderState.kAtEnd;
+                return end;
             }
+        }
 
-        } while (nextState != MultipartReaderState.kUninitialized && buffer.length() > 0);
-
-
-    }
+        // Otherwise look for two CRLFs that delimit the end of the headers:
+        int matchEnd = headersEndMatcher.scan(data, pos, end);
+        int headersEnd = (matchEnd >= 0) ? matchEnd : end;
+        headersBuffer.append(data, pos, headersEnd - pos);
+        if (matchEnd < 0) {
+            return end;
+        }
 
-    private void close() {
-        buffer = null;
-        boundary = null;
+        String headersString = new String(headersBuffer.buffer(), 0, headersBuffer.length() - kCRLFCRLF.length, utf8);
+        parseHeaders(headersString);
+        delegate.startedPart(headers);
+        state = MultipartReaderState.kInBody;
+        return matchEnd;
     }
 
     private void parseContentType() {
@@ -255,42 +244,65 @@ public class MultipartReader {
 }
 
 /**
- * Knuth-Morris-Pratt Algorithm for Pattern Matching
+ * Knuth-Morris-Pratt matcher that can be fed its input in pieces: it remembers how much of the
+ * pattern was matched at the end of the previous piece.
  */
-class KMPMatch {
-
-    /**
-     * Finds the first occurrence of the pattern in the text.
-     */
-    public int indexOf(byte[] data, byte[] pattern, int dataOffset) {
+class StreamMatcher {
 
-        int[] failure = computeFailure(pattern);
+    private final byte[] pattern;
+    private final int[] failure;
 
-        int j = 0;
-        if (data.length == 0)
-            return -1;
+    /** Number of bytes of the pattern matched at the end of the input so far. */
+    int matched;
 
-        final int dataLength = data.length;
-        final int patternLength = pattern.length;
+    StreamMatcher(byte[] pattern) {
+        this.pattern = pattern;
+        this.failure = computeFailure(pattern);
+    }
 
-        for (int i = dataOffset; i < dataLength; i++) {
-            while (j > 0 && pattern[j] != data[i]) {
+    /**
+     * Feeds data[from..to) to the matcher. Returns the index just past the end of the first
+     * complete match, or -1 if the pattern wasn't completed.
+     */
+    int scan(byte[] data, int from, int to) {
+        int j = matched;
+        for (int i = from; i < to; i++) {
+            byte b = data[i];
+            while (j > 0 && pattern[j] != b) {
                 j = failure[j - 1];
             }
-            if (pattern[j] == data[i]) { j++; }
-            if (j == patternLength) {
-                return i - patternLength + 1;
+            if (pattern[j] == b) {
+                j++;
+            }
+            if (j == pattern.length) {
+                matched = j;
+                return i + 1;
             }
         }
-
+        matched = j;
         return -1;
     }
 
+    /**
+     * Feeds a single byte to the matcher. Returns true if it completes a match.
+     */
+    boolean scan(byte b) {
+        int j = matched;
+        while (j > 0 && pattern[j] != b) {
+            j = failure[j - 1];
+        }
+        if (pattern[j] == b) {
+            j++;
+        }
+        matched = j;
+        return j == pattern.length;
+    }
+
     /**
      * Computes the failure function using a boot-strapping process,
      * where the pattern is matched against itself.
      */
-    private int[] computeFailure(byte[] pattern) {
+    private static int[] computeFailure(byte[] pattern) {
         int[] failure = new int[pattern.length];
 
         int j = 0;
@@ -306,4 +318,4 @@ class KMPMatch {
 
         return failure;
     }
-}
\ No newline at end of file
+}
@@ -6,7 +6,11 @@ public interface MultipartReaderDelegate {
 
     public void startedPart(Map<String, String> headers);
 
-    public void appendToPart(byte[] data);
+    /**
+     * Appends data[offset..offset+length) to the current part. The array belongs to the caller
+     * and may be reused once this returns.
+     */
+    public void appendToPart(byte[] data, int offset, int length);
 
     public void finishedPart();
 
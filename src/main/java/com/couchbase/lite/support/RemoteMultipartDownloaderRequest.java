@@ -17,7 +17,6 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -91,18 +90,7 @@ public class RemoteMultipartDownloaderRequest extends RemoteRequest {
                         reader.setContentType(contentTypeHeader.getValue());
                         inputStream = entity.getContent();
 
-                        int bufLen = 1024;
-                        byte[] buffer = new byte[bufLen];
-                        int numBytesRead = 0;
-                        while ( (numBytesRead = inputStream.read(buffer))!= -1 ) {
-                            if (numBytesRead != bufLen) {
-                                byte[] bufferToAppend = Arrays.copyOfRange(buffer, 0, numBytesRead);
-                                reader.appendData(bufferToAppend);
-                            }
-                            else {
-                                reader.appendData(buffer);
-                            }
-                        }
+                        reader.readFrom(inputStream);
 
                         reader.finish();
                         fullBody = reader.getDocumentProperties();
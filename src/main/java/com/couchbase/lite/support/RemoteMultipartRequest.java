@@ -3,6 +3,7 @@ package com.couchbase.lite.support;
 import com.couchbase.lite.Database;
 
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
@@ -32,23 +33,34 @@ public class RemoteMultipartRequest extends RemoteRequest {
 
         HttpUriRequest request = null;
         if (method.equalsIgnoreCase("PUT")) {
-            HttpPut putRequest = new HttpPut(url.toExternalForm());
-            putRequest.setEntity(multiPart);
-            request = putRequest;
-
+            request = new HttpPut(url.toExternalForm());
         } else if (method.equalsIgnoreCase("POST")) {
-            HttpPost postRequest = new HttpPost(url.toExternalForm());
-            postRequest.setEntity(multiPart);
-            request = postRequest;
+            request = new HttpPost(url.toExternalForm());
         } else {
             throw new IllegalArgumentException("Invalid request method: " + method);
         }
+        setBody(request);
 
         request.addHeader("Accept", "*/*");
+        HttpCompression.acceptCompressedResponse(request);
 
         executeRequest(httpClient, request);
 
     }
 
+    @Override
+    protected void setBody(HttpUriRequest request) {
+        ((HttpEntityEnclosingRequestBase) request).setEntity(
+                HttpCompression.bodyEntity(compressionOptions, request, multiPart));
+    }
+
+    /**
+     * A multipart body can only be written again if all its parts can, e.g. files but not streams.
+     */
+    @Override
+    protected boolean canResendBody() {
+        return multiPart.isRepeatable();
+    }
+
 
 }
@@ -1,5 +1,6 @@
 package com.couchbase.lite.support;
 
+import com.couchbase.lite.CompressionOptions;
 import com.couchbase.lite.Database;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.auth.Authenticator;
@@ -26,7 +27,6 @@ import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.protocol.HttpContext;
@@ -61,6 +61,7 @@ public class RemoteRequest implements Runnable {
     private int retryCount;
     private Database db;
     protected HttpUriRequest request;
+    protected final CompressionOptions compressionOptions;
 
     protected Map<String, Object> requestHeaders;
 
@@ -75,6 +76,7 @@ public class RemoteRequest implements Runnable {
         this.workExecutor = workExecutor;
         this.requestHeaders = requestHeaders;
         this.db = db;
+        this.compressionOptions = HttpCompression.getOptions(db);
         this.request = createConcreteRequest();
         Log.v(Log.TAG_SYNC, "%s: RemoteRequest created, url: %s", this, url);
 
@@ -94,6 +96,8 @@ public class RemoteRequest implements Runnable {
 
             request.addHeader("Accept", "multipart/related, application/json");
 
+            HttpCompression.acceptCompressedResponse(request);
+
             addRequestHeaders(request);
 
             setBody(request);
@@ -159,12 +163,38 @@ public class RemoteRequest implements Runnable {
             } catch (Exception e) {
                 Log.e(Log.TAG_REMOTE_REQUEST, "Error serializing body of request", e);
             }
-            ByteArrayEntity entity = new ByteArrayEntity(bodyBytes);
-            entity.setContentType("application/json");
+            HttpEntity entity = HttpCompression.bodyEntity(compressionOptions, request, bodyBytes, "application/json");
             ((HttpEntityEnclosingRequestBase) request).setEntity(entity);
         }
     }
 
+    /**
+     * Whether setBody() can be called again to resend the request.
+     */
+    protected boolean canResendBody() {
+        return true;
+    }
+
+    /**
+     * If the server rejected the request's compressed body, sends the request again uncompressed.
+     * @return true if it was sent again, in which case that has handled the result
+     */
+    protected boolean retryUncompressed(HttpClient httpClient, HttpUriRequest request, HttpResponse response) {
+        if (!HttpCompression.checkResponse(compressionOptions, request, response) || !canResendBody()) {
+            return false;
+        }
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+            }
+        }
+        setBody(request);
+        executeRequest(httpClient, request);
+        return true;
+    }
+
     /**
      *  Set Authenticator for BASIC Authentication
      */
@@ -209,6 +239,10 @@ public class RemoteRequest implements Runnable {
                 Log.e(Log.TAG_REMOTE_REQUEST, "Unable to add in cookies to global store", e);
             }
 
+            if (retryUncompressed(httpClient, requestParam, response)) {
+                return;
+            }
+
             StatusLine status = response.getStatusLine();
 
 
@@ -223,7 +257,7 @@ public class RemoteRequest implements Runnable {
                 if (temp != null) {
                     InputStream stream = null;
                     try {
-                        stream = temp.getContent();
+                        stream = HttpCompression.getContent(compressionOptions, requestParam, temp);
                         fullBody = Manager.getObjectMapper().readValue(stream,
                                 Object.class);
                     } finally {
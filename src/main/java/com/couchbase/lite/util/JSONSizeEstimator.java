@@ -0,0 +1,106 @@
+package com.couchbase.lite.util;
+
+import com.couchbase.lite.internal.InlineAttachmentData;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Cheap estimates of the size of a JSON-compatible object tree (maps, lists, strings, numbers,
+ * booleans and nulls), without serializing it.
+ *
+ * Port of +[CBLJSON estimateMemorySize:] from the iOS code, plus an estimate of the encoded
+ * JSON size, used to keep requests bounded.
+ */
+public class JSONSizeEstimator {
+
+    // Rough per-object overheads on a 64-bit JVM:
+    private static final int OBJECT_OVERHEAD = 16;
+    private static final int MAP_ENTRY_OVERHEAD = 32;
+    private static final int LIST_ITEM_OVERHEAD = 8;
+    private static final int STRING_OVERHEAD = 40;
+
+    /**
+     * Estimates the number of bytes of heap used by the object tree.
+     */
+    public static long estimateMemorySize(Object object) {
+        if (object == null) {
+            return 0;
+        } else if (object instanceof String) {
+            return STRING_OVERHEAD + 2L * ((String) object).length();
+        } else if (object instanceof Map) {
+            long size = OBJECT_OVERHEAD;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+                size += MAP_ENTRY_OVERHEAD + estimateMemorySize(entry.getKey()) + estimateMemorySize(entry.getValue());
+            }
+            return size;
+        } else if (object instanceof Collection) {
+            long size = OBJECT_OVERHEAD;
+            for (Object item : (Collection<?>) object) {
+                size += LIST_ITEM_OVERHEAD + estimateMemorySize(item);
+            }
+            return size;
+        } else if (object instanceof byte[]) {
+            return OBJECT_OVERHEAD + ((byte[]) object).length;
+        } else if (object instanceof InlineAttachmentData) {
+            // Streamed from the blob store, not held in memory
+            return OBJECT_OVERHEAD;
+        } else {
+            // Boxed numbers and booleans
+            return OBJECT_OVERHEAD;
+        }
+    }
+
+    /**
+     * Estimates the number of bytes of the object tree encoded as JSON. Strings are assumed to be
+     * mostly ASCII; non-ASCII characters and escapes are counted at their usual encoded length.
+     */
+    public static long estimateJSONSize(Object object) {
+        if (object == null) {
+            return 4;
+        } else if (object instanceof String) {
+            return estimateStringSize((String) object);
+        } else if (object instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) object;
+            long size = 2 + Math.max(0, map.size() - 1);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                size += estimateStringSize(String.valueOf(entry.getKey())) + 1 + estimateJSONSize(entry.getValue());
+            }
+            return size;
+        } else if (object instanceof Collection) {
+            Collection<?> collection = (Collection<?>) object;
+            long size = 2 + Math.max(0, collection.size() - 1);
+            for (Object item : collection) {
+                size += estimateJSONSize(item);
+            }
+            return size;
+        } else if (object instanceof byte[]) {
+            // Encoded as a base64 string
+            return 2 + 4L * ((((byte[]) object).length + 2) / 3);
+        } else if (object instanceof InlineAttachmentData) {
+            return 2 + ((InlineAttachmentData) object).getEncodedLength();
+        } else {
+            return String.valueOf(object).length();
+        }
+    }
+
+    private static long estimateStringSize(String string) {
+        long size = 2;
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                size += 2;
+            } else if (c < 0x20) {
+                size += 6;
+            } else if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+}